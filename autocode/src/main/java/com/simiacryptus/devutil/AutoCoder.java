@@ -13,6 +13,7 @@ import org.eclipse.jdt.internal.formatter.DefaultCodeFormatterOptions;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.Document;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +22,8 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
@@ -28,40 +31,347 @@ import java.util.stream.Collectors;
 public abstract class AutoCoder extends ASTVisitor {
   protected static final Logger logger = LoggerFactory.getLogger(AutoCoder.class);
   protected final SimpleMavenProject project;
+  protected final TypeHierarchyIndex typeIndex = new TypeHierarchyIndex();
+  protected final AutoCoderMetrics metrics = new AutoCoderMetrics();
+  protected final SourceOutput output;
+  private int batchSize = 0;
+  private File metricsFile = null;
+  private TraceSink traceSink = null;
+  private Collection<File> scope = null;
+  private RunJournal journal = null;
+  private int steps = 0;
+  private long fileNodeBudget = 0;
+  private long fileTimeBudgetMillis = 0;
+  private long methodNodeBudget = 0;
+  private final Map<File, String> skipped = new ConcurrentHashMap<>();
 
   public AutoCoder(String pathname) {
+    this(pathname, true);
+  }
+
+  public AutoCoder(String pathname, boolean resolveDependencies) {
+    this(load(pathname, resolveDependencies));
+  }
+
+  public AutoCoder(@Nonnull SimpleMavenProject project) {
+    this.project = project;
+    this.output = project instanceof VirtualProject
+        ? new SourceOutput(project.projectRoot, ((VirtualProject) project).getSources())
+        : new SourceOutput(project.projectRoot);
+  }
+
+  @NotNull
+  private static SimpleMavenProject load(String pathname, boolean resolveDependencies) {
     try {
-      this.project = SimpleMavenProject.load(new File(pathname).getCanonicalPath());
+      return SimpleMavenProject.load(new File(pathname).getCanonicalPath(), resolveDependencies);
     } catch (IOException | PlexusContainerException | DependencyResolutionException | ProjectBuildingException | ComponentLookupException e) {
       throw new RuntimeException(e);
     }
-
   }
 
   @Nonnull
   public abstract void apply();
 
   public int apply(BiFunction<CompilationUnit, File, ASTVisitor> visitor) {
-    return project.parse().entrySet().stream().mapToInt(entry -> {
+    final int step = ++steps;
+    final List<File> files = new ArrayList<>();
+    int changed = 0;
+    for (File file : null == scope ? project.getSourceFiles() : scope) {
+      if (skipped.containsKey(file)) continue;
+      final Boolean journaled = null == journal ? null : journal.get(step, file);
+      if (null == journaled) {
+        files.add(file);
+      } else if (journaled) {
+        changed++;
+      }
+    }
+    if (files.isEmpty()) return changed;
+    if (batchSize <= 0 || files.size() <= batchSize) return changed + apply(parse(files), visitor, step);
+    for (int i = 0; i < files.size(); i += batchSize) {
+      final List<File> batch = files.subList(i, Math.min(files.size(), i + batchSize));
+      logger.debug(String.format("Parsing batch of %s files starting at %s", batch.size(), i));
+      changed += apply(parse(batch), visitor, step);
+    }
+    return changed;
+  }
+
+  /**
+   * Files rewritten but not yet flushed are parsed one by one from their pending contents. A virtual project
+   * parses all of its units together from their current contents instead.
+   */
+  protected Map<File, CompilationUnit> parse(List<File> files) {
+    final long startTime = System.nanoTime();
+    if (project instanceof VirtualProject) {
+      final HashMap<File, CompilationUnit> units = ((VirtualProject) project).parse(files, output::read);
+      metrics.parsed(units.size(), System.nanoTime() - startTime);
+      return units;
+    }
+    final HashMap<File, CompilationUnit> units = project.parse(files.stream().filter(file -> !output.isPending(file)).collect(Collectors.toList()));
+    files.stream().filter(output::isPending).forEach(file -> units.put(file, project.parse(file, output.read(file))));
+    metrics.parsed(units.size(), System.nanoTime() - startTime);
+    return units;
+  }
+
+  private int apply(Map<File, CompilationUnit> units, BiFunction<CompilationUnit, File, ASTVisitor> visitor, int step) {
+    return units.entrySet().stream().mapToInt(entry -> {
       File file = entry.getKey();
       CompilationUnit compilationUnit = entry.getValue();
-      logger.debug(String.format("Scanning %s", file));
+      entry.setValue(null);
+      final ASTVisitor astVisitor = visitor.apply(compilationUnit, file);
+      final int changed = apply(file, compilationUnit, (cu, f) -> astVisitor);
+      if (null != journal && !skipped.containsKey(file)) journal.record(step, astVisitor.getClass().getSimpleName(), file, changed > 0, output.read(file));
+      return changed;
+    }).sum();
+  }
+
+  /**
+   * Applies a purely syntactic pass to one file, parsed without bindings. Safe to call concurrently for
+   * distinct files.
+   */
+  protected boolean applyUnbound(File file, BiFunction<CompilationUnit, File, ASTVisitor> visitor) {
+    if (skipped.containsKey(file)) return false;
+    final long startTime = System.nanoTime();
+    final CompilationUnit compilationUnit = project.parseUnbound(file, output.read(file));
+    metrics.parsed(1, System.nanoTime() - startTime);
+    return apply(file, compilationUnit, visitor) > 0;
+  }
+
+  /**
+   * A pass that fails or runs over budget on a file leaves that file as the previous pass wrote it, and later
+   * passes of the run skip it. Leaving out later insertions only ever leaks references, never releases one early.
+   */
+  private int apply(File file, CompilationUnit compilationUnit, BiFunction<CompilationUnit, File, ASTVisitor> visitor) {
+    logger.debug(String.format("Scanning %s", file));
+    final long startTime = System.nanoTime();
+    final ASTVisitor astVisitor = visitor.apply(compilationUnit, file);
+    boolean changed = false;
+    try {
       final String prevSrc = compilationUnit.toString();
-      compilationUnit.accept(visitor.apply(compilationUnit, file));
+      compilationUnit.accept(astVisitor);
       final String finalSrc = compilationUnit.toString();
-      if (!prevSrc.equals(finalSrc)) {
-        logger.info("Changed: " + file);
-        try {
-          FileUtils.write(file, format(finalSrc), "UTF-8");
-          return 1;
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+      changed = !prevSrc.equals(finalSrc);
+      if (changed) {
+        logger.debug("Changed: " + file);
+        output.write(file, format(finalSrc));
+        return 1;
       } else {
         logger.debug("Not Touched: " + file);
         return 0;
       }
-    }).sum();
+    } catch (RuntimeException | StackOverflowError e) {
+      final BudgetExceededException budget = getBudgetCause(e);
+      final ASTVisitor failed = astVisitor instanceof PassManager.FusedVisitor && null != ((PassManager.FusedVisitor) astVisitor).getCurrent()
+          ? ((PassManager.FusedVisitor) astVisitor).getCurrent() : astVisitor;
+      final String pass = failed.getClass().getSimpleName();
+      if (null != budget) {
+        metrics.get(failed.getClass()).warning("over-budget");
+        skipped.put(file, String.format("%s over budget: %s", pass, budget.getMessage()));
+        logger.warn(String.format("Skipping %s: %s over budget (%s)", file, pass, budget.getMessage()));
+      } else {
+        metrics.get(failed.getClass()).warning("failed");
+        skipped.put(file, String.format("%s failed: %s", pass, e));
+        logger.warn(String.format("Skipping %s: %s failed", file, pass), e);
+      }
+      return 0;
+    } finally {
+      record(astVisitor, changed, System.nanoTime() - startTime);
+    }
+  }
+
+  /**
+   * Records one file's traversal. A fused traversal is recorded against each member pass: its own time plus an
+   * equal share of the traversal and source comparison, and a change only if that member modified the tree.
+   */
+  private void record(ASTVisitor astVisitor, boolean changed, long nanos) {
+    if (astVisitor instanceof PassManager.FusedVisitor) {
+      final PassManager.FusedVisitor fused = (PassManager.FusedVisitor) astVisitor;
+      final int count = fused.members.size();
+      long shared = nanos;
+      for (int i = 0; i < count; i++) shared -= fused.getNanos(i);
+      for (int i = 0; i < count; i++) {
+        record(fused.members.get(i), changed && fused.isChanged(i), fused.getNanos(i) + Math.max(0, shared) / count);
+      }
+      return;
+    }
+    final AutoCoderMetrics.PassMetrics passMetrics = metrics.get(astVisitor.getClass());
+    if (astVisitor instanceof FileAstVisitor) passMetrics.nodes.add(((FileAstVisitor) astVisitor).nodesVisited);
+    if (changed) passMetrics.changed.increment();
+    passMetrics.files.increment();
+    passMetrics.nanos.add(nanos);
+  }
+
+  @Nullable
+  private static BudgetExceededException getBudgetCause(Throwable e) {
+    while (null != e) {
+      if (e instanceof BudgetExceededException) return (BudgetExceededException) e;
+      e = e.getCause();
+    }
+    return null;
+  }
+
+  /**
+   * Files left out of the rest of the run, with the pass and reason.
+   */
+  @NotNull
+  public Map<File, String> getSkipped() {
+    return Collections.unmodifiableMap(skipped);
+  }
+
+  public long getFileNodeBudget() {
+    return fileNodeBudget;
+  }
+
+  /**
+   * Maximum number of nodes a single pass may visit in one file; 0 for no limit.
+   */
+  public AutoCoder setFileNodeBudget(long fileNodeBudget) {
+    this.fileNodeBudget = fileNodeBudget;
+    return this;
+  }
+
+  public long getFileTimeBudgetMillis() {
+    return fileTimeBudgetMillis;
+  }
+
+  /**
+   * Time a single pass may spend on one file before it finishes the file with each pass's conservative strategy,
+   * which places no further releases and stops inlining, so the file leaks rather than stalls; 0 for no limit.
+   */
+  public AutoCoder setFileTimeBudgetMillis(long fileTimeBudgetMillis) {
+    this.fileTimeBudgetMillis = fileTimeBudgetMillis;
+    return this;
+  }
+
+  public long getMethodNodeBudget() {
+    return methodNodeBudget;
+  }
+
+  /**
+   * Size, in nodes, above which a method body is left to the conservative strategy of each pass; 0 for no limit.
+   */
+  public AutoCoder setMethodNodeBudget(long methodNodeBudget) {
+    this.methodNodeBudget = methodNodeBudget;
+    return this;
+  }
+
+  /**
+   * Whether the node exceeds the method node budget. Counting stops at the budget.
+   */
+  public boolean isOverMethodBudget(@Nonnull ASTNode node) {
+    if (methodNodeBudget <= 0) return false;
+    final long[] count = {0};
+    node.accept(new ASTVisitor() {
+      @Override
+      public boolean preVisit2(ASTNode child) {
+        return ++count[0] <= methodNodeBudget;
+      }
+    });
+    return count[0] > methodNodeBudget;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public AutoCoder setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  public TypeHierarchyIndex getTypeIndex() {
+    return typeIndex;
+  }
+
+  public Collection<File> getScope() {
+    return scope;
+  }
+
+  public AutoCoder setScope(Collection<File> scope) {
+    this.scope = scope;
+    return this;
+  }
+
+  public RunJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Journals every pass step applied to every file, so that a run interrupted part way resumes where it stopped.
+   * An existing journal at this location is resumed from. Only in-place output is journaled, since other output
+   * modes keep rewrites in memory until the run ends.
+   */
+  public AutoCoder setJournalFile(File journalFile) {
+    if (null != journal) journal.close();
+    if (null != journalFile && output.getMode() != SourceOutput.Mode.IN_PLACE) {
+      logger.warn(String.format("Journal ignored for %s output", output.getMode()));
+      journalFile = null;
+    }
+    this.journal = null == journalFile ? null : new RunJournal(journalFile);
+    return this;
+  }
+
+  /**
+   * Ends a completed run: pass steps count from the start again and the journal is discarded.
+   */
+  protected void complete() {
+    steps = 0;
+    if (null != journal) {
+      journal.complete();
+      journal = null;
+    }
+  }
+
+  public SourceOutput getOutput() {
+    return output;
+  }
+
+  public AutoCoder setOutput(SourceOutput.Mode mode, File target) {
+    output.setMode(mode, target);
+    return this;
+  }
+
+  public void flush() {
+    output.flush(project.getSourceFiles());
+  }
+
+  public AutoCoderMetrics getMetrics() {
+    return metrics;
+  }
+
+  public File getMetricsFile() {
+    return metricsFile;
+  }
+
+  public AutoCoder setMetricsFile(File metricsFile) {
+    this.metricsFile = metricsFile;
+    return this;
+  }
+
+  public TraceSink getTraceSink() {
+    return traceSink;
+  }
+
+  /**
+   * Traces the nodes each pass visits. Tracing is off unless a sink is set here, and the caller closes it.
+   */
+  public AutoCoder setTraceSink(TraceSink traceSink) {
+    this.traceSink = traceSink;
+    return this;
+  }
+
+  protected void report() {
+    logger.info("Run summary:\n" + metrics.toTable());
+    if (!skipped.isEmpty()) {
+      logger.warn(String.format("Skipped %d files:\n%s", skipped.size(), new TreeMap<>(skipped).entrySet().stream()
+          .map(e -> e.getKey() + "\t" + e.getValue()).collect(Collectors.joining("\n"))));
+    }
+    if (null != metricsFile) {
+      try {
+        FileUtils.write(metricsFile, metrics.toJson(), "UTF-8");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
   public String format(String finalSrc) {
@@ -130,9 +440,7 @@ public abstract class AutoCoder extends ASTVisitor {
   }
 
   protected boolean derives(@Nonnull ITypeBinding typeBinding, @Nonnull Class<ReferenceCountingBase> baseClass) {
-    if (typeBinding.getBinaryName().equals(baseClass.getCanonicalName())) return true;
-    if (typeBinding.getSuperclass() != null) return derives(typeBinding.getSuperclass(), baseClass);
-    return false;
+    return typeIndex.derives(typeBinding, baseClass.getCanonicalName());
   }
 
   @NotNull
@@ -206,31 +514,39 @@ public abstract class AutoCoder extends ASTVisitor {
   }
 
   public List<Mention> lastMentions(Block block, IBinding variable) {
+    return lastMentions(block, variable, Long.MAX_VALUE);
+  }
+
+  /**
+   * Throws {@link BudgetExceededException} once {@link System#nanoTime()} passes the deadline.
+   */
+  public List<Mention> lastMentions(Block block, IBinding variable, long deadline) {
     final List statements = block.statements();
     final ArrayList<Mention> mentions = new ArrayList<>();
     Mention lastMention = null;
     for (int j = 0; j < statements.size(); j++) {
+      checkDeadline(deadline);
       final Statement statement = (Statement) statements.get(j);
       if (statement instanceof IfStatement) {
         final IfStatement ifStatement = (IfStatement) statement;
         final Statement thenStatement = ifStatement.getThenStatement();
         if (thenStatement instanceof Block) {
-          mentions.addAll(lastMentions((Block) thenStatement, variable)
+          mentions.addAll(lastMentions((Block) thenStatement, variable, deadline)
               .stream().filter(x -> x.isReturn()).collect(Collectors.toList()));
-        } else if (thenStatement instanceof ReturnStatement && contains(thenStatement, variable)) {
+        } else if (thenStatement instanceof ReturnStatement && contains(thenStatement, variable, deadline)) {
           new Mention(block, j, thenStatement);
         }
         final Statement elseStatement = ifStatement.getElseStatement();
         if (elseStatement instanceof Block) {
-          mentions.addAll(lastMentions((Block) elseStatement, variable)
+          mentions.addAll(lastMentions((Block) elseStatement, variable, deadline)
               .stream().filter(x -> x.isReturn()).collect(Collectors.toList()));
-        } else if (elseStatement instanceof ReturnStatement && contains(elseStatement, variable)) {
+        } else if (elseStatement instanceof ReturnStatement && contains(elseStatement, variable, deadline)) {
           new Mention(block, j, elseStatement);
         }
-        if (contains(ifStatement.getExpression(), variable)) {
+        if (contains(ifStatement.getExpression(), variable, deadline)) {
           lastMention = new Mention(block, j, ifStatement);
         }
-      } else if (contains(statement, variable)) {
+      } else if (contains(statement, variable, deadline)) {
         lastMention = new Mention(block, j, statement);
       }
     }
@@ -238,9 +554,24 @@ public abstract class AutoCoder extends ASTVisitor {
     return mentions;
   }
 
-  private boolean contains(ASTNode expression, IBinding variableBinding) {
+  public static boolean contains(ASTNode expression, IBinding variableBinding) {
+    return contains(expression, variableBinding, Long.MAX_VALUE);
+  }
+
+  /**
+   * Stops at the first mention, and checks the deadline every 256 nodes, throwing
+   * {@link BudgetExceededException} once {@link System#nanoTime()} passes it.
+   */
+  public static boolean contains(ASTNode expression, IBinding variableBinding, long deadline) {
     final AtomicBoolean found = new AtomicBoolean(false);
+    final long[] visited = {0};
     expression.accept(new ASTVisitor() {
+      @Override
+      public boolean preVisit2(ASTNode node) {
+        if (0 == (++visited[0] & 0xFF)) checkDeadline(deadline);
+        return !found.get();
+      }
+
       @Override
       public void endVisit(SimpleName node) {
         final IBinding binding = node.resolveBinding();
@@ -250,6 +581,12 @@ public abstract class AutoCoder extends ASTVisitor {
     return found.get();
   }
 
+  private static void checkDeadline(long deadline) {
+    if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline) {
+      throw new BudgetExceededException("past the file time budget");
+    }
+  }
+
   public Type getType(@Nonnull AST ast, String name) {
     if(name.endsWith("[]")) {
       return ast.newArrayType(getType(ast, name.substring(0,name.length()-2)));
@@ -285,12 +622,63 @@ public abstract class AutoCoder extends ASTVisitor {
     public FileAstVisitor(CompilationUnit compilationUnit, File file) {
       this.compilationUnit = compilationUnit;
       this.file = file;
+      this.traced = null != traceSink && traceSink.accepts(file);
     }
 
+    protected long nodesVisited = 0;
+    private final boolean traced;
+    protected final long startTime = System.nanoTime();
+    private boolean overTime = false;
+
     public String location(ASTNode node) {
       return String.format("(%s:%s)", file.getName(), compilationUnit.getLineNumber(node.getStartPosition()));
     }
 
+    @Override
+    public boolean preVisit2(ASTNode node) {
+      nodesVisited++;
+      if (0 < fileNodeBudget && nodesVisited > fileNodeBudget) {
+        throw new BudgetExceededException(String.format("more than %d nodes", fileNodeBudget));
+      }
+      if (!overTime && 0 < fileTimeBudgetMillis && 0 == (nodesVisited & 0xFF) && isExpired()) {
+        overTime = true;
+        warn("over-time", String.format("%s - %s took more than %d ms; finishing conservatively",
+            file.getName(), getClass().getSimpleName(), fileTimeBudgetMillis));
+      }
+      if (traced && traceSink.accepts(node.getClass())) {
+        traceSink.emit(getClass().getSimpleName(), file.getName(), node.getClass().getSimpleName(), compilationUnit.getLineNumber(node.getStartPosition()));
+      }
+      return super.preVisit2(node);
+    }
+
+    /**
+     * The {@link System#nanoTime()} past which this pass is over the file time budget.
+     */
+    protected long deadline() {
+      return 0 < fileTimeBudgetMillis ? startTime + TimeUnit.MILLISECONDS.toNanos(fileTimeBudgetMillis) : Long.MAX_VALUE;
+    }
+
+    protected boolean isExpired() {
+      return 0 < fileTimeBudgetMillis && System.nanoTime() > deadline();
+    }
+
+    protected void edit(String kind) {
+      metrics.get(getClass()).edit(kind);
+    }
+
+    protected void warn(String reason, String message) {
+      metrics.get(getClass()).warning(reason);
+      logger.warn(message);
+    }
+
+  }
+
+  public static class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public BudgetExceededException(String message) {
+      super(message);
+    }
   }
 
 }
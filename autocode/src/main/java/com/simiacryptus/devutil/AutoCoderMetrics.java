@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+public class AutoCoderMetrics {
+  private final Map<String, PassMetrics> passes = new ConcurrentHashMap<>();
+  private final LongAdder parseNanos = new LongAdder();
+  private final LongAdder parsedFiles = new LongAdder();
+
+  @NotNull
+  public PassMetrics get(@Nonnull Class<?> visitorClass) {
+    return passes.computeIfAbsent(visitorClass.getSimpleName(), name -> new PassMetrics());
+  }
+
+  public void parsed(int files, long nanos) {
+    parsedFiles.add(files);
+    parseNanos.add(nanos);
+  }
+
+  public void clear() {
+    passes.clear();
+    parseNanos.reset();
+    parsedFiles.reset();
+  }
+
+  @NotNull
+  public String toTable() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-20s %8s %10s %8s %10s  %s%n", "Pass", "Files", "Nodes", "Changed", "Time (ms)", "Edits / Warnings"));
+    new TreeMap<>(passes).forEach((name, pass) -> {
+      sb.append(String.format("%-20s %8d %10d %8d %10d  %s / %s%n",
+          name,
+          pass.files.sum(),
+          pass.nodes.sum(),
+          pass.changed.sum(),
+          TimeUnit.NANOSECONDS.toMillis(pass.nanos.sum()),
+          toMap(pass.edits),
+          toMap(pass.warnings)
+      ));
+    });
+    sb.append(String.format("Parsed %d files in %d ms%n", parsedFiles.sum(), TimeUnit.NANOSECONDS.toMillis(parseNanos.sum())));
+    return sb.toString();
+  }
+
+  @NotNull
+  public String toJson() {
+    final Map<String, Object> json = new LinkedHashMap<>();
+    final Map<String, Object> parse = new LinkedHashMap<>();
+    parse.put("files", parsedFiles.sum());
+    parse.put("millis", TimeUnit.NANOSECONDS.toMillis(parseNanos.sum()));
+    json.put("parse", parse);
+    final Map<String, Object> passJson = new TreeMap<>();
+    passes.forEach((name, pass) -> {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("files", pass.files.sum());
+      map.put("nodes", pass.nodes.sum());
+      map.put("changed", pass.changed.sum());
+      map.put("millis", TimeUnit.NANOSECONDS.toMillis(pass.nanos.sum()));
+      map.put("edits", toMap(pass.edits));
+      map.put("warnings", toMap(pass.warnings));
+      passJson.put(name, map);
+    });
+    json.put("passes", passJson);
+    return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+  }
+
+  /**
+   * Adds in the counters of a report written by {@link #toJson()}, such as one from another process.
+   */
+  public void merge(@Nonnull String json) {
+    final JsonObject object = new Gson().fromJson(json, JsonObject.class);
+    final JsonObject parse = object.getAsJsonObject("parse");
+    parsedFiles.add(parse.get("files").getAsLong());
+    parseNanos.add(TimeUnit.MILLISECONDS.toNanos(parse.get("millis").getAsLong()));
+    object.getAsJsonObject("passes").entrySet().forEach(entry -> {
+      final JsonObject passJson = entry.getValue().getAsJsonObject();
+      final PassMetrics pass = passes.computeIfAbsent(entry.getKey(), name -> new PassMetrics());
+      pass.files.add(passJson.get("files").getAsLong());
+      pass.nodes.add(passJson.get("nodes").getAsLong());
+      pass.changed.add(passJson.get("changed").getAsLong());
+      pass.nanos.add(TimeUnit.MILLISECONDS.toNanos(passJson.get("millis").getAsLong()));
+      passJson.getAsJsonObject("edits").entrySet().forEach(e -> pass.edits.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(e.getValue().getAsLong()));
+      passJson.getAsJsonObject("warnings").entrySet().forEach(e -> pass.warnings.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(e.getValue().getAsLong()));
+    });
+  }
+
+  @NotNull
+  private static Map<String, Long> toMap(Map<String, LongAdder> counters) {
+    return counters.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum(), (a, b) -> a, TreeMap::new));
+  }
+
+  public static class PassMetrics {
+    public final LongAdder nanos = new LongAdder();
+    public final LongAdder nodes = new LongAdder();
+    public final LongAdder files = new LongAdder();
+    public final LongAdder changed = new LongAdder();
+    public final Map<String, LongAdder> edits = new ConcurrentHashMap<>();
+    public final Map<String, LongAdder> warnings = new ConcurrentHashMap<>();
+
+    public void edit(String kind) {
+      edits.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    public void warning(String reason) {
+      warnings.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Textual pre-scan selecting the source files that can contain refcounting code.
+ * <p>
+ * Files are memory-mapped and matched as raw bytes. A first scan collects {@code class X extends Y} declarations
+ * and grows the set of refcounted simple names from the seed names until it is closed; a second scan keeps the
+ * files mentioning one of those names or one of the refcounting methods. Names are simple names, so a same-named
+ * type elsewhere only adds a candidate. A file using a refcounted type without naming it (for example through a
+ * chained call) is missed.
+ */
+public class CandidateScanner {
+  private static final Logger logger = LoggerFactory.getLogger(CandidateScanner.class);
+  public static final List<String> METHODS = Arrays.asList("addRef", "freeRef", "addRefs", "freeRefs");
+  private static final Pattern DECLARATION = Pattern.compile("\\bclass\\s+(\\w+)(?:\\s*<[^{]*?>)?\\s+extends\\s+([\\w.]+)");
+  private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+  public CandidateScanner(@Nonnull Collection<String> seedNames) {
+    seedNames.stream().map(CandidateScanner::simpleName).forEach(names::add);
+  }
+
+  @NotNull
+  public static String simpleName(@Nonnull String name) {
+    return name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('$')) + 1);
+  }
+
+  @NotNull
+  public List<File> scan(@Nonnull Collection<File> files) {
+    return scan(files, CandidateScanner::read);
+  }
+
+  /**
+   * Scans content supplied by the reader, such as the in-memory sources of a {@link VirtualProject}.
+   */
+  @NotNull
+  public List<File> scan(@Nonnull Collection<File> files, @Nonnull Function<File, ? extends CharSequence> read) {
+    final Map<String, Set<String>> subclasses = new ConcurrentHashMap<>();
+    files.parallelStream().forEach(file -> {
+      final Matcher matcher = DECLARATION.matcher(read.apply(file));
+      while (matcher.find()) {
+        subclasses.computeIfAbsent(simpleName(matcher.group(2)), k -> ConcurrentHashMap.newKeySet()).add(matcher.group(1));
+      }
+    });
+    final Deque<String> queue = new ArrayDeque<>(names);
+    while (!queue.isEmpty()) {
+      for (String subclass : subclasses.getOrDefault(queue.pop(), Collections.emptySet())) {
+        if (names.add(subclass)) queue.add(subclass);
+      }
+    }
+    final Pattern mention = Pattern.compile("\\b(?:" + Stream.concat(METHODS.stream(), names.stream())
+        .map(Pattern::quote).collect(Collectors.joining("|")) + ")\\b");
+    final List<File> candidates = files.parallelStream()
+        .filter(file -> mention.matcher(read.apply(file)).find())
+        .collect(Collectors.toList());
+    logger.info(String.format("Pre-scan selected %d of %d files (%d refcounted type names)", candidates.size(), files.size(), names.size()));
+    return candidates;
+  }
+
+  @NotNull
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * Maps the file and views its bytes as Latin-1 characters, without copying them. Identifiers matched here are
+   * ASCII, so no UTF-8 decoding is needed. The mapping is released with the view, so each pass maps the file
+   * again rather than holding a mapping per file for the whole scan.
+   */
+  @NotNull
+  private static CharSequence read(@Nonnull File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return new Latin1Chars(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final class Latin1Chars implements CharSequence {
+    private final ByteBuffer bytes;
+
+    Latin1Chars(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int length() {
+      return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (bytes.get(index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      final ByteBuffer range = bytes.duplicate();
+      range.position(start);
+      range.limit(end);
+      return new Latin1Chars(range.slice());
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      final byte[] chars = new byte[length()];
+      bytes.duplicate().get(chars);
+      return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Sampled CPU profile reduced to per-method sample counts, keyed by {@code binary.ClassName.method}.
+ * <p>
+ * Reads collapsed stacks ({@code root;...;leaf count}, as written by async-profiler or FlameGraph's stackcollapse
+ * scripts) or a JFR recording, whose {@code jdk.ExecutionSample} events are read through the {@code jdk.jfr}
+ * consumer API when the running JVM provides it. Samples landing in a refcounting method are also charged to the
+ * nearest caller outside the refcounting methods, as that caller's refcount cost.
+ */
+public class HotMethodProfile {
+  public static final List<String> REFCOUNT_METHODS = Arrays.asList("addRef", "freeRef", "addRefs", "freeRefs", "_free");
+  private final Map<String, LongAdder> total = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> refcount = new ConcurrentHashMap<>();
+  private final AtomicLong samples = new AtomicLong();
+
+  @NotNull
+  public static HotMethodProfile load(@Nonnull File file) {
+    final HotMethodProfile profile = new HotMethodProfile();
+    if (file.getName().endsWith(".jfr")) {
+      profile.addRecording(file);
+    } else {
+      profile.addCollapsed(file);
+    }
+    return profile;
+  }
+
+  @NotNull
+  public static String key(@Nonnull IMethodBinding methodBinding) {
+    return methodBinding.getDeclaringClass().getErasure().getBinaryName() + "." + methodBinding.getName();
+  }
+
+  /**
+   * Normalizes a profiler frame: slashes become dots, and argument lists and async-profiler's frame type suffixes
+   * ({@code _[j]}, {@code _[i]}, ...) are dropped.
+   */
+  @NotNull
+  public static String normalize(@Nonnull String frame) {
+    String name = frame.trim();
+    if (name.endsWith("]") && name.contains("_[")) name = name.substring(0, name.lastIndexOf("_["));
+    if (name.contains("(")) name = name.substring(0, name.indexOf('('));
+    return name.replace('/', '.').replace("::", ".");
+  }
+
+  public void addCollapsed(@Nonnull File file) {
+    try {
+      for (String line : FileUtils.readLines(file, "UTF-8")) {
+        final int split = line.lastIndexOf(' ');
+        if (split <= 0) continue;
+        final long count;
+        try {
+          count = Long.parseLong(line.substring(split + 1).trim());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        add(Arrays.stream(line.substring(0, split).split(";")).map(HotMethodProfile::normalize).collect(Collectors.toList()), count);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void addRecording(@Nonnull File file) {
+    try {
+      final Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+      final List<?> events = (List<?>) recordingFile.getMethod("readAllEvents", java.nio.file.Path.class).invoke(null, file.toPath());
+      for (Object event : events) {
+        final Object eventType = invoke(event, "getEventType");
+        if (!"jdk.ExecutionSample".equals(invoke(eventType, "getName"))) continue;
+        final Object stackTrace = invoke(event, "getStackTrace");
+        if (null == stackTrace) continue;
+        final List<String> stack = new ArrayList<>();
+        for (Object frame : (List<?>) invoke(stackTrace, "getFrames")) {
+          final Object method = invoke(frame, "getMethod");
+          stack.add(0, invoke(invoke(method, "getType"), "getName") + "." + invoke(method, "getName"));
+        }
+        add(stack, 1);
+      }
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Reading JFR recordings requires a JVM with the jdk.jfr module; use collapsed stacks instead", e);
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Object invoke(Object target, String methodName) throws ReflectiveOperationException {
+    final Method method = target.getClass().getMethod(methodName);
+    method.setAccessible(true);
+    return method.invoke(target);
+  }
+
+  /**
+   * Adds one sampled stack, ordered from the root frame to the leaf frame.
+   */
+  public void add(@Nonnull List<String> stack, long count) {
+    samples.addAndGet(count);
+    new HashSet<>(stack).forEach(frame -> total.computeIfAbsent(frame, k -> new LongAdder()).add(count));
+    for (int i = 1; i < stack.size(); i++) {
+      if (isRefcountFrame(stack.get(i)) && !isRefcountFrame(stack.get(i - 1))) {
+        refcount.computeIfAbsent(stack.get(i - 1), k -> new LongAdder()).add(count);
+        break;
+      }
+    }
+  }
+
+  private static boolean isRefcountFrame(String frame) {
+    return REFCOUNT_METHODS.contains(frame.substring(frame.lastIndexOf('.') + 1));
+  }
+
+  public long getSamples() {
+    return samples.get();
+  }
+
+  public long getSamples(@Nonnull String key) {
+    final LongAdder adder = total.get(key);
+    return null == adder ? 0 : adder.sum();
+  }
+
+  public long getRefcountSamples(@Nonnull String key) {
+    final LongAdder adder = refcount.get(key);
+    return null == adder ? 0 : adder.sum();
+  }
+
+  /**
+   * A method is hot when at least the given fraction of all samples has it on the stack.
+   */
+  public boolean isHot(@Nonnull String key, double fraction) {
+    return samples.get() > 0 && getSamples(key) >= fraction * samples.get();
+  }
+
+  /**
+   * Methods by descending refcount cost.
+   */
+  @NotNull
+  public List<String> rankRefcountCost() {
+    return refcount.keySet().stream()
+        .sorted(Comparator.comparingLong(this::getRefcountSamples).reversed())
+        .collect(Collectors.toList());
+  }
+}
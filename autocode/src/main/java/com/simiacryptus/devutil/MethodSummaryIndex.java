@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Ownership summary of each statically bound method, keyed by binding key.
+ * <p>
+ * For each refcounted parameter, a summary records what the method body itself does with it, and which
+ * consuming callees it is passed to. {@link #solve()} propagates callee effects to callers: a parameter stays
+ * borrowed only while every callee it reaches borrows it too. The solution starts optimistic and only
+ * ever weakens, so recursion that merely reads its argument stays borrowed. Summaries carry a hash of the
+ * method source and of the callee facts its effects rest on, so unchanged methods are not re-analysed on later
+ * runs.
+ */
+public class MethodSummaryIndex {
+  private final Map<String, Summary> summaries = new ConcurrentHashMap<>();
+
+  @NotNull
+  public static String hash(@Nonnull String source) {
+    final CRC32 crc32 = new CRC32();
+    crc32.update(source.getBytes(StandardCharsets.UTF_8));
+    return Long.toHexString(crc32.getValue());
+  }
+
+  @NotNull
+  public static String call(@Nonnull String key, int index) {
+    return key + "#" + index;
+  }
+
+  public boolean isCurrent(@Nonnull String key, @Nonnull String hash) {
+    final Summary summary = summaries.get(key);
+    return null != summary && hash.equals(summary.hash);
+  }
+
+  public void put(@Nonnull String key, @Nonnull Summary summary) {
+    summaries.put(key, summary);
+  }
+
+  public Summary get(@Nonnull String key) {
+    return summaries.get(key);
+  }
+
+  public void retainAll(@Nonnull Collection<String> keys) {
+    summaries.keySet().retainAll(keys);
+  }
+
+  /**
+   * Drops the summaries of methods declared by the given types or types nested in them, by binary name.
+   */
+  public void invalidate(@Nonnull Collection<String> declaredTypes) {
+    summaries.keySet().removeIf(key -> {
+      final int end = key.indexOf(';');
+      if (!key.startsWith("L") || end < 0) return false;
+      String type = key.substring(1, end);
+      if (type.contains("<")) type = type.substring(0, type.indexOf('<'));
+      return TypeHierarchyIndex.isDeclared(type.replace('/', '.'), declaredTypes);
+    });
+  }
+
+  public boolean isBorrowed(@Nonnull String key, int index) {
+    final Summary summary = summaries.get(key);
+    if (null == summary || null == summary.effects || summary.effects.isEmpty()) return false;
+    return summary.effects.get(Math.min(index, summary.effects.size() - 1)) == Effect.BORROW;
+  }
+
+  public void solve() {
+    summaries.values().forEach(summary -> summary.effects = new ArrayList<>(summary.local));
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Summary summary : summaries.values()) {
+        for (int i = 0; i < summary.effects.size(); i++) {
+          if (summary.effects.get(i) != Effect.BORROW) continue;
+          for (String call : summary.calls.get(i)) {
+            final int split = call.lastIndexOf('#');
+            if (!isBorrowed(call.substring(0, split), Integer.parseInt(call.substring(split + 1)))) {
+              summary.effects.set(i, Effect.RELEASE);
+              changed = true;
+              break;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    summaries.clear();
+  }
+
+  public int size() {
+    return summaries.size();
+  }
+
+  public void save(@Nonnull File file) {
+    try {
+      FileUtils.write(file, new GsonBuilder().setPrettyPrinting().create().toJson(new TreeMap<>(summaries)), "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  public static MethodSummaryIndex load(@Nonnull File file) {
+    final MethodSummaryIndex index = new MethodSummaryIndex();
+    try {
+      final Map<String, Summary> map = new Gson().fromJson(FileUtils.readFileToString(file, "UTF-8"), new TypeToken<Map<String, Summary>>() {
+      }.getType());
+      if (null != map) index.summaries.putAll(map);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return index;
+  }
+
+  public enum Effect {
+    BORROW,
+    RELEASE,
+    RETAIN,
+    RETURN
+  }
+
+  public static class Summary {
+    public String hash;
+    public List<Effect> local = new ArrayList<>();
+    public List<List<String>> calls = new ArrayList<>();
+    public List<Effect> effects = new ArrayList<>();
+
+    public Summary() {
+    }
+
+    public Summary(String hash) {
+      this.hash = hash;
+    }
+
+    public Summary add(Effect effect, List<String> calls) {
+      this.local.add(effect);
+      this.calls.add(calls);
+      return this;
+    }
+  }
+}
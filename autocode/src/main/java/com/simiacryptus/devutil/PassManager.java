@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Runs an ordered list of passes, fusing consecutive passes into a single traversal per unit where allowed.
+ * <p>
+ * A pass handles the node types whose {@code visit}/{@code endVisit} methods its visitor class overrides. It may
+ * also name passes it runs after: their output must be re-parsed (and bound) before it runs. A pass joins the
+ * current traversal when its node types are disjoint from those already in it and it runs after none of them;
+ * otherwise it starts the next traversal. Within a traversal, each node is dispatched to the passes handling its
+ * type in declaration order. Nodes a pass inserts after the current position are seen by the other passes of
+ * the traversal without bindings, as they would be by the pass itself.
+ */
+public class PassManager {
+  private static final Logger logger = LoggerFactory.getLogger(PassManager.class);
+  private static final Map<Class<?>, Set<Class<?>>> nodeTypeCache = new ConcurrentHashMap<>();
+  private final List<Pass> passes = new ArrayList<>();
+  private boolean fuse = true;
+
+  @NotNull
+  public PassManager add(@Nonnull String name, @Nonnull Class<? extends ASTVisitor> type, @Nonnull BiFunction<CompilationUnit, File, ASTVisitor> factory, String... after) {
+    passes.add(new Pass(name, nodeTypes(type), factory, new HashSet<>(Arrays.asList(after))));
+    return this;
+  }
+
+  public boolean isFuse() {
+    return fuse;
+  }
+
+  public PassManager setFuse(boolean fuse) {
+    this.fuse = fuse;
+    return this;
+  }
+
+  @NotNull
+  public List<List<Pass>> schedule() {
+    final List<List<Pass>> groups = new ArrayList<>();
+    List<Pass> group = new ArrayList<>();
+    for (Pass pass : passes) {
+      if (!group.isEmpty() && (!fuse || !canJoin(group, pass))) {
+        groups.add(group);
+        group = new ArrayList<>();
+      }
+      group.add(pass);
+    }
+    if (!group.isEmpty()) groups.add(group);
+    return groups;
+  }
+
+  private static boolean canJoin(List<Pass> group, Pass pass) {
+    for (Pass member : group) {
+      if (pass.after.contains(member.name)) return false;
+      if (!Collections.disjoint(member.nodeTypes, pass.nodeTypes)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Applies the scheduled traversals in order and returns the number of file changes over all of them.
+   */
+  public int run(@Nonnull AutoCoder autoCoder) {
+    int changed = 0;
+    for (List<Pass> group : schedule()) {
+      logger.info(String.format("Traversal: %s", group.stream().map(pass -> pass.name).collect(Collectors.joining(" + "))));
+      if (group.size() == 1) {
+        changed += autoCoder.apply(group.get(0).factory);
+      } else {
+        changed += autoCoder.apply((cu, file) -> new FusedVisitor(group.stream()
+            .map(pass -> pass.factory.apply(cu, file))
+            .collect(Collectors.toList())));
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Node types handled by a visitor class: those it overrides {@code visit} or {@code endVisit} for.
+   */
+  @NotNull
+  public static Set<Class<?>> nodeTypes(@Nonnull Class<?> visitorClass) {
+    return nodeTypeCache.computeIfAbsent(visitorClass, type -> {
+      final Set<Class<?>> nodeTypes = new HashSet<>();
+      for (Class<?> c = type; null != c && c != ASTVisitor.class; c = c.getSuperclass()) {
+        for (Method method : c.getDeclaredMethods()) {
+          if (!method.getName().equals("visit") && !method.getName().equals("endVisit")) continue;
+          if (method.getParameterCount() != 1 || !ASTNode.class.isAssignableFrom(method.getParameterTypes()[0])) continue;
+          nodeTypes.add(method.getParameterTypes()[0]);
+        }
+      }
+      return Collections.unmodifiableSet(nodeTypes);
+    });
+  }
+
+  public static class Pass {
+    public final String name;
+    public final Set<Class<?>> nodeTypes;
+    public final BiFunction<CompilationUnit, File, ASTVisitor> factory;
+    public final Set<String> after;
+
+    public Pass(String name, Set<Class<?>> nodeTypes, BiFunction<CompilationUnit, File, ASTVisitor> factory, Set<String> after) {
+      this.name = name;
+      this.nodeTypes = nodeTypes;
+      this.factory = factory;
+      this.after = after;
+    }
+  }
+
+  /**
+   * Forwards one traversal to several visitors. A member whose {@code preVisit2} or {@code visit} returns false
+   * skips that subtree while the others continue into it. The time spent in each member, and whether it modified
+   * the tree, are tracked per member so a traversal's metrics can be attributed to its passes.
+   */
+  public static class FusedVisitor extends ASTVisitor {
+    public final List<ASTVisitor> members;
+    private final List<Set<Class<?>>> memberTypes;
+    private final ASTNode[] skippedAt;
+    private final boolean[] endVisitDue;
+    private final long[] nanos;
+    private final boolean[] changed;
+    private int current = -1;
+    private long modifications;
+
+    public FusedVisitor(@Nonnull List<ASTVisitor> members) {
+      this.members = members;
+      this.memberTypes = members.stream().map(member -> nodeTypes(member.getClass())).collect(Collectors.toList());
+      this.skippedAt = new ASTNode[members.size()];
+      this.endVisitDue = new boolean[members.size()];
+      this.nanos = new long[members.size()];
+      this.changed = new boolean[members.size()];
+    }
+
+    @Override
+    public boolean preVisit2(ASTNode node) {
+      for (int i = 0; i < members.size(); i++) {
+        if (null != skippedAt[i]) continue;
+        final ASTVisitor member = members.get(i);
+        final long startTime = start(i, node);
+        if (!member.preVisit2(node)) {
+          skippedAt[i] = node;
+          endVisitDue[i] = false;
+        } else if (memberTypes.get(i).contains(node.getClass()) && !NodeDispatch.visit(member, node)) {
+          skippedAt[i] = node;
+          endVisitDue[i] = true;
+        }
+        end(i, node, startTime);
+      }
+      return true;
+    }
+
+    @Override
+    public void postVisit(ASTNode node) {
+      for (int i = 0; i < members.size(); i++) {
+        if (null != skippedAt[i]) {
+          if (skippedAt[i] != node) continue;
+          skippedAt[i] = null;
+          if (!endVisitDue[i]) continue;
+        }
+        final ASTVisitor member = members.get(i);
+        final long startTime = start(i, node);
+        if (memberTypes.get(i).contains(node.getClass())) NodeDispatch.endVisit(member, node);
+        member.postVisit(node);
+        end(i, node, startTime);
+      }
+    }
+
+    private long start(int member, ASTNode node) {
+      current = member;
+      modifications = node.getAST().modificationCount();
+      return System.nanoTime();
+    }
+
+    private void end(int member, ASTNode node, long startTime) {
+      nanos[member] += System.nanoTime() - startTime;
+      if (node.getAST().modificationCount() != modifications) changed[member] = true;
+    }
+
+    /**
+     * Time spent in the member's callbacks, excluding the shared traversal.
+     */
+    public long getNanos(int member) {
+      return nanos[member];
+    }
+
+    /**
+     * Whether the member modified the tree.
+     */
+    public boolean isChanged(int member) {
+      return changed[member];
+    }
+
+    /**
+     * The member called most recently; after a failed traversal, the one that failed.
+     */
+    @Nullable
+    public ASTVisitor getCurrent() {
+      return current < 0 ? null : members.get(current);
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.*;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Report-only mode: checks existing refcounted code for missing or double releases, use after release,
+ * and field overwrites that leak the previous value. Files are parsed and checked in parallel chunks;
+ * nothing is rewritten. Findings are written as SARIF.
+ * <p>
+ * Field overwrites are only checked where {@link ModifyFieldSets} would release the previous value, as decided by
+ * {@link #isReleasingFieldSet(Assignment)}, so code the autocoder wrote is not reported for sets it leaves alone.
+ */
+public class RefAnalyzer extends RefAutoCoder {
+  private static final List<String> GENERATED_METHODS = Arrays.asList("addRef", "freeRef", "addRefs", "freeRefs", "_free");
+  private final Queue<Finding> findings = new ConcurrentLinkedQueue<>();
+  private File reportFile = null;
+
+  public RefAnalyzer(String pathname) {
+    super(pathname);
+    setVerbose(false);
+  }
+
+  public RefAnalyzer(SimpleMavenProject project) {
+    super(project);
+    setVerbose(false);
+  }
+
+  public static void main(String... args) {
+    final RefAnalyzer analyzer = new RefAnalyzer(args[0]);
+    if (args.length > 1) analyzer.setReportFile(new File(args[1]));
+    analyzer.apply();
+    if (!analyzer.getFindings().isEmpty()) System.exit(1);
+  }
+
+  @Override
+  @Nonnull
+  public void apply() {
+    analyze();
+    if (null != reportFile) {
+      try {
+        FileUtils.write(reportFile, toSarif(), "UTF-8");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    findings.forEach(finding -> logger.warn(finding.toString()));
+    report();
+  }
+
+  @NotNull
+  public List<Finding> analyze() {
+    findings.clear();
+    final List<File> files = null == getScope() ? project.getSourceFiles() : new ArrayList<>(getScope());
+    final int chunkSize = getBatchSize() > 0 ? getBatchSize() : 64;
+    final List<List<File>> chunks = new ArrayList<>();
+    for (int i = 0; i < files.size(); i += chunkSize) {
+      chunks.add(files.subList(i, Math.min(files.size(), i + chunkSize)));
+    }
+    chunks.parallelStream().forEach(chunk -> parse(chunk).forEach((file, compilationUnit) -> {
+      final long startTime = System.nanoTime();
+      final Analysis analysis = new Analysis(compilationUnit, file);
+      compilationUnit.accept(analysis);
+      final AutoCoderMetrics.PassMetrics passMetrics = metrics.get(Analysis.class);
+      passMetrics.nodes.add(analysis.nodesVisited);
+      passMetrics.files.increment();
+      passMetrics.nanos.add(System.nanoTime() - startTime);
+    }));
+    return getFindings();
+  }
+
+  @NotNull
+  public List<Finding> getFindings() {
+    return findings.stream().sorted(Comparator.comparing((Finding x) -> x.file).thenComparingInt(x -> x.line)).collect(Collectors.toList());
+  }
+
+  @NotNull
+  public String toSarif() {
+    final Map<String, Object> driver = new LinkedHashMap<>();
+    driver.put("name", "RefAnalyzer");
+    driver.put("rules", Arrays.stream(Rule.values()).map(rule -> {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("id", rule.id);
+      map.put("shortDescription", Collections.singletonMap("text", rule.description));
+      return map;
+    }).collect(Collectors.toList()));
+    final List<Map<String, Object>> results = getFindings().stream().map(finding -> {
+      final Map<String, Object> region = new LinkedHashMap<>();
+      region.put("startLine", finding.line);
+      final Map<String, Object> physicalLocation = new LinkedHashMap<>();
+      physicalLocation.put("artifactLocation", Collections.singletonMap("uri", output.relative(finding.file)));
+      physicalLocation.put("region", region);
+      final Map<String, Object> result = new LinkedHashMap<>();
+      result.put("ruleId", finding.rule.id);
+      result.put("level", finding.rule.level);
+      result.put("message", Collections.singletonMap("text", finding.message));
+      result.put("locations", Collections.singletonList(Collections.singletonMap("physicalLocation", physicalLocation)));
+      return result;
+    }).collect(Collectors.toList());
+    final Map<String, Object> run = new LinkedHashMap<>();
+    run.put("tool", Collections.singletonMap("driver", driver));
+    run.put("results", results);
+    final Map<String, Object> sarif = new LinkedHashMap<>();
+    sarif.put("version", "2.1.0");
+    sarif.put("$schema", "https://json.schemastore.org/sarif-2.1.0.json");
+    sarif.put("runs", Collections.singletonList(run));
+    return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(sarif);
+  }
+
+  public File getReportFile() {
+    return reportFile;
+  }
+
+  public RefAnalyzer setReportFile(File reportFile) {
+    this.reportFile = reportFile;
+    return this;
+  }
+
+  public enum Rule {
+    MissingFreeRef("missing-freeRef", "error", "Owned reference is never released"),
+    DoubleFreeRef("double-freeRef", "error", "Reference is released twice"),
+    UseAfterRelease("use-after-release", "error", "Reference is used after its last release"),
+    LeakedFieldOverwrite("leaked-field-overwrite", "warning", "Field is overwritten without releasing the previous value");
+
+    public final String id;
+    public final String level;
+    public final String description;
+
+    Rule(String id, String level, String description) {
+      this.id = id;
+      this.level = level;
+      this.description = description;
+    }
+  }
+
+  public static class Finding {
+    public final Rule rule;
+    public final File file;
+    public final int line;
+    public final String message;
+
+    public Finding(Rule rule, File file, int line, String message) {
+      this.rule = rule;
+      this.file = file;
+      this.line = line;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("(%s:%d) %s: %s", file.getName(), line, rule.id, message);
+    }
+  }
+
+  protected class Analysis extends FileAstVisitor {
+
+    public Analysis(CompilationUnit compilationUnit, File file) {
+      super(compilationUnit, file);
+    }
+
+    private void addFinding(Rule rule, ASTNode node, String message) {
+      findings.add(new Finding(rule, file, compilationUnit.getLineNumber(node.getStartPosition()), message));
+      metrics.get(Analysis.class).warning(rule.id);
+    }
+
+    @Override
+    public void endVisit(MethodDeclaration node) {
+      if (null == node.getBody() || GENERATED_METHODS.contains(node.getName().getIdentifier())) return;
+      final IMethodBinding methodBinding = node.resolveBinding();
+      final List parameters = node.parameters();
+      for (int i = 0; i < parameters.size(); i++) {
+        if (null != methodBinding && isBorrowed(methodBinding, i)) continue;
+        checkReleased((VariableDeclaration) parameters.get(i), node.getBody());
+      }
+    }
+
+    @Override
+    public void endVisit(LambdaExpression node) {
+      if (!(node.getBody() instanceof Block)) return;
+      for (Object parameter : node.parameters()) {
+        checkReleased((VariableDeclaration) parameter, (Block) node.getBody());
+      }
+    }
+
+    @Override
+    public void endVisit(VariableDeclarationStatement node) {
+      if (!(node.getParent() instanceof Block)) return;
+      for (Object fragment : node.fragments()) {
+        if (isBorrowedLocal((VariableDeclaration) fragment, (Block) node.getParent())) continue;
+        checkReleased((VariableDeclaration) fragment, (Block) node.getParent());
+      }
+    }
+
+    @Override
+    public void endVisit(Block node) {
+      final Map<IBinding, Statement> released = new HashMap<>();
+      for (Object next : node.statements()) {
+        final Statement statement = (Statement) next;
+        final IBinding releasedVariable = releasedVariable(statement);
+        for (IBinding variable : new ArrayList<>(released.keySet())) {
+          if (variable.equals(releasedVariable)) {
+            addFinding(Rule.DoubleFreeRef, statement, String.format("%s was already released at line %d",
+                variable.getName(), compilationUnit.getLineNumber(released.get(variable).getStartPosition())));
+            released.remove(variable);
+          } else if (isReassigned(statement, variable)) {
+            released.remove(variable);
+          } else if (contains(statement, variable)) {
+            addFinding(Rule.UseAfterRelease, statement, String.format("%s is used after release at line %d",
+                variable.getName(), compilationUnit.getLineNumber(released.get(variable).getStartPosition())));
+            released.remove(variable);
+          }
+        }
+        if (null != releasedVariable && !released.containsKey(releasedVariable)) {
+          released.put(releasedVariable, statement);
+        }
+      }
+    }
+
+    @Override
+    public void endVisit(Assignment node) {
+      if (!isReleasingFieldSet(node)) return;
+      final IVariableBinding field = ((FieldAccess) node.getLeftHandSide()).resolveFieldBinding();
+      if (null == field || !isRefCounted(field.getType())) return;
+      if (node.getRightHandSide() instanceof NullLiteral) return;
+      final MethodDeclaration method = enclosingMethod(node);
+      if (null == method || method.isConstructor()) return;
+      final Statement previous = previousStatement(node);
+      if (null == previous || !releasesField(previous, field)) {
+        addFinding(Rule.LeakedFieldOverwrite, node, String.format("%s is overwritten without releasing its previous value", field.getName()));
+      }
+    }
+
+    private void checkReleased(VariableDeclaration declaration, Block scope) {
+      final IVariableBinding binding = declaration.resolveBinding();
+      if (null == binding || !isRefCounted(binding.getType())) return;
+      final AtomicBoolean handled = new AtomicBoolean(false);
+      scope.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(SimpleName node) {
+          if (handled.get() || !binding.equals(node.resolveBinding())) return;
+          if (isOwnershipSink(node)) handled.set(true);
+        }
+      });
+      if (!handled.get()) {
+        addFinding(Rule.MissingFreeRef, declaration, String.format("%s (%s) is never released", binding.getName(), binding.getType().getName()));
+      }
+    }
+
+    private boolean isOwnershipSink(SimpleName name) {
+      final ASTNode parent = name.getParent();
+      if (parent instanceof MethodInvocation) {
+        final MethodInvocation invocation = (MethodInvocation) parent;
+        if (invocation.getExpression() == name) return invocation.getName().getIdentifier().equals("freeRef");
+        if (invocation.getName().getIdentifier().equals("freeRefs")) return true;
+        final IMethodBinding methodBinding = invocation.resolveMethodBinding();
+        return null != methodBinding && consumesArg(methodBinding, invocation.arguments().indexOf(name));
+      } else if (parent instanceof ClassInstanceCreation) {
+        final ClassInstanceCreation creation = (ClassInstanceCreation) parent;
+        final IMethodBinding methodBinding = creation.resolveConstructorBinding();
+        return null != methodBinding && consumesArg(methodBinding, creation.arguments().indexOf(name));
+      } else if (parent instanceof ReturnStatement || parent instanceof ArrayInitializer) {
+        return true;
+      } else if (parent instanceof Assignment) {
+        return ((Assignment) parent).getRightHandSide() == name;
+      } else if (parent instanceof VariableDeclarationFragment) {
+        return ((VariableDeclarationFragment) parent).getInitializer() == name;
+      }
+      for (ASTNode node = parent; null != node && !(node instanceof BodyDeclaration); node = node.getParent()) {
+        if (node instanceof LambdaExpression || node instanceof AnonymousClassDeclaration) return true;
+      }
+      return false;
+    }
+
+    private IBinding releasedVariable(Statement statement) {
+      if (!(statement instanceof ExpressionStatement)) return null;
+      final Expression expression = ((ExpressionStatement) statement).getExpression();
+      if (!(expression instanceof MethodInvocation)) return null;
+      final MethodInvocation invocation = (MethodInvocation) expression;
+      final String methodName = invocation.getName().getIdentifier();
+      final Expression subject;
+      if (methodName.equals("freeRef") && invocation.arguments().isEmpty()) {
+        subject = invocation.getExpression();
+      } else if (methodName.equals("freeRefs") && invocation.arguments().size() == 1) {
+        subject = (Expression) invocation.arguments().get(0);
+      } else {
+        return null;
+      }
+      if (!(subject instanceof SimpleName)) return null;
+      final IBinding binding = ((SimpleName) subject).resolveBinding();
+      if (binding instanceof IVariableBinding && !((IVariableBinding) binding).isField()) return binding;
+      return null;
+    }
+
+    private boolean isReassigned(Statement statement, IBinding variable) {
+      if (!(statement instanceof ExpressionStatement)) return false;
+      final Expression expression = ((ExpressionStatement) statement).getExpression();
+      if (!(expression instanceof Assignment)) return false;
+      final Assignment assignment = (Assignment) expression;
+      return assignment.getLeftHandSide() instanceof SimpleName
+          && variable.equals(((SimpleName) assignment.getLeftHandSide()).resolveBinding())
+          && !contains(assignment.getRightHandSide(), variable);
+    }
+
+    private IVariableBinding fieldBinding(Expression expression) {
+      final IVariableBinding binding;
+      if (expression instanceof FieldAccess) {
+        binding = ((FieldAccess) expression).resolveFieldBinding();
+      } else if (expression instanceof Name) {
+        final IBinding nameBinding = ((Name) expression).resolveBinding();
+        binding = nameBinding instanceof IVariableBinding ? (IVariableBinding) nameBinding : null;
+      } else {
+        binding = null;
+      }
+      return null != binding && binding.isField() ? binding : null;
+    }
+
+    private boolean releasesField(Statement statement, IVariableBinding field) {
+      final AtomicBoolean found = new AtomicBoolean(false);
+      statement.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(MethodInvocation node) {
+          final String methodName = node.getName().getIdentifier();
+          final Expression subject;
+          if (methodName.equals("freeRef")) {
+            subject = node.getExpression();
+          } else if (methodName.equals("freeRefs") && node.arguments().size() == 1) {
+            subject = (Expression) node.arguments().get(0);
+          } else {
+            return;
+          }
+          if (null != subject && field.equals(fieldBinding(subject))) found.set(true);
+        }
+      });
+      return found.get();
+    }
+
+    private MethodDeclaration enclosingMethod(ASTNode node) {
+      ASTNode parent = node.getParent();
+      while (null != parent && !(parent instanceof MethodDeclaration)) parent = parent.getParent();
+      return (MethodDeclaration) parent;
+    }
+
+    private Statement previousStatement(ASTNode node) {
+      final ASTNode statement = node.getParent();
+      if (!(statement instanceof ExpressionStatement) || !(statement.getParent() instanceof Block)) return null;
+      final List statements = ((Block) statement.getParent()).statements();
+      final int index = statements.indexOf(statement);
+      return index > 0 ? (Statement) statements.get(index - 1) : null;
+    }
+  }
+}
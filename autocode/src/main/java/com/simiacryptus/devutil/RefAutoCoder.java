@@ -19,6 +19,12 @@
 
 package com.simiacryptus.devutil;
 
+import com.simiacryptus.devutil.ref.RefBorrow;
+import com.simiacryptus.devutil.ref.RefConsume;
+import com.simiacryptus.devutil.ref.RefLeakGuard;
+import com.simiacryptus.devutil.ref.RefReleaser;
+import com.simiacryptus.devutil.ref.RefReturnsOwned;
+import com.simiacryptus.devutil.ref.RefStream;
 import com.simiacryptus.lang.ref.ReferenceCountingBase;
 import org.eclipse.jdt.core.dom.*;
 import org.jetbrains.annotations.NotNull;
@@ -26,36 +32,172 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.Nonnull;
 import java.io.File;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
-import java.util.Random;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 public class RefAutoCoder extends AutoCoder {
+  public static final String CONSUMING_PACKAGE = "com.simiacryptus";
+  public static final String LEAK_TOKEN = "_leakToken";
+  public static final List<String> BORROWING_METHODS = Arrays.asList("toString", "equals", "hashCode", "compareTo", "compare");
 
   private boolean verbose = true;
   private boolean addRefcounting = true;
+  private boolean controlFlowPlacement = false;
+  private boolean wrapStreams = false;
+  private boolean prefilter = false;
+  private boolean fusePasses = true;
+  private boolean deferredRelease = false;
+  private boolean leakGuard = false;
+  private VariantBuild variants = null;
+  private int maxInlineIterations = 100;
+  private HotMethodProfile profile = null;
+  private double hotFraction = 0.01;
+  private final Map<String, int[]> hotSites = new ConcurrentHashMap<>();
+  private MethodSummaryIndex summaries = null;
+  private File summaryFile = null;
   private Random random = new Random();
+  private final Map<File, Long> inlineNanos = new ConcurrentHashMap<>();
+  private final Set<File> inlineExpired = ConcurrentHashMap.newKeySet();
 
   public RefAutoCoder(String pathname) {
     super(pathname);
   }
 
+  public RefAutoCoder(String pathname, boolean resolveDependencies) {
+    super(pathname, resolveDependencies);
+  }
+
+  public RefAutoCoder(SimpleMavenProject project) {
+    super(project);
+  }
+
   @Override
   @Nonnull
   public void apply() {
-    if (isVerbose()) apply((cu, file) -> new LogNodes(cu, file));
-    apply((cu, file) -> new RemoveRefs(cu, file));
-    while(apply((cu, file) -> new InlineRefs(cu, file))>0) {};
-    if (isAddRefcounting()) {
-      apply((cu, file) -> new InsertMethods(cu, file));
-      apply((cu, file) -> new InsertAddRefs(cu, file));
-      apply((cu, file) -> new ModifyFieldSets(cu, file));
-      apply((cu, file) -> new InsertFreeRefs(cu, file));
+    rewrite();
+    complete();
+    if (null != variants) {
+      if (isAddRefcounting()) variants.export(VariantBuild.REFCOUNTED, output);
+      variants.writeProfile();
+    }
+    flush();
+    report();
+  }
+
+  protected void rewrite() {
+    final Collection<File> scope = getScope();
+    if (isPrefilter()) setScope(candidates());
+    try {
+      apply((cu, file) -> new RemoveRefs(cu, file));
+      inlineRefs();
+      if (null != variants) variants.export(VariantBuild.STRIPPED, output);
+      if (isAddRefcounting()) {
+        if (null != summaries) summarize();
+        if (isWrapStreams()) apply((cu, file) -> new WrapStreams(cu, file));
+        new PassManager().setFuse(isFusePasses())
+            .add("InsertMethods", InsertMethods.class, (cu, file) -> new InsertMethods(cu, file))
+            .add("InsertAddRefs", InsertAddRefs.class, (cu, file) -> new InsertAddRefs(cu, file))
+            .add("ModifyFieldSets", ModifyFieldSets.class, (cu, file) -> new ModifyFieldSets(cu, file))
+            .add("InsertFreeRefs", InsertFreeRefs.class, (cu, file) -> new InsertFreeRefs(cu, file), "InsertAddRefs", "ModifyFieldSets")
+            .run(this);
+        if (null != profile) {
+          hotSites.clear();
+          apply((cu, file) -> new ElideHotRefs(cu, file));
+          reportProfile();
+        }
+      }
+    } finally {
+      setScope(scope);
     }
   }
 
+  /**
+   * Logs the hot methods found in the source set, ranked by the samples charged to their refcounting calls.
+   * Expected savings assume each refcounting site in a method costs the same share of those samples.
+   */
+  protected void reportProfile() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-80s %10s %10s %6s %6s %10s%n", "Method", "Samples", "Refcount", "Sites", "Elided", "Saved"));
+    double saved = 0;
+    for (String key : profile.rankRefcountCost()) {
+      final int[] counts = hotSites.get(key);
+      if (null == counts) continue;
+      final double expected = counts[0] == 0 ? 0 : (double) profile.getRefcountSamples(key) * Math.min(counts[1], counts[0]) / counts[0];
+      saved += expected;
+      sb.append(String.format("%-80s %10d %10d %6d %6d %10.1f%n", key, profile.getSamples(key), profile.getRefcountSamples(key), counts[0], counts[1], expected));
+    }
+    logger.info(String.format("Profile-guided elision over %d hot methods, expected savings %.1f of %d samples (%.2f%%):%n%s",
+        hotSites.size(), saved, profile.getSamples(), 100.0 * saved / Math.max(1, profile.getSamples()), sb));
+  }
+
+  /**
+   * Files in scope that the textual pre-scan cannot rule out. Refcounted types already in the type index seed the
+   * scan along with ReferenceCountingBase itself. A virtual project is scanned from its in-memory sources.
+   */
+  @NotNull
+  protected List<File> candidates() {
+    final Set<String> seeds = new HashSet<>(typeIndex.subtypes(ReferenceCountingBase.class.getCanonicalName()));
+    seeds.add(ReferenceCountingBase.class.getCanonicalName());
+    final Collection<File> files = null == getScope() ? project.getSourceFiles() : getScope();
+    if (project.isVirtual()) return new CandidateScanner(seeds).scan(files, output::read);
+    return new CandidateScanner(seeds).scan(files);
+  }
+
+  /**
+   * Removes all refcounting code without resolving dependencies or bindings.
+   * RemoveRefs and InlineRefs only look at syntax, so each file is parsed on its own and files are processed in
+   * parallel. Returns the number of files changed. The file time budget bounds the inlining of each file across its
+   * iterations.
+   */
+  public int strip() {
+    inlineNanos.clear();
+    inlineExpired.clear();
+    final List<File> files = isPrefilter() ? candidates() : null == getScope() ? project.getSourceFiles() : new ArrayList<>(getScope());
+    final int changed = files.parallelStream().mapToInt(file -> {
+      boolean touched = applyUnbound(file, (cu, f) -> new RemoveRefs(cu, f));
+      int iterations = 0;
+      while (applyUnbound(file, (cu, f) -> new InlineRefs(cu, f))) {
+        touched = true;
+        if (++iterations >= maxInlineIterations) {
+          logger.warn(String.format("InlineRefs did not settle on %s after %d iterations", file, iterations));
+          break;
+        }
+      }
+      return touched ? 1 : 0;
+    }).sum();
+    flush();
+    report();
+    return changed;
+  }
+
+  /**
+   * Repeats InlineRefs until no file changes, or for at most {@link #getMaxInlineIterations()} iterations. A file
+   * that has used up the file time budget across iterations is left as it is.
+   */
+  protected void inlineRefs() {
+    inlineNanos.clear();
+    inlineExpired.clear();
+    for (int iteration = 1; apply((cu, file) -> new InlineRefs(cu, file)) > 0; iteration++) {
+      if (iteration >= maxInlineIterations) {
+        logger.warn(String.format("InlineRefs did not settle after %d iterations", iteration));
+        return;
+      }
+    }
+  }
+
+  protected void summarize() {
+    final Set<String> seen = ConcurrentHashMap.newKeySet();
+    apply((cu, file) -> new SummarizeMethods(cu, file, seen));
+    if (null == getScope() && null == getJournal()) summaries.retainAll(seen);
+    summaries.solve();
+    if (null != summaryFile) summaries.save(summaryFile);
+    logger.info(String.format("Method summaries cover %d methods", summaries.size()));
+  }
+
   public boolean isVerbose() {
     return verbose;
   }
@@ -74,6 +216,240 @@ public class RefAutoCoder extends AutoCoder {
     return this;
   }
 
+  public boolean isControlFlowPlacement() {
+    return controlFlowPlacement;
+  }
+
+  public RefAutoCoder setControlFlowPlacement(boolean controlFlowPlacement) {
+    this.controlFlowPlacement = controlFlowPlacement;
+    return this;
+  }
+
+  public boolean isWrapStreams() {
+    return wrapStreams;
+  }
+
+  public RefAutoCoder setWrapStreams(boolean wrapStreams) {
+    this.wrapStreams = wrapStreams;
+    return this;
+  }
+
+  public boolean isPrefilter() {
+    return prefilter;
+  }
+
+  public RefAutoCoder setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+    return this;
+  }
+
+  public boolean isDeferredRelease() {
+    return deferredRelease;
+  }
+
+  /**
+   * Generated {@code _free} methods release fields through {@link RefReleaser}, which can defer the cascade to a
+   * background releaser at runtime.
+   */
+  public RefAutoCoder setDeferredRelease(boolean deferredRelease) {
+    this.deferredRelease = deferredRelease;
+    return this;
+  }
+
+  public boolean isLeakGuard() {
+    return leakGuard;
+  }
+
+  /**
+   * Generated code registers refcounted instances with {@link RefLeakGuard} and marks them freed in {@code _free}.
+   */
+  public RefAutoCoder setLeakGuard(boolean leakGuard) {
+    this.leakGuard = leakGuard;
+    return this;
+  }
+
+  public VariantBuild getVariants() {
+    return variants;
+  }
+
+  /**
+   * Writes the stripped and refcounted versions of every source to separate roots under the given directory, from
+   * one run: the stripped version is captured once RemoveRefs and InlineRefs are done, and the refcounted one at
+   * the end, only when refcounting is being added. Rewrites are held in memory, so the working tree is left as it is. See {@link VariantBuild} for the
+   * layout and the generated build profile.
+   */
+  public RefAutoCoder setVariantsRoot(File root) {
+    this.variants = null == root ? null : new VariantBuild(project, root);
+    if (null != root) setOutput(SourceOutput.Mode.MEMORY, null);
+    return this;
+  }
+
+  public int getMaxInlineIterations() {
+    return maxInlineIterations;
+  }
+
+  public RefAutoCoder setMaxInlineIterations(int maxInlineIterations) {
+    this.maxInlineIterations = maxInlineIterations;
+    return this;
+  }
+
+  public boolean isRefcountRoot(@Nullable ITypeBinding typeBinding) {
+    if (null == typeBinding || null == typeBinding.getSuperclass()) return false;
+    return typeBinding.getSuperclass().getErasure().getQualifiedName().equals(ReferenceCountingBase.class.getCanonicalName());
+  }
+
+  public boolean isFusePasses() {
+    return fusePasses;
+  }
+
+  public RefAutoCoder setFusePasses(boolean fusePasses) {
+    this.fusePasses = fusePasses;
+    return this;
+  }
+
+  public HotMethodProfile getProfile() {
+    return profile;
+  }
+
+  public RefAutoCoder setProfile(HotMethodProfile profile) {
+    this.profile = profile;
+    return this;
+  }
+
+  public double getHotFraction() {
+    return hotFraction;
+  }
+
+  public RefAutoCoder setHotFraction(double hotFraction) {
+    this.hotFraction = hotFraction;
+    return this;
+  }
+
+  public MethodSummaryIndex getSummaries() {
+    return summaries;
+  }
+
+  public RefAutoCoder setSummaries(MethodSummaryIndex summaries) {
+    this.summaries = summaries;
+    return this;
+  }
+
+  public File getSummaryFile() {
+    return summaryFile;
+  }
+
+  public RefAutoCoder setSummaryFile(File summaryFile) {
+    this.summaryFile = summaryFile;
+    this.summaries = summaryFile.exists() ? MethodSummaryIndex.load(summaryFile) : new MethodSummaryIndex();
+    return this;
+  }
+
+  public boolean consumesRefs(ITypeBinding declaringClass) {
+    return AutoCoder.toString(declaringClass.getPackage()).startsWith(CONSUMING_PACKAGE);
+  }
+
+  /**
+   * Whether a call passes ownership of its argument at the given position to the callee.
+   */
+  public boolean consumesArg(@Nonnull IMethodBinding methodBinding, int index) {
+    return consumesRefs(methodBinding.getDeclaringClass()) && !isBorrowed(methodBinding.getMethodDeclaration(), index);
+  }
+
+  /**
+   * Parameter annotations take precedence over method annotations. Without either, the parameter is
+   * borrowed if the method is a read-only helper such as toString or equals, or if its declared type is
+   * not refcounted, since the callee then never releases it. Arrays are judged by their element type and
+   * type variables by their bound. Otherwise the method summary decides, for methods that cannot be
+   * overridden.
+   */
+  public boolean isBorrowed(@Nonnull IMethodBinding method, int index) {
+    final Boolean declared = isDeclaredBorrowed(method, index);
+    if (null != declared) return declared;
+    return null != summaries && isStaticallyBound(method) && summaries.isBorrowed(method.getKey(), index);
+  }
+
+  @Nullable
+  private Boolean isDeclaredBorrowed(@Nonnull IMethodBinding method, int index) {
+    final ITypeBinding[] parameterTypes = method.getParameterTypes();
+    if (0 == parameterTypes.length) return true;
+    final int parameter = Math.min(index, parameterTypes.length - 1);
+    final Boolean parameterOwnership = isBorrowed(method.getParameterAnnotations(parameter));
+    if (null != parameterOwnership) return parameterOwnership;
+    final Boolean methodOwnership = isBorrowed(method.getAnnotations());
+    if (null != methodOwnership) return methodOwnership;
+    if (BORROWING_METHODS.contains(method.getName())) return true;
+    if (!isRefCountedParameter(parameterTypes[parameter])) return true;
+    return null;
+  }
+
+  private boolean isRefCountedParameter(@Nonnull ITypeBinding type) {
+    final ITypeBinding elementType = type.isArray() ? type.getElementType() : type;
+    return isRefCounted(elementType.isTypeVariable() || elementType.isCapture() ? elementType.getErasure() : elementType);
+  }
+
+  public static boolean isStaticallyBound(@Nonnull IMethodBinding method) {
+    final int modifiers = method.getModifiers();
+    return method.isConstructor() || Modifier.isStatic(modifiers) || Modifier.isPrivate(modifiers)
+        || Modifier.isFinal(modifiers) || Modifier.isFinal(method.getDeclaringClass().getModifiers());
+  }
+
+  @Nullable
+  private static Boolean isBorrowed(IAnnotationBinding[] annotations) {
+    for (IAnnotationBinding annotation : annotations) {
+      final String name = annotation.getAnnotationType().getQualifiedName();
+      if (name.equals(RefBorrow.class.getName())) return true;
+      if (name.equals(RefConsume.class.getName())) return false;
+    }
+    return null;
+  }
+
+  /**
+   * Calls into consuming packages return owned references unless annotated otherwise; other calls return borrowed ones.
+   */
+  public boolean returnsOwned(@Nonnull IMethodBinding methodBinding) {
+    for (IAnnotationBinding annotation : methodBinding.getMethodDeclaration().getAnnotations()) {
+      if (annotation.getAnnotationType().getQualifiedName().equals(RefReturnsOwned.class.getName())) {
+        for (IMemberValuePairBinding pair : annotation.getAllMemberValuePairs()) {
+          if (pair.getName().equals("value")) return Boolean.TRUE.equals(pair.getValue());
+        }
+        return true;
+      }
+    }
+    return consumesRefs(methodBinding.getDeclaringClass());
+  }
+
+  /**
+   * Whether {@link ModifyFieldSets} releases the previous value of the field this assignment sets: the left-hand
+   * side is a field access and the assignment is a statement of its own in a block.
+   */
+  public boolean isReleasingFieldSet(@Nonnull Assignment node) {
+    return node.getLeftHandSide() instanceof FieldAccess
+        && node.getParent() instanceof ExpressionStatement
+        && node.getParent().getParent() instanceof Block;
+  }
+
+  /**
+   * A local initialized from a call returning a borrowed reference, and never reassigned, is not released.
+   */
+  public boolean isBorrowedLocal(@Nonnull VariableDeclaration declaration, @Nonnull Block scope) {
+    final Expression initializer = declaration.getInitializer();
+    if (!(initializer instanceof MethodInvocation)) return false;
+    final IMethodBinding methodBinding = ((MethodInvocation) initializer).resolveMethodBinding();
+    if (null == methodBinding || returnsOwned(methodBinding)) return false;
+    final IVariableBinding variable = declaration.resolveBinding();
+    final AtomicBoolean reassigned = new AtomicBoolean(false);
+    scope.accept(new ASTVisitor() {
+      @Override
+      public void endVisit(Assignment node) {
+        final Expression leftHandSide = node.getLeftHandSide();
+        if (leftHandSide instanceof SimpleName && null != variable && variable.equals(((SimpleName) leftHandSide).resolveBinding())) {
+          reassigned.set(true);
+        }
+      }
+    });
+    return !reassigned.get();
+  }
+
   public boolean isRefCounted(ITypeBinding resolveTypeBinding) {
     final ITypeBinding type;
     if (resolveTypeBinding.isArray()) {
@@ -84,15 +460,130 @@ public class RefAutoCoder extends AutoCoder {
     return derives(type, ReferenceCountingBase.class);
   }
 
-  protected class LogNodes extends FileAstVisitor {
+  /**
+   * Records a {@link MethodSummaryIndex.Summary} for each statically bound method, from the source as it
+   * stands before references are inserted.
+   */
+  protected class SummarizeMethods extends FileAstVisitor {
+    private final Set<String> seen;
 
-    private LogNodes(CompilationUnit compilationUnit, File file) {
-      super(compilationUnit,file);
+    private SummarizeMethods(CompilationUnit compilationUnit, File file, Set<String> seen) {
+      super(compilationUnit, file);
+      this.seen = seen;
     }
 
     @Override
-    public void preVisit(ASTNode node) {
-      logger.info(String.format("Previsit: %s at (%s:%s)", node.getClass(), file.getName(), compilationUnit.getLineNumber(node.getStartPosition())));
+    public void endVisit(MethodDeclaration node) {
+      final IMethodBinding methodBinding = node.resolveBinding();
+      if (null == methodBinding || null == node.getBody() || !isStaticallyBound(methodBinding)) return;
+      final String key = methodBinding.getKey();
+      final String hash = MethodSummaryIndex.hash(node.toString() + facts(node));
+      seen.add(key);
+      if (summaries.isCurrent(key, hash)) return;
+      final MethodSummaryIndex.Summary summary = new MethodSummaryIndex.Summary(hash);
+      for (Object parameter : node.parameters()) {
+        final IVariableBinding variable = ((SingleVariableDeclaration) parameter).resolveBinding();
+        if (null == variable || !derives(variable.getType(), ReferenceCountingBase.class)) {
+          summary.add(MethodSummaryIndex.Effect.BORROW, new ArrayList<>());
+        } else {
+          summarize(node.getBody(), variable, summary);
+        }
+      }
+      summaries.put(key, summary);
+    }
+
+    /**
+     * The facts about parameter types and callees that the effects are derived from, so a summary is recomputed
+     * when a callee's annotations or a type's hierarchy change even though the method itself did not.
+     */
+    private String facts(MethodDeclaration node) {
+      final StringBuilder facts = new StringBuilder();
+      for (Object parameter : node.parameters()) {
+        final IVariableBinding variable = ((SingleVariableDeclaration) parameter).resolveBinding();
+        facts.append(null != variable && derives(variable.getType(), ReferenceCountingBase.class) ? 'R' : '-');
+      }
+      node.getBody().accept(new ASTVisitor() {
+        @Override
+        public void endVisit(MethodInvocation node) {
+          callee(node.resolveMethodBinding(), node.arguments().size());
+        }
+
+        @Override
+        public void endVisit(ClassInstanceCreation node) {
+          callee(node.resolveConstructorBinding(), node.arguments().size());
+        }
+
+        @Override
+        public void endVisit(ConstructorInvocation node) {
+          callee(node.resolveConstructorBinding(), node.arguments().size());
+        }
+
+        @Override
+        public void endVisit(SuperConstructorInvocation node) {
+          callee(node.resolveConstructorBinding(), node.arguments().size());
+        }
+
+        private void callee(IMethodBinding callee, int arguments) {
+          if (null == callee) return;
+          facts.append('\n').append(callee.getMethodDeclaration().getKey()).append(' ')
+              .append(consumesRefs(callee.getDeclaringClass()) ? 'C' : '-')
+              .append(isStaticallyBound(callee) ? 'S' : '-');
+          for (int i = 0; i < arguments; i++) {
+            final Boolean declared = isDeclaredBorrowed(callee.getMethodDeclaration(), i);
+            facts.append(null == declared ? '?' : declared ? 'B' : 'R');
+          }
+        }
+      });
+      return facts.toString();
+    }
+
+    private void summarize(Block body, IVariableBinding variable, MethodSummaryIndex.Summary summary) {
+      final List<String> calls = new ArrayList<>();
+      final AtomicReference<MethodSummaryIndex.Effect> effect = new AtomicReference<>(MethodSummaryIndex.Effect.BORROW);
+      body.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(SimpleName node) {
+          if (!variable.equals(node.resolveBinding())) return;
+          final MethodSummaryIndex.Effect mention = effect(node, calls);
+          if (mention.compareTo(effect.get()) > 0) effect.set(mention);
+        }
+      });
+      summary.add(effect.get(), calls);
+    }
+
+    private MethodSummaryIndex.Effect effect(SimpleName name, List<String> calls) {
+      for (ASTNode node = name.getParent(); null != node && !(node instanceof BodyDeclaration); node = node.getParent()) {
+        if (node instanceof LambdaExpression || node instanceof AnonymousClassDeclaration) return MethodSummaryIndex.Effect.RETAIN;
+      }
+      final ASTNode parent = name.getParent();
+      final StructuralPropertyDescriptor location = name.getLocationInParent();
+      if (location == MethodInvocation.EXPRESSION_PROPERTY || location == FieldAccess.EXPRESSION_PROPERTY
+          || location == QualifiedName.QUALIFIER_PROPERTY || parent instanceof InfixExpression
+          || parent instanceof InstanceofExpression) {
+        return MethodSummaryIndex.Effect.BORROW;
+      } else if (parent instanceof ReturnStatement) {
+        return MethodSummaryIndex.Effect.RETURN;
+      } else if (location == MethodInvocation.ARGUMENTS_PROPERTY) {
+        return argument(((MethodInvocation) parent).resolveMethodBinding(), ((MethodInvocation) parent).arguments().indexOf(name), calls);
+      } else if (location == ClassInstanceCreation.ARGUMENTS_PROPERTY) {
+        return argument(((ClassInstanceCreation) parent).resolveConstructorBinding(), ((ClassInstanceCreation) parent).arguments().indexOf(name), calls);
+      } else if (location == ConstructorInvocation.ARGUMENTS_PROPERTY) {
+        return argument(((ConstructorInvocation) parent).resolveConstructorBinding(), ((ConstructorInvocation) parent).arguments().indexOf(name), calls);
+      } else if (location == SuperConstructorInvocation.ARGUMENTS_PROPERTY) {
+        return argument(((SuperConstructorInvocation) parent).resolveConstructorBinding(), ((SuperConstructorInvocation) parent).arguments().indexOf(name), calls);
+      } else {
+        return MethodSummaryIndex.Effect.RETAIN;
+      }
+    }
+
+    private MethodSummaryIndex.Effect argument(IMethodBinding callee, int index, List<String> calls) {
+      if (null == callee) return MethodSummaryIndex.Effect.RETAIN;
+      if (!consumesRefs(callee.getDeclaringClass())) return MethodSummaryIndex.Effect.BORROW;
+      final Boolean declared = isDeclaredBorrowed(callee.getMethodDeclaration(), index);
+      if (null != declared) return declared ? MethodSummaryIndex.Effect.BORROW : MethodSummaryIndex.Effect.RELEASE;
+      if (!isStaticallyBound(callee)) return MethodSummaryIndex.Effect.RELEASE;
+      calls.add(MethodSummaryIndex.call(callee.getMethodDeclaration().getKey(), index));
+      return MethodSummaryIndex.Effect.BORROW;
     }
   }
 
@@ -108,7 +599,7 @@ public class RefAutoCoder extends AutoCoder {
         final ASTNode parent = node.getParent();
         if(parent instanceof ExpressionStatement) {
           final ASTNode parent2 = parent.getParent();
-          if(parent2 instanceof Block) {
+          if(isReleasingFieldSet(node)) {
             final Block block = (Block) parent2;
             final int lineNumber = block.statements().indexOf(parent);
             final Expression rightHandSide = node.getRightHandSide();
@@ -116,7 +607,8 @@ public class RefAutoCoder extends AutoCoder {
             if(rightHandSide instanceof Name) {
               block.statements().add(lineNumber, freeRefStatement(ast, fieldAccess));
               node.setRightHandSide(wrapAddRef(rightHandSide));
-              logger.info("Simple field-set statement at line " + lineNumber);
+              edit("field-set");
+              logger.debug("Simple field-set statement at line " + lineNumber);
             } else {
               final Block exchangeBlock = ast.newBlock();
 
@@ -131,13 +623,14 @@ public class RefAutoCoder extends AutoCoder {
               exchangeBlock.statements().add(ast.newExpressionStatement(assignment));
 
               block.statements().set(lineNumber, exchangeBlock);
-              logger.info("Complex field-set statement at line " + lineNumber);
+              edit("field-set");
+              logger.debug("Complex field-set statement at line " + lineNumber);
             }
           } else {
-            logger.info(String.format("Non-block field-set statement: %s (%s)", parent.getClass(), parent));
+            warn("non-block-field-set", String.format("Non-block field-set statement: %s (%s)", parent.getClass(), parent));
           }
         } else {
-          logger.info(String.format("Non-ExpressionStatement field-set statement: %s (%s)", parent.getClass(), parent));
+          warn("non-statement-field-set", String.format("Non-ExpressionStatement field-set statement: %s (%s)", parent.getClass(), parent));
         }
       }
       super.endVisit(node);
@@ -177,7 +670,7 @@ public class RefAutoCoder extends AutoCoder {
       final ITypeBinding type = expression.resolveTypeBinding();
       AST ast = expression.getAST();
       if(null == type) {
-        logger.warn(String.format("%s - Cannot wrap with addRef (Unresolvable): %s",
+        warn("unresolvable-type", String.format("%s - Cannot wrap with addRef (Unresolvable): %s",
             location(expression),
             expression.getClass(), expression.toString().trim()
         ));
@@ -206,12 +699,15 @@ public class RefAutoCoder extends AutoCoder {
     @Override
     public void endVisit(TypeDeclaration node) {
       final ITypeBinding typeBinding = node.resolveBinding();
-      if (derives(typeBinding, ReferenceCountingBase.class)) {
+      if (null == typeBinding ? null != node.getSuperclassType() : derives(typeBinding, ReferenceCountingBase.class)) {
         removeMethods(node, "addRef");
         removeMethods(node, "freeRef");
         removeMethods(node, "_free");
         removeMethods(node, "addRefs");
         removeMethods(node, "freeRefs");
+        node.bodyDeclarations().removeIf(declaration -> declaration instanceof FieldDeclaration
+            && ((FieldDeclaration) declaration).fragments().stream().anyMatch(x -> ((VariableDeclarationFragment) x).getName().getIdentifier().equals(LEAK_TOKEN)));
+        edit("remove");
       }
       super.endVisit(node);
     }
@@ -233,37 +729,61 @@ public class RefAutoCoder extends AutoCoder {
           final List arguments = ((MethodInvocation) parent).arguments();
           final int index = arguments.indexOf(node);
           arguments.set(index, subject);
+          edit("remove");
           logger.debug(String.format("%s removed as argument %s of %s", methodName, index, parent));
         } else if (parent instanceof ExpressionStatement) {
           delete((ExpressionStatement)parent);
+          edit("remove");
           logger.debug(String.format("%s removed from %s", methodName, parent));
         } else if (parent instanceof ClassInstanceCreation) {
           final List arguments = ((ClassInstanceCreation) parent).arguments();
           final int index = arguments.indexOf(node);
           arguments.set(index, subject);
+          edit("remove");
           logger.debug(String.format("%s removed as argument %s of %s", methodName, index, parent));
         } else if (parent instanceof VariableDeclarationFragment) {
           ((VariableDeclarationFragment) parent).setInitializer(subject);
+          edit("remove");
           logger.debug(String.format("%s removed at %s", methodName, location(parent)));
         } else if (parent instanceof Assignment) {
           ((Assignment) parent).setRightHandSide(subject);
+          edit("remove");
           logger.debug(String.format("%s removed at %s", methodName, location(parent)));
         } else {
-          logger.warn(String.format("%s - Cannot remove %s called in %s: %s", location(parent), methodName, parent.getClass(), parent));
+          warn("unsupported-parent", String.format("%s - Cannot remove %s called in %s: %s", location(parent), methodName, parent.getClass(), parent));
         }
       }
     }
 
   }
 
+  /**
+   * Repeated over the InlineRefs fixed point, the file time budget applies to the total time spent inlining each
+   * file: past it, the file is left as it is, and inlining stops early within a traversal too.
+   */
   protected class InlineRefs extends FileAstVisitor {
 
     private InlineRefs(CompilationUnit compilationUnit, File file) {
       super(compilationUnit,file);
     }
 
+    @Override
+    public boolean visit(CompilationUnit node) {
+      if (0 < getFileTimeBudgetMillis() && inlineNanos.getOrDefault(file, 0L) > TimeUnit.MILLISECONDS.toNanos(getFileTimeBudgetMillis())) {
+        if (inlineExpired.add(file)) warn("inline-over-time", String.format("Not inlining %s further; more than %d ms spent inlining it", file.getName(), getFileTimeBudgetMillis()));
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void endVisit(CompilationUnit node) {
+      inlineNanos.merge(file, System.nanoTime() - startTime, Long::sum);
+    }
+
     @Override
     public void endVisit(Block node) {
+      if (isExpired()) return;
       if(node.statements().size() == 1 && node.getParent() instanceof Block) {
         final Block parent = (Block) node.getParent();
         parent.statements().set(parent.statements().indexOf(node),
@@ -273,6 +793,7 @@ public class RefAutoCoder extends AutoCoder {
 
     @Override
     public void endVisit(Assignment node) {
+      if (isExpired()) return;
       Statement previousStatement = previousStatement(node);
       if(previousStatement != null) {
         if(previousStatement instanceof VariableDeclarationStatement) {
@@ -280,17 +801,18 @@ public class RefAutoCoder extends AutoCoder {
           if(1 == fragments.size()) {
             final VariableDeclarationFragment fragment = (VariableDeclarationFragment) fragments.get(0);
             if(fragment.getName().toString().equals(node.getRightHandSide().toString())) {
+              edit("inline");
               logger.debug(String.format("Inlining %s at %s", fragment.getName(), location(node)));
               node.setRightHandSide((Expression) ASTNode.copySubtree(node.getAST(), fragment.getInitializer()));
               previousStatement.delete();
             } else {
-              logger.warn(String.format("%s previous variable %s is not used in %s", location(node), fragment.getName(), node.getRightHandSide()));
+              warn("inline-unused-variable", String.format("%s previous variable %s is not used in %s", location(node), fragment.getName(), node.getRightHandSide()));
             }
           } else {
-            logger.warn(String.format("%s previous variable has multiple fragments", location(node)));
+            warn("inline-multiple-fragments", String.format("%s previous variable has multiple fragments", location(node)));
           }
         } else {
-          logger.warn(String.format("%s previous statement is %s", location(node), previousStatement.getClass().getSimpleName()));
+          warn("inline-previous-statement", String.format("%s previous statement is %s", location(node), previousStatement.getClass().getSimpleName()));
         }
       }
     }
@@ -305,17 +827,17 @@ public class RefAutoCoder extends AutoCoder {
           if(statementNumber > 0) {
             return  (Statement)statements.get(statementNumber - 1);
           } else {
-            logger.warn(String.format("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node)));
+            warn("no-previous-statement", String.format("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node)));
             return null;
           }
         } else {
-          logger.warn(String.format("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node)));
+          warn("no-previous-statement", String.format("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node)));
           return null;
         }
       } else {
         final ASTNode parent = node.getParent();
         if (null == parent) {
-          logger.warn("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node));
+          warn("no-previous-statement", String.format("No previous statement for %s at %s", node.getClass().getSimpleName(), location(node)));
           return null;
         } else {
           return previousStatement(parent);
@@ -333,6 +855,7 @@ public class RefAutoCoder extends AutoCoder {
             if(1 == fragments.size()) {
               final VariableDeclarationFragment fragment = (VariableDeclarationFragment) fragments.get(0);
               if(fragment.getName().toString().equals(node.getExpression().toString())) {
+                edit("inline");
                 logger.debug(String.format("Inlining %s at %s", fragment.getName(), location(node)));
                 node.setExpression((Expression) ASTNode.copySubtree(node.getAST(), fragment.getInitializer()));
                 previousStatement.delete();
@@ -348,12 +871,114 @@ public class RefAutoCoder extends AutoCoder {
     }
   }
 
+  /**
+   * Profile-guided elision, applied only to methods the profile marks as hot. When a local is handed to a
+   * consuming argument as {@code x.addRef()} and the next statement is {@code x.freeRef()}, the reference itself
+   * is handed over and the release is dropped. The addRef must run unconditionally and exactly once within its
+   * statement, and the statement must not mention the local anywhere else.
+   * <p>
+   * This is the only profile-guided transformation. Pairs are not hoisted out of loops and references are not
+   * treated as thread-confined: both would need loop and escape analysis that the passes do not do.
+   */
+  protected class ElideHotRefs extends FileAstVisitor {
+
+    private ElideHotRefs(CompilationUnit compilationUnit, File file) {
+      super(compilationUnit, file);
+    }
+
+    @Override
+    public void endVisit(MethodDeclaration node) {
+      final IMethodBinding methodBinding = node.resolveBinding();
+      if (null == methodBinding || null == node.getBody()) return;
+      final String key = HotMethodProfile.key(methodBinding);
+      if (!profile.isHot(key, hotFraction)) return;
+      final int[] counts = new int[2];
+      node.getBody().accept(new ASTVisitor() {
+        @Override
+        public void endVisit(MethodInvocation invocation) {
+          if (HotMethodProfile.REFCOUNT_METHODS.contains(invocation.getName().getIdentifier())) counts[0]++;
+        }
+
+        @Override
+        public void endVisit(Block block) {
+          counts[1] += elide(block);
+        }
+      });
+      hotSites.put(key, counts);
+    }
+
+    private int elide(Block block) {
+      final List statements = block.statements();
+      int elided = 0;
+      for (int i = 0; i + 1 < statements.size(); i++) {
+        final IVariableBinding variable = releasedLocal((Statement) statements.get(i + 1));
+        if (null == variable) continue;
+        final MethodInvocation addRef = handedOver((Statement) statements.get(i), variable);
+        if (null == addRef) continue;
+        final List arguments = (List) addRef.getParent().getStructuralProperty(addRef.getLocationInParent());
+        arguments.set(arguments.indexOf(addRef), addRef.getAST().newSimpleName(variable.getName()));
+        statements.remove(i + 1);
+        edit("elide");
+        logger.debug(String.format("Elided addRef/freeRef pair for %s at %s", variable.getName(), location(block)));
+        elided += 2;
+      }
+      return elided;
+    }
+
+    @Nullable
+    private IVariableBinding releasedLocal(Statement statement) {
+      if (!(statement instanceof ExpressionStatement)) return null;
+      final Expression expression = ((ExpressionStatement) statement).getExpression();
+      if (!(expression instanceof MethodInvocation)) return null;
+      final MethodInvocation invocation = (MethodInvocation) expression;
+      if (!invocation.getName().getIdentifier().equals("freeRef") || !invocation.arguments().isEmpty()) return null;
+      if (!(invocation.getExpression() instanceof SimpleName)) return null;
+      final IBinding binding = ((SimpleName) invocation.getExpression()).resolveBinding();
+      if (!(binding instanceof IVariableBinding) || ((IVariableBinding) binding).isField()) return null;
+      return (IVariableBinding) binding;
+    }
+
+    @Nullable
+    private MethodInvocation handedOver(Statement statement, IVariableBinding variable) {
+      final List<SimpleName> mentions = new ArrayList<>();
+      statement.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(SimpleName node) {
+          if (variable.equals(node.resolveBinding())) mentions.add(node);
+        }
+      });
+      if (mentions.size() != 1) return null;
+      final SimpleName mention = mentions.get(0);
+      if (mention.getLocationInParent() != MethodInvocation.EXPRESSION_PROPERTY) return null;
+      final MethodInvocation addRef = (MethodInvocation) mention.getParent();
+      if (!addRef.getName().getIdentifier().equals("addRef") || !addRef.arguments().isEmpty()) return null;
+      if (addRef.getLocationInParent() != MethodInvocation.ARGUMENTS_PROPERTY
+          && addRef.getLocationInParent() != ClassInstanceCreation.ARGUMENTS_PROPERTY) return null;
+      for (ASTNode node = addRef.getParent(); node != statement; node = node.getParent()) {
+        if (!(node instanceof MethodInvocation || node instanceof ClassInstanceCreation || node instanceof Assignment
+            || node instanceof ParenthesizedExpression || node instanceof CastExpression
+            || node instanceof VariableDeclarationFragment)) return null;
+      }
+      return addRef;
+    }
+  }
+
   protected class InsertFreeRefs extends FileAstVisitor {
+    private final List<Runnable> moves = new ArrayList<>();
 
     private InsertFreeRefs(CompilationUnit compilationUnit, File file) {
       super(compilationUnit,file);
     }
 
+    /**
+     * Moves are applied once the unit has been visited, so the rest of the traversal sees bound nodes only.
+     */
+    @Override
+    public void endVisit(CompilationUnit node) {
+      moves.forEach(Runnable::run);
+      moves.clear();
+    }
+
     @Override
     public void endVisit(VariableDeclarationFragment declaration) {
       final ASTNode parent = declaration.getParent();
@@ -362,21 +987,21 @@ public class RefAutoCoder extends AutoCoder {
         if(null != typeBinding) {
           addFreeRef(declaration, typeBinding);
         } else {
-          logger.warn(String.format("%s - Cannot resolve type of %s", location(parent), parent));
+          warn("unresolvable-type", String.format("%s - Cannot resolve type of %s", location(parent), parent));
         }
       } else if (parent instanceof VariableDeclarationExpression) {
         final ITypeBinding typeBinding = ((VariableDeclarationExpression) parent).getType().resolveBinding();
         if(null != typeBinding) {
           addFreeRef(declaration, typeBinding);
         } else {
-          logger.warn(String.format("%s - Cannot resolve type of %s", location(parent), parent));
+          warn("unresolvable-type", String.format("%s - Cannot resolve type of %s", location(parent), parent));
         }
       } else if (parent instanceof FieldDeclaration) {
         final ITypeBinding typeBinding = ((FieldDeclaration) parent).getType().resolveBinding();
         if(null != typeBinding) {
           addFreeRef(declaration, typeBinding);
         } else {
-          logger.warn(String.format("%s - Cannot resolve type of %s", location(parent), parent));
+          warn("unresolvable-type", String.format("%s - Cannot resolve type of %s", location(parent), parent));
         }
       } else if (parent instanceof LambdaExpression) {
         final LambdaExpression lambdaExpression = (LambdaExpression) parent;
@@ -387,7 +1012,7 @@ public class RefAutoCoder extends AutoCoder {
           addFreeRef(declaration, typeBinding);
         }
       } else {
-        logger.warn("Cannot handle " + parent);
+        warn("unsupported-parent", "Cannot handle " + parent);
       }
     }
 
@@ -403,6 +1028,11 @@ public class RefAutoCoder extends AutoCoder {
         ASTNode parent = declaration.getParent();
         if (parent instanceof MethodDeclaration) {
           final MethodDeclaration node = (MethodDeclaration) parent;
+          final IMethodBinding methodBinding = node.resolveBinding();
+          if (null != methodBinding && isBorrowed(methodBinding, node.parameters().indexOf(declaration))) {
+            logger.debug(String.format("%s - %s is borrowed", location(declaration), name));
+            return;
+          }
           addFreeRef(declaration, typeBinding, name, node.getBody(), node.getAST());
         } else if (parent instanceof LambdaExpression) {
           final LambdaExpression node = (LambdaExpression) parent;
@@ -410,14 +1040,9 @@ public class RefAutoCoder extends AutoCoder {
           if(!isStream(lambdaParent)) {
             final ASTNode body = node.getBody();
             if (body instanceof Block) {
-              final Block block = (Block) body;
-              List<Mention> lastMentions = lastMentions(block, name.resolveBinding());
-              lastMentions.stream().filter(x->!x.isReturn())
-                  .forEach(insertAddRef(declaration, typeBinding, name, block, ast));
-              lastMentions.stream().filter(x->x.isComplexReturn())
-                  .forEach(insertAddRef_ComplexReturn(name, ast));
+              addFreeRef(declaration, typeBinding, name, (Block) body, ast);
             } else {
-              logger.warn(String.format("%s - Cannot add freeRef for %s in %s : %s",
+              warn("unsupported-body", String.format("%s - Cannot add freeRef for %s in %s : %s",
                   location(declaration),
                   name,
                   body.getClass(), body.toString().trim()
@@ -426,10 +1051,12 @@ public class RefAutoCoder extends AutoCoder {
           }
         } else if (parent instanceof VariableDeclarationStatement) {
           parent = parent.getParent();
-          if (parent instanceof Block) {
+          if (parent instanceof Block && isBorrowedLocal(declaration, (Block) parent)) {
+            logger.debug(String.format("%s - %s is borrowed", location(declaration), name));
+          } else if (parent instanceof Block) {
             addFreeRef(declaration, typeBinding, name, (Block) parent, parent.getAST());
           } else {
-            logger.warn(String.format("%s - Cannot add freeRef for %s (VariableDeclarationStatement) in %s : %s",
+            warn("unsupported-parent", String.format("%s - Cannot add freeRef for %s (VariableDeclarationStatement) in %s : %s",
                 location(declaration),
                 name,
                 parent.getClass(), parent.toString().trim()
@@ -442,9 +1069,10 @@ public class RefAutoCoder extends AutoCoder {
             final Optional<MethodDeclaration> freeMethodOpt = findMethod(typeDeclaration, "_free");
             if (freeMethodOpt.isPresent()) {
               final MethodDeclaration freeMethod = freeMethodOpt.get();
-              final ExpressionStatement expressionStatement = freeRefStatement(ast, name);
+              final ExpressionStatement expressionStatement = isDeferredRelease() && !typeBinding.isArray()
+                  ? releaseStatement(ast, name) : freeRefStatement(ast, name);
               final Block body = freeMethod.getBody();
-              logger.info(String.format("%s - Adding freeRef for %s::%s to %s - %s ++ %s",
+              logger.debug(String.format("%s - Adding freeRef for %s::%s to %s - %s ++ %s",
                   location(declaration),
                   typeDeclaration.getName(),
                   declaration.getName(),
@@ -452,23 +1080,24 @@ public class RefAutoCoder extends AutoCoder {
                   body,
                   expressionStatement
               ));
+              edit("freeRef");
               body.statements().add(0,expressionStatement);
             } else {
-              logger.warn(String.format("%s - Cannot add freeRef for %s::%s - no _free method",
+              warn("no-free-method", String.format("%s - Cannot add freeRef for %s::%s - no _free method",
                   location(declaration),
                   typeDeclaration.getName(),
                   declaration.getName()
               ));
             }
           } else {
-            logger.warn(String.format("%s - Cannot add freeRef for %s (FieldDeclaration) in %s : %s",
+            warn("unsupported-parent", String.format("%s - Cannot add freeRef for %s (FieldDeclaration) in %s : %s",
                 location(declaration),
                 name,
                 fieldParent.getClass(), fieldParent.toString().trim()
             ));
           }
         } else {
-          logger.warn(String.format("%s - Cannot add freeRef for %s in %s : %s",
+          warn("unsupported-parent", String.format("%s - Cannot add freeRef for %s in %s : %s",
               location(declaration),
               name,
               parent.getClass(), parent.toString().trim()
@@ -478,18 +1107,49 @@ public class RefAutoCoder extends AutoCoder {
     }
 
     public boolean isStream(ASTNode lambdaParent) {
-      final boolean isStream;
-      if(lambdaParent instanceof MethodInvocation) {
-        final ITypeBinding targetClass = ((MethodInvocation) lambdaParent).getExpression().resolveTypeBinding();
-        isStream = targetClass.getQualifiedName().startsWith("java.util.stream.Stream");
-      } else {
-        isStream = false;
-      }
-      return isStream;
+      if (!(lambdaParent instanceof MethodInvocation)) return false;
+      final Expression expression = ((MethodInvocation) lambdaParent).getExpression();
+      final ITypeBinding targetClass = null == expression ? null : expression.resolveTypeBinding();
+      if (null == targetClass) return false;
+      final String qualifiedName = targetClass.getErasure().getQualifiedName();
+      return qualifiedName.startsWith("java.util.stream.Stream") || qualifiedName.equals(RefStream.class.getName());
     }
 
+    /**
+     * In a method over the method node budget, or once the pass is past the file time budget, the local is left
+     * unreleased: a leak, rather than a release placed without the cost of finding its last mentions. Finding the
+     * mentions checks the time budget too, and gives up the same way when it runs out.
+     */
     public void addFreeRef(VariableDeclaration declaration, ITypeBinding typeBinding, SimpleName name, Block body, AST ast) {
-      final List<Mention> lastMentions = lastMentions(body, name.resolveBinding());
+      if (null == body) return;
+      if (isOverMethodBudget(body)) {
+        warn("method-over-budget", String.format("%s - Not releasing %s; method is over the node budget", location(declaration), name));
+        return;
+      }
+      if (isExpired()) {
+        warn("file-over-time", String.format("%s - Not releasing %s; file is over the time budget", location(declaration), name));
+        return;
+      }
+      if (isControlFlowPlacement()) {
+        final ASTNode parent = declaration.getParent();
+        final int from = parent instanceof VariableDeclarationStatement ? body.statements().indexOf(parent) + 1 : 0;
+        try {
+          new ReleasePlacement(name.resolveBinding(), () -> {
+            edit("freeRef");
+            return newFreeRef(ast, name, declaration.resolveBinding().getType());
+          }, insertAddRef_ComplexReturn(name, ast)).setDeadline(deadline()).place(body, from);
+        } catch (BudgetExceededException e) {
+          warn("file-over-time", String.format("%s - Releases of %s placed partially; file is over the time budget", location(declaration), name));
+        }
+        return;
+      }
+      final List<Mention> lastMentions;
+      try {
+        lastMentions = lastMentions(body, name.resolveBinding(), deadline());
+      } catch (BudgetExceededException e) {
+        warn("file-over-time", String.format("%s - Not releasing %s; file is over the time budget", location(declaration), name));
+        return;
+      }
       lastMentions.stream().filter(x->!x.isReturn())
           .forEach(insertAddRef(declaration, typeBinding, name, body, ast));
       lastMentions.stream().filter(x->x.isComplexReturn())
@@ -507,13 +1167,16 @@ public class RefAutoCoder extends AutoCoder {
         final ReturnStatement newReturnStatement = ast.newReturnStatement();
         newReturnStatement.setExpression(ast.newSimpleName(identifier));
         statements.set(mention.line+2, newReturnStatement);
+        edit("freeRef");
       };
     }
 
     @NotNull
     public Consumer<Mention> insertAddRef(VariableDeclaration declaration, ITypeBinding typeBinding, SimpleName declarationName, Block body, AST ast) {
       return lastMention->{
+        if (moveLastUse(lastMention, declarationName)) return;
         body.statements().add(lastMention.line + 1, newFreeRef(ast, declarationName, declaration.resolveBinding().getType()));
+        edit("freeRef");
         logger.debug(String.format("Add freeRef for input parameter %s: %s to line %s",
             declarationName,
             typeBinding.getQualifiedName(),
@@ -522,6 +1185,53 @@ public class RefAutoCoder extends AutoCoder {
       };
     }
 
+    /**
+     * When the last mention is the only mention in its statement and passes {@code name.addRef()} to a consuming
+     * parameter, the call takes over this reference: the addRef is dropped and no freeRef follows. Only a call the
+     * statement evaluates exactly once qualifies, with nothing but calls, casts, parentheses and assignments
+     * between the two; a loop, lambda, conditional or short-circuit in between keeps the addRef and freeRef.
+     */
+    private boolean moveLastUse(Mention mention, SimpleName declarationName) {
+      if (!(mention.statement instanceof ExpressionStatement) && !(mention.statement instanceof VariableDeclarationStatement)) return false;
+      final IBinding variable = declarationName.resolveBinding();
+      if (null == variable) return false;
+      final List<SimpleName> uses = new ArrayList<>();
+      mention.statement.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(SimpleName node) {
+          if (variable.equals(node.resolveBinding())) uses.add(node);
+        }
+      });
+      if (uses.size() != 1 || !(uses.get(0).getParent() instanceof MethodInvocation)) return false;
+      final MethodInvocation addRef = (MethodInvocation) uses.get(0).getParent();
+      if (addRef.getExpression() != uses.get(0) || !addRef.getName().getIdentifier().equals("addRef") || !addRef.arguments().isEmpty()) return false;
+      final ASTNode call = addRef.getParent();
+      final IMethodBinding methodBinding;
+      final List arguments;
+      if (call instanceof MethodInvocation) {
+        methodBinding = ((MethodInvocation) call).resolveMethodBinding();
+        arguments = ((MethodInvocation) call).arguments();
+      } else if (call instanceof ClassInstanceCreation) {
+        methodBinding = ((ClassInstanceCreation) call).resolveConstructorBinding();
+        arguments = ((ClassInstanceCreation) call).arguments();
+      } else {
+        return false;
+      }
+      final int index = arguments.indexOf(addRef);
+      if (index < 0 || null == methodBinding || !consumesArg(methodBinding, index)) return false;
+      for (ASTNode node = call.getParent(); node != mention.statement; node = node.getParent()) {
+        if (!(node instanceof MethodInvocation || node instanceof ClassInstanceCreation || node instanceof CastExpression
+            || node instanceof ParenthesizedExpression || node instanceof Assignment || node instanceof VariableDeclarationFragment)) {
+          return false;
+        }
+      }
+      final String identifier = declarationName.getIdentifier();
+      moves.add(() -> arguments.set(index, addRef.getAST().newSimpleName(identifier)));
+      edit("move");
+      logger.debug(String.format("%s - Moved last use of %s into %s", location(mention.statement), identifier, call));
+      return true;
+    }
+
     public ExpressionStatement newFreeRef(AST ast, SimpleName declarationName, ITypeBinding type) {
       if (type.isArray()) {
         final String qualifiedName = type.getElementType().getQualifiedName();
@@ -541,11 +1251,11 @@ public class RefAutoCoder extends AutoCoder {
     @Override
     public void endVisit(MethodInvocation node) {
       final IMethodBinding methodBinding = node.resolveMethodBinding();
-      if (null != methodBinding && modifyArg(methodBinding.getDeclaringClass())) {
+      if (null != methodBinding) {
         final List arguments = node.arguments();
         for (int i = 0; i < arguments.size(); i++) {
           Object next = arguments.get(i);
-          if (next instanceof Expression) {
+          if (next instanceof Expression && consumesArg(methodBinding, i)) {
             if (next instanceof SimpleName) {
               final SimpleName name = (SimpleName) next;
               final ITypeBinding typeBinding = name.resolveTypeBinding();
@@ -555,7 +1265,8 @@ public class RefAutoCoder extends AutoCoder {
                 methodInvocation.setName(ast.newSimpleName("addRef"));
                 methodInvocation.setExpression(ast.newSimpleName(name.toString()));
                 arguments.set(i, methodInvocation);
-                logger.info(String.format("Argument addRef for %s: %s (%s) defined by %s", node.getName(), typeBinding.getQualifiedName(), name, methodBinding.getDeclaringClass().getQualifiedName()));
+                edit("addRef");
+                logger.debug(String.format("Argument addRef for %s: %s (%s) defined by %s", node.getName(), typeBinding.getQualifiedName(), name, methodBinding.getDeclaringClass().getQualifiedName()));
               }
             }
           }
@@ -563,10 +1274,6 @@ public class RefAutoCoder extends AutoCoder {
       }
     }
 
-    public boolean modifyArg(ITypeBinding declaringClass) {
-      return AutoCoder.toString(declaringClass.getPackage()).startsWith("com.simiacryptus");
-    }
-
   }
 
   @NotNull
@@ -574,6 +1281,18 @@ public class RefAutoCoder extends AutoCoder {
     return "temp" + Long.toString(Math.abs(random.nextLong())).substring(0,4);
   }
 
+  /**
+   * {@code RefReleaser.release(name)}, which defers the release when the runtime runs in deferred mode.
+   */
+  @NotNull
+  public ExpressionStatement releaseStatement(AST ast, SimpleName declarationName) {
+    final MethodInvocation methodInvocation = ast.newMethodInvocation();
+    methodInvocation.setExpression(newQualifiedName(ast, RefReleaser.class.getName().split("\\.")));
+    methodInvocation.setName(ast.newSimpleName("release"));
+    methodInvocation.arguments().add(ast.newSimpleName(declarationName.toString()));
+    return ast.newExpressionStatement(methodInvocation);
+  }
+
   @NotNull
   public ExpressionStatement freeRefStatement(AST ast, SimpleName declarationName) {
     final MethodInvocation methodInvocation = ast.newMethodInvocation();
@@ -582,6 +1301,49 @@ public class RefAutoCoder extends AutoCoder {
     return ast.newExpressionStatement(methodInvocation);
   }
 
+  /**
+   * Replaces {@code java.util.Arrays.stream(array)} over a refcounted array with {@link RefStream#of},
+   * when the chain only uses operations RefStream supports and every map stage yields non-refcounted values.
+   */
+  protected class WrapStreams extends FileAstVisitor {
+
+    private WrapStreams(CompilationUnit compilationUnit, File file) {
+      super(compilationUnit, file);
+    }
+
+    @Override
+    public void endVisit(MethodInvocation node) {
+      if (!node.getName().getIdentifier().equals("stream") || node.arguments().size() != 1) return;
+      final IMethodBinding methodBinding = node.resolveMethodBinding();
+      if (null == methodBinding || !methodBinding.getDeclaringClass().getQualifiedName().equals("java.util.Arrays")) return;
+      final ITypeBinding arrayType = ((Expression) node.arguments().get(0)).resolveTypeBinding();
+      if (null == arrayType || arrayType.getDimensions() != 1 || !isRefCounted(arrayType)) return;
+      if (!isRefStreamChain(node)) return;
+      final AST ast = node.getAST();
+      node.setExpression(newQualifiedName(ast, RefStream.class.getName().split("\\.")));
+      node.setName(ast.newSimpleName("of"));
+      edit("stream");
+      logger.debug(String.format("%s - Wrapped stream %s", location(node), node));
+    }
+
+    private boolean isRefStreamChain(MethodInvocation source) {
+      ASTNode node = source;
+      while (node.getParent() instanceof MethodInvocation && ((MethodInvocation) node.getParent()).getExpression() == node) {
+        final MethodInvocation operation = (MethodInvocation) node.getParent();
+        final String name = operation.getName().getIdentifier();
+        if (RefStream.TERMINAL_OPS.contains(name)) return true;
+        if (!RefStream.INTERMEDIATE_OPS.contains(name)) return false;
+        if (name.equals("map")) {
+          final ITypeBinding streamType = operation.resolveTypeBinding();
+          if (null == streamType || streamType.getTypeArguments().length != 1) return false;
+          if (isRefCounted(streamType.getTypeArguments()[0])) return false;
+        }
+        node = operation;
+      }
+      return false;
+    }
+  }
+
   protected class InsertAddRefs extends FileAstVisitor {
 
     private InsertAddRefs(CompilationUnit compilationUnit, File file) {
@@ -593,11 +1355,11 @@ public class RefAutoCoder extends AutoCoder {
       if (null != methodBinding) {
         final AST ast = node.getAST();
         ITypeBinding declaringClass = methodBinding.getDeclaringClass();
-        if (methodsConsumeRefs(declaringClass) && node.arguments().size() > 0) {
-          apply(ast, declaringClass, node.arguments(), methodBinding.getDeclaringClass().getName());
+        if (node.arguments().size() > 0) {
+          apply(ast, methodBinding, node.arguments(), declaringClass.getName());
         }
       } else {
-        logger.warn("Cannot resolve " + node);
+        warn("unresolvable-binding", "Cannot resolve " + node);
       }
     }
 
@@ -607,11 +1369,11 @@ public class RefAutoCoder extends AutoCoder {
       if (null != methodBinding) {
         final AST ast = node.getAST();
         ITypeBinding declaringClass = methodBinding.getDeclaringClass();
-        if (methodsConsumeRefs(declaringClass) && node.arguments().size() > 0) {
-          apply(ast, declaringClass, node.arguments(), methodBinding.getDeclaringClass().getName());
+        if (node.arguments().size() > 0) {
+          apply(ast, methodBinding, node.arguments(), declaringClass.getName());
         }
       } else {
-        logger.warn("Cannot resolve " + node);
+        warn("unresolvable-binding", "Cannot resolve " + node);
       }
     }
 
@@ -619,23 +1381,22 @@ public class RefAutoCoder extends AutoCoder {
     public void endVisit(MethodInvocation node) {
       final IMethodBinding methodBinding = node.resolveMethodBinding();
       if (null != methodBinding) {
-        ITypeBinding declaringClass = methodBinding.getDeclaringClass();
-        if (methodsConsumeRefs(declaringClass)) {
-          apply(node.getAST(), declaringClass, node.arguments(), node.getName().toString());
-        }
+        apply(node.getAST(), methodBinding, node.arguments(), node.getName().toString());
       }
     }
 
-    public void apply(AST ast, ITypeBinding declaringClass, List arguments, String methodName) {
+    public void apply(AST ast, IMethodBinding methodBinding, List arguments, String methodName) {
+      final ITypeBinding declaringClass = methodBinding.getDeclaringClass();
       for (int i = 0; i < arguments.size(); i++) {
         Object next = arguments.get(i);
-        if (next instanceof Expression) {
+        if (next instanceof Expression && consumesArg(methodBinding, i)) {
           if (next instanceof SimpleName) {
             final SimpleName name = (SimpleName) next;
             final ITypeBinding resolveTypeBinding = name.resolveTypeBinding();
             if (isRefCounted(resolveTypeBinding)) {
               arguments.set(i, addAddRef(name, resolveTypeBinding, ast));
-              logger.info(String.format("Argument addRef for %s: %s (%s) defined by %s", methodName, resolveTypeBinding.getQualifiedName(), name, declaringClass.getQualifiedName()));
+              edit("addRef");
+              logger.debug(String.format("Argument addRef for %s: %s (%s) defined by %s", methodName, resolveTypeBinding.getQualifiedName(), name, declaringClass.getQualifiedName()));
             }
           }
         }
@@ -659,10 +1420,6 @@ public class RefAutoCoder extends AutoCoder {
       }
     }
 
-    public boolean methodsConsumeRefs(ITypeBinding declaringClass) {
-      return AutoCoder.toString(declaringClass.getPackage()).startsWith("com.simiacryptus");
-    }
-
   }
 
   protected class InsertMethods extends FileAstVisitor {
@@ -676,10 +1433,12 @@ public class RefAutoCoder extends AutoCoder {
       if (derives(node.resolveBinding(), ReferenceCountingBase.class)) {
         final AST ast = node.getAST();
         final List declarations = node.bodyDeclarations();
+        if (isLeakGuard() && isRefcountRoot(node.resolveBinding())) declarations.add(0, field_leakToken(ast));
         declarations.add(method_free(ast));
         declarations.add(method_addRef(ast, node.getName()));
         declarations.add(method_addRefs(ast, node.getName()));
         declarations.add(method_freeRefs(ast, node.getName()));
+        edit("method");
       }
       super.endVisit(node);
     }
@@ -690,10 +1449,37 @@ public class RefAutoCoder extends AutoCoder {
       methodDeclaration.setName(ast.newSimpleName("_free"));
       methodDeclaration.modifiers().add(ast.newModifier(Modifier.ModifierKeyword.PUBLIC_KEYWORD));
       methodDeclaration.modifiers().add(annotation_override(ast));
-      methodDeclaration.setBody(ast.newBlock());
+      final Block body = ast.newBlock();
+      if (isLeakGuard()) {
+        final MethodInvocation freed = ast.newMethodInvocation();
+        freed.setExpression(ast.newSimpleName(LEAK_TOKEN));
+        freed.setName(ast.newSimpleName("freed"));
+        body.statements().add(ast.newExpressionStatement(freed));
+      }
+      methodDeclaration.setBody(body);
       return methodDeclaration;
     }
 
+    /**
+     * {@code protected final RefLeakGuard.Token _leakToken = RefLeakGuard.track(this);}, declared once per
+     * hierarchy on the class directly extending ReferenceCountingBase.
+     */
+    @NotNull
+    public FieldDeclaration field_leakToken(AST ast) {
+      final VariableDeclarationFragment fragment = ast.newVariableDeclarationFragment();
+      fragment.setName(ast.newSimpleName(LEAK_TOKEN));
+      final MethodInvocation track = ast.newMethodInvocation();
+      track.setExpression(newQualifiedName(ast, RefLeakGuard.class.getName().split("\\.")));
+      track.setName(ast.newSimpleName("track"));
+      track.arguments().add(ast.newThisExpression());
+      fragment.setInitializer(track);
+      final FieldDeclaration fieldDeclaration = ast.newFieldDeclaration(fragment);
+      fieldDeclaration.setType(ast.newSimpleType(newQualifiedName(ast, RefLeakGuard.Token.class.getCanonicalName().split("\\."))));
+      fieldDeclaration.modifiers().add(ast.newModifier(Modifier.ModifierKeyword.PROTECTED_KEYWORD));
+      fieldDeclaration.modifiers().add(ast.newModifier(Modifier.ModifierKeyword.FINAL_KEYWORD));
+      return fieldDeclaration;
+    }
+
     @NotNull
     public MethodDeclaration method_addRef(AST ast, SimpleName name) {
       final String fqTypeName = name.getFullyQualifiedName();
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running {@link RefAutoCoder} that keeps the Maven project and resolved classpath loaded,
+ * watches the source roots, and re-applies the passes to changed files only.
+ * <p>
+ * JDT rebuilds its name environment on every parse, so bindings themselves are not carried between requests.
+ * What stays warm is what was resolved from them: {@link #warm()} parses the whole tree once with bindings to fill
+ * the type index, and the method summaries are kept across requests. Both forget the types declared in the files
+ * each request touches.
+ * <p>
+ * Commands are accepted one per line on a loopback socket: {@code apply <file>...}, {@code apply-all},
+ * {@code status} and {@code stop}. Only {@code .java} files under the project's source roots are applied.
+ */
+public class RefAutoCoderDaemon implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(RefAutoCoderDaemon.class);
+  public static final int DEFAULT_PORT = 7457;
+  private final RefAutoCoder autoCoder;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+  private final Map<File, String> processed = new ConcurrentHashMap<>();
+  private final ServerSocket serverSocket;
+  private final List<File> sourceRoots = new ArrayList<>();
+  private volatile boolean running = true;
+  private long debounceMillis = 100;
+  private final AtomicInteger runs = new AtomicInteger();
+
+  public RefAutoCoderDaemon(@Nonnull RefAutoCoder autoCoder, int port) throws IOException {
+    this.autoCoder = autoCoder;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    for (String root : autoCoder.project.getSourcepathEntries()) {
+      final File file = new File(root);
+      if (!file.isDirectory()) continue;
+      sourceRoots.add(file.getCanonicalFile());
+      register(file.toPath());
+    }
+    if (null == autoCoder.getSummaries()) autoCoder.setSummaries(new MethodSummaryIndex());
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    autoCoder.project.getClasspathEntries();
+    logger.info(String.format("Daemon for %s listening on %s", autoCoder.project.projectRoot, serverSocket.getLocalSocketAddress()));
+  }
+
+  public static void main(String... args) throws IOException {
+    if (args.length > 0 && args[0].equals("--client")) {
+      final int port = Integer.parseInt(args[1]);
+      System.out.println(send(port, String.join(" ", Arrays.asList(args).subList(2, args.length))));
+      return;
+    }
+    final RefAutoCoder autoCoder = new RefAutoCoder(args[0]);
+    autoCoder.setVerbose(false);
+    try (RefAutoCoderDaemon daemon = new RefAutoCoderDaemon(autoCoder, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT)) {
+      daemon.run();
+    }
+  }
+
+  @NotNull
+  public static String send(int port, @Nonnull String command) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      writer.write(command + "\n");
+      writer.flush();
+      return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+    }
+  }
+
+  public void run() {
+    warm();
+    final Thread listener = new Thread(this::listen, "autocoder-daemon-socket");
+    listener.setDaemon(true);
+    listener.start();
+    watch();
+  }
+
+  private void watch() {
+    final Set<File> changed = new LinkedHashSet<>();
+    while (running) {
+      try {
+        final WatchKey key = changed.isEmpty() ? watchService.poll(1, TimeUnit.SECONDS) : watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        if (null == key) {
+          if (!changed.isEmpty()) {
+            apply(new ArrayList<>(changed));
+            changed.clear();
+          }
+          continue;
+        }
+        final Path dir = watchKeys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW || null == dir) continue;
+          final Path path = dir.resolve((Path) event.context());
+          if (Files.isDirectory(path)) {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) register(path);
+          } else if (path.toString().endsWith(".java") && Files.exists(path) && isModified(path.toFile())) {
+            changed.add(path.toFile());
+          }
+        }
+        if (!key.reset()) watchKeys.remove(key);
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        running = false;
+      } catch (IOException e) {
+        logger.warn("Error watching sources", e);
+      }
+    }
+  }
+
+  private void listen() {
+    while (running) {
+      try (Socket socket = serverSocket.accept()) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        final String line = reader.readLine();
+        writer.write(handle(null == line ? "" : line.trim()) + "\n");
+        writer.flush();
+      } catch (IOException e) {
+        if (running) logger.warn("Error handling command", e);
+      }
+    }
+  }
+
+  @NotNull
+  public String handle(@Nonnull String command) {
+    final String[] words = command.split("\\s+");
+    switch (words[0]) {
+      case "apply":
+        final List<File> files = new ArrayList<>();
+        for (int i = 1; i < words.length; i++) {
+          final File file = source(words[i]);
+          if (null == file) return "ERROR not a project source: " + words[i];
+          files.add(file);
+        }
+        return String.format("OK %d changed", apply(files));
+      case "apply-all":
+        return String.format("OK %d changed", apply(null));
+      case "status":
+        return String.format("OK %d runs, %d files tracked", runs.get(), processed.size());
+      case "stop":
+        close();
+        return "OK stopped";
+      default:
+        return "ERROR unknown command: " + command;
+    }
+  }
+
+  /**
+   * Parses every source file once with bindings and records the hierarchy of the types they declare, so later
+   * requests start from a complete type index. Returns the number of types indexed.
+   */
+  public synchronized int warm() {
+    final long startTime = System.nanoTime();
+    final TypeHierarchyIndex typeIndex = autoCoder.getTypeIndex();
+    final Map<File, CompilationUnit> units = autoCoder.project.parse(autoCoder.project.getSourceFiles());
+    for (CompilationUnit compilationUnit : units.values()) {
+      compilationUnit.accept(new ASTVisitor() {
+        @Override
+        public void endVisit(TypeDeclaration node) {
+          final ITypeBinding binding = node.resolveBinding();
+          if (null != binding) typeIndex.add(binding);
+        }
+      });
+    }
+    logger.info(String.format("Warmed %d files, %d types indexed in %d ms", units.size(), typeIndex.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    return typeIndex.size();
+  }
+
+  public synchronized int apply(Collection<File> files) {
+    final long startTime = System.nanoTime();
+    final Collection<File> scope = null == files ? autoCoder.project.getSourceFiles() : files;
+    final Map<File, String> before = new HashMap<>();
+    scope.forEach(file -> before.put(file, hash(file)));
+    invalidate(files);
+    autoCoder.getMetrics().clear();
+    autoCoder.setScope(files);
+    try {
+      autoCoder.apply();
+    } finally {
+      autoCoder.setScope(null);
+    }
+    int changed = 0;
+    for (File file : scope) {
+      final String hash = hash(file);
+      processed.put(file, hash);
+      if (!hash.equals(before.get(file))) changed++;
+    }
+    runs.incrementAndGet();
+    logger.info(String.format("Processed %d files (%d changed) in %d ms", scope.size(), changed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    return changed;
+  }
+
+  /**
+   * Forgets what the warm indexes know about the types declared in the changed files, so a changed
+   * {@code extends} clause or annotation is picked up instead of the facts from an earlier run.
+   */
+  private void invalidate(Collection<File> files) {
+    final MethodSummaryIndex summaries = autoCoder.getSummaries();
+    if (null == files) {
+      autoCoder.getTypeIndex().clear();
+      if (null != summaries) summaries.clear();
+      return;
+    }
+    final List<String> declaredTypes = new ArrayList<>();
+    files.forEach(file -> declaredTypes.addAll(TypeHierarchyIndex.declaredTypes(file)));
+    autoCoder.getTypeIndex().invalidate(declaredTypes);
+    if (null != summaries) summaries.invalidate(declaredTypes);
+  }
+
+  /**
+   * The canonical file for a path that names a Java source under one of the source roots, or null.
+   */
+  private File source(String path) {
+    try {
+      final File file = new File(path).getCanonicalFile();
+      if (!file.getName().endsWith(".java") || !file.isFile()) return null;
+      for (File root : sourceRoots) {
+        if (file.toPath().startsWith(root.toPath())) return file;
+      }
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private boolean isModified(File file) {
+    return !hash(file).equals(processed.get(file));
+  }
+
+  @NotNull
+  private static String hash(File file) {
+    try {
+      return Long.toHexString(FileUtils.checksumCRC32(file));
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  private void register(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        watchKeys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public long getDebounceMillis() {
+    return debounceMillis;
+  }
+
+  public RefAutoCoderDaemon setDebounceMillis(long debounceMillis) {
+    this.debounceMillis = debounceMillis;
+    return this;
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    try {
+      serverSocket.close();
+      watchService.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
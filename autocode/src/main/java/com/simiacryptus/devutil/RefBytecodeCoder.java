@@ -0,0 +1,653 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import com.simiacryptus.devutil.ref.RefBorrow;
+import com.simiacryptus.devutil.ref.RefConsume;
+import com.simiacryptus.devutil.ref.RefReturnsOwned;
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Applies the {@link RefAutoCoder} transformations to compiled classes instead of sources: addRef of arguments
+ * passed to consuming calls, the null-checked exchange on refcounted field sets, release of owned parameters and
+ * locals, and generated addRef/addRefs/freeRefs/_free methods. Ownership follows the same rules as the source
+ * rewriter: the consuming package, the ref annotations, and the read-only helper names.
+ * <p>
+ * Runs as a post-compile step over the output directories of a project ({@link #main}) or as a java agent
+ * ({@link #premain}). Parameters, and locals still in scope, are released at each normal return; other locals
+ * are released where their scope ends. Returning a local, directly or through a cast, hands it to the caller.
+ * Classes that already call the ref methods, such as those compiled from rewritten sources, are left as they are.
+ * Exceptional exits, array-typed values and lambda bodies are not handled.
+ */
+public class RefBytecodeCoder implements Opcodes {
+  private static final Logger logger = LoggerFactory.getLogger(RefBytecodeCoder.class);
+  private static final String BASE = Type.getInternalName(ReferenceCountingBase.class);
+  private static final String BORROW = Type.getDescriptor(RefBorrow.class);
+  private static final String CONSUME = Type.getDescriptor(RefConsume.class);
+  private static final String RETURNS_OWNED = Type.getDescriptor(RefReturnsOwned.class);
+  private static final String MARKER = "Lcom/simiacryptus/devutil/ref/RefInstrumented;";
+  private static final List<String> REF_METHODS = Arrays.asList("addRef", "freeRef", "addRefs", "freeRefs", "_free");
+  private static final List<String> EXCLUDED_PACKAGES = Arrays.asList(BASE.substring(0, BASE.lastIndexOf('/') + 1), "com/simiacryptus/devutil/");
+  private final Function<String, byte[]> classBytes;
+  private final Map<String, Optional<ClassNode>> headers = new ConcurrentHashMap<>();
+  private final TypeHierarchyIndex typeIndex = new TypeHierarchyIndex();
+  private final AutoCoderMetrics metrics = new AutoCoderMetrics();
+  private String consumingPackage = RefAutoCoder.CONSUMING_PACKAGE.replace('.', '/');
+
+  public RefBytecodeCoder(@Nonnull Function<String, byte[]> classBytes) {
+    this.classBytes = classBytes;
+  }
+
+  @NotNull
+  public static RefBytecodeCoder forClassLoader(@Nonnull ClassLoader classLoader) {
+    return new RefBytecodeCoder(name -> {
+      try (InputStream stream = classLoader.getResourceAsStream(name + ".class")) {
+        return null == stream ? null : IOUtils.toByteArray(stream);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  public static void main(String... args) throws Exception {
+    final SimpleMavenProject project = SimpleMavenProject.load(new File(args[0]).getCanonicalPath());
+    final List<File> outputDirectories = new ArrayList<>();
+    for (SimpleMavenProject module : project.isReactor() ? project.modules : Collections.singletonList(project)) {
+      outputDirectories.add(new File(module.project.getBuild().getOutputDirectory()));
+    }
+    final List<URL> urls = new ArrayList<>();
+    for (File directory : outputDirectories) urls.add(directory.toURI().toURL());
+    for (String entry : project.getClasspathEntries()) urls.add(new File(entry).toURI().toURL());
+    final RefBytecodeCoder coder = forClassLoader(new URLClassLoader(urls.toArray(new URL[]{}), ClassLoader.getSystemClassLoader()));
+    for (File directory : outputDirectories) coder.apply(directory);
+    logger.info(coder.getMetrics().toTable());
+  }
+
+  public static void premain(String agentArgs, @Nonnull Instrumentation instrumentation) {
+    final String prefix = (null == agentArgs || agentArgs.isEmpty() ? RefAutoCoder.CONSUMING_PACKAGE : agentArgs).replace('.', '/');
+    final Map<ClassLoader, RefBytecodeCoder> coders = new ConcurrentHashMap<>();
+    instrumentation.addTransformer(new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (null == className || null != classBeingRedefined || !className.startsWith(prefix)) return null;
+        final ClassLoader classLoader = null == loader ? ClassLoader.getSystemClassLoader() : loader;
+        try {
+          return coders.computeIfAbsent(classLoader, RefBytecodeCoder::forClassLoader).transform(classfileBuffer);
+        } catch (Throwable e) {
+          logger.warn(String.format("Cannot instrument %s", className), e);
+          return null;
+        }
+      }
+    });
+  }
+
+  public int apply(@Nonnull File classesDirectory) throws IOException {
+    int changed = 0;
+    for (File file : FileUtils.listFiles(classesDirectory, new String[]{"class"}, true)) {
+      final byte[] transformed = transform(FileUtils.readFileToByteArray(file));
+      if (null != transformed) {
+        FileUtils.writeByteArrayToFile(file, transformed);
+        changed++;
+      }
+    }
+    logger.info(String.format("Instrumented %d classes in %s", changed, classesDirectory));
+    return changed;
+  }
+
+  @Nullable
+  public byte[] transform(@Nonnull byte[] classfile) {
+    final long startTime = System.nanoTime();
+    final ClassNode classNode = new ClassNode();
+    new ClassReader(classfile).accept(classNode, 0);
+    if (EXCLUDED_PACKAGES.stream().anyMatch(classNode.name::startsWith) || hasAnnotation(classNode.invisibleAnnotations, MARKER)) return null;
+    final AutoCoderMetrics.PassMetrics passMetrics = metrics.get(RefBytecodeCoder.class);
+    if (countsReferences(classNode)) {
+      passMetrics.warning("already-refcounted");
+      logger.warn(String.format("Not instrumenting %s; it already counts references", classNode.name));
+      return null;
+    }
+    int edits = 0;
+    for (MethodNode method : new ArrayList<>(classNode.methods)) {
+      edits += transform(classNode, method);
+    }
+    if (!BASE.equals(classNode.name) && isRefCounted(classNode.name)) {
+      edits += addMethods(classNode);
+    }
+    passMetrics.files.increment();
+    passMetrics.nanos.add(System.nanoTime() - startTime);
+    if (0 == edits) return null;
+    passMetrics.changed.increment();
+    if (null == classNode.invisibleAnnotations) classNode.invisibleAnnotations = new ArrayList<>();
+    classNode.invisibleAnnotations.add(new AnnotationNode(MARKER));
+    final ClassWriter writer = new HierarchyClassWriter();
+    classNode.accept(writer);
+    return writer.toByteArray();
+  }
+
+  private int transform(ClassNode owner, MethodNode method) {
+    if (0 == method.instructions.size() || 0 != (method.access & (ACC_SYNTHETIC | ACC_BRIDGE)) || REF_METHODS.contains(method.name)) {
+      return 0;
+    }
+    final Frame<SourceValue>[] frames;
+    try {
+      frames = new Analyzer<>(new SourceInterpreter()).analyze(owner.name, method);
+    } catch (AnalyzerException e) {
+      metrics.get(RefBytecodeCoder.class).warning("unanalyzable-method");
+      logger.warn(String.format("Cannot analyze %s.%s%s", owner.name, method.name, method.desc), e);
+      return 0;
+    }
+    final AbstractInsnNode[] instructions = method.instructions.toArray();
+    final Map<LabelNode, Integer> labels = new HashMap<>();
+    for (int i = 0; i < instructions.length; i++) {
+      if (instructions[i] instanceof LabelNode) labels.put((LabelNode) instructions[i], i);
+    }
+    final List<LocalVariableNode> locals = ownedLocals(owner, method, instructions, frames);
+    int edits = 0;
+    for (int i = 0; i < instructions.length; i++) {
+      final AbstractInsnNode instruction = instructions[i];
+      if (instruction instanceof MethodInsnNode && null != frames[i]) {
+        edits += addRefArguments(method, (MethodInsnNode) instruction, frames[i]);
+      } else if (instruction.getOpcode() == PUTFIELD) {
+        edits += exchangeField(method, (FieldInsnNode) instruction);
+      } else if (instruction.getOpcode() >= IRETURN && instruction.getOpcode() <= RETURN) {
+        final List<Integer> slots = new ArrayList<>(ownedParameters(owner, method));
+        for (LocalVariableNode local : locals) {
+          if (labels.get(local.start) <= i && i < labels.get(local.end)) slots.add(local.index);
+        }
+        if (instruction.getOpcode() == ARETURN && null != frames[i]) {
+          slots.remove(returnedSlot(frames, Arrays.asList(instructions), i));
+        }
+        for (Integer slot : slots) {
+          method.instructions.insertBefore(instruction, release(slot));
+          edits++;
+        }
+      }
+    }
+    for (LocalVariableNode local : locals) {
+      final AbstractInsnNode last = previous(local.end);
+      if (null == last || method.instructions.indexOf(last) < method.instructions.indexOf(local.start) || !fallsThrough(last)) continue;
+      method.instructions.insert(last, release(local.index));
+      edits++;
+    }
+    if (edits > 0) metrics.get(RefBytecodeCoder.class).nodes.add(instructions.length);
+    return edits;
+  }
+
+  /**
+   * Whether any method the transformation would instrument already calls addRef, freeRef, addRefs or freeRefs on
+   * a refcounted type, as classes compiled from rewritten sources do. Instrumenting those again would count every
+   * reference twice.
+   */
+  private boolean countsReferences(ClassNode classNode) {
+    for (MethodNode method : classNode.methods) {
+      if (REF_METHODS.contains(method.name)) continue;
+      for (AbstractInsnNode instruction : method.instructions.toArray()) {
+        if (!(instruction instanceof MethodInsnNode)) continue;
+        final MethodInsnNode invocation = (MethodInsnNode) instruction;
+        if (REF_METHODS.contains(invocation.name) && !invocation.name.equals("_free") && isRefCounted(invocation.owner)) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The local slot whose reference an ARETURN returns, following casts, or null if the returned value is not
+   * exactly one local; the reference then passes to the caller and is not released.
+   */
+  @Nullable
+  private static Integer returnedSlot(Frame<SourceValue>[] frames, List<AbstractInsnNode> instructions, int index) {
+    Integer slot = null;
+    final Frame<SourceValue> frame = frames[index];
+    for (AbstractInsnNode source : frame.getStack(frame.getStackSize() - 1).insns) {
+      if (source.getOpcode() == CHECKCAST) {
+        final Frame<SourceValue> castFrame = frames[instructions.indexOf(source)];
+        if (null == castFrame) return null;
+        final AbstractInsnNode cast = single(castFrame.getStack(castFrame.getStackSize() - 1));
+        source = null == cast ? source : cast;
+      }
+      if (source.getOpcode() != ALOAD) return null;
+      final int var = ((VarInsnNode) source).var;
+      if (null != slot && slot != var) return null;
+      slot = var;
+    }
+    return slot;
+  }
+
+  private int addRefArguments(MethodNode method, MethodInsnNode instruction, Frame<SourceValue> frame) {
+    final Type[] arguments = Type.getArgumentTypes(instruction.desc);
+    int edits = 0;
+    for (int i = 0; i < arguments.length; i++) {
+      if (!consumesArg(instruction, i, arguments[i])) continue;
+      final SourceValue value = frame.getStack(frame.getStackSize() - arguments.length + i);
+      if (1 != value.insns.size()) continue;
+      final AbstractInsnNode source = value.insns.iterator().next();
+      if (source.getOpcode() != ALOAD) continue;
+      final InsnList addRef = new InsnList();
+      addRef.add(new InsnNode(DUP));
+      addRef.add(invokeBase("addRef"));
+      popResult(addRef, "addRef");
+      method.instructions.insert(source, addRef);
+      metrics.get(RefBytecodeCoder.class).edit("addRef");
+      edits++;
+    }
+    return edits;
+  }
+
+  private int exchangeField(MethodNode method, FieldInsnNode instruction) {
+    if (instruction.name.startsWith("this$") || instruction.name.startsWith("val$") || !isRefCounted(Type.getType(instruction.desc))) {
+      return 0;
+    }
+    final InsnList exchange = new InsnList();
+    final LabelNode skipAddRef = new LabelNode();
+    exchange.add(new InsnNode(DUP));
+    exchange.add(new JumpInsnNode(IFNULL, skipAddRef));
+    exchange.add(new InsnNode(DUP));
+    exchange.add(invokeBase("addRef"));
+    popResult(exchange, "addRef");
+    exchange.add(skipAddRef);
+    exchange.add(new InsnNode(SWAP));
+    exchange.add(new InsnNode(DUP_X1));
+    exchange.add(new FieldInsnNode(GETFIELD, instruction.owner, instruction.name, instruction.desc));
+    exchange.add(releaseTop());
+    method.instructions.insertBefore(instruction, exchange);
+    metrics.get(RefBytecodeCoder.class).edit("field-set");
+    return 1;
+  }
+
+  private List<Integer> ownedParameters(ClassNode owner, MethodNode method) {
+    final List<Integer> slots = new ArrayList<>();
+    if (RefAutoCoder.BORROWING_METHODS.contains(method.name)) return slots;
+    if (method.name.equals("<init>") && isLocalOrInner(owner)) return slots;
+    int slot = 0 == (method.access & ACC_STATIC) ? 1 : 0;
+    final Type[] arguments = Type.getArgumentTypes(method.desc);
+    for (int i = 0; i < arguments.length; i++) {
+      if (isRefCounted(arguments[i]) && !Boolean.TRUE.equals(isBorrowed(method, i))) slots.add(slot);
+      slot += arguments[i].getSize();
+    }
+    return slots;
+  }
+
+  private List<LocalVariableNode> ownedLocals(ClassNode owner, MethodNode method, AbstractInsnNode[] instructions, Frame<SourceValue>[] frames) {
+    final List<LocalVariableNode> locals = new ArrayList<>();
+    if (null == method.localVariables) return locals;
+    int firstLocal = 0 == (method.access & ACC_STATIC) ? 1 : 0;
+    for (Type argument : Type.getArgumentTypes(method.desc)) firstLocal += argument.getSize();
+    final List<AbstractInsnNode> list = Arrays.asList(instructions);
+    for (LocalVariableNode local : method.localVariables) {
+      if (local.index < firstLocal || !isRefCounted(Type.getType(local.desc))) continue;
+      final int start = list.indexOf(local.start);
+      final int end = list.indexOf(local.end);
+      if (start < 0 || end < 0) continue;
+      if (isBorrowedLocal(local, list, frames, start, end)) continue;
+      locals.add(local);
+    }
+    return locals;
+  }
+
+  /**
+   * Mirrors {@link RefAutoCoder#isBorrowedLocal}: a local stored once, from a call that returns a borrowed reference.
+   */
+  private boolean isBorrowedLocal(LocalVariableNode local, List<AbstractInsnNode> instructions, Frame<SourceValue>[] frames, int start, int end) {
+    int stores = 0;
+    MethodInsnNode initializer = null;
+    for (int i = 0; i < instructions.size(); i++) {
+      final AbstractInsnNode instruction = instructions.get(i);
+      if (instruction.getOpcode() != ASTORE || ((VarInsnNode) instruction).var != local.index) continue;
+      if (i >= end || (i < start && nextStart(instructions, i) != start)) continue;
+      stores++;
+      if (null == frames[i]) return false;
+      AbstractInsnNode source = single(frames[i].getStack(frames[i].getStackSize() - 1));
+      if (null != source && source.getOpcode() == CHECKCAST) {
+        final Frame<SourceValue> castFrame = frames[instructions.indexOf(source)];
+        source = null == castFrame ? null : single(castFrame.getStack(castFrame.getStackSize() - 1));
+      }
+      if (source instanceof MethodInsnNode) initializer = (MethodInsnNode) source;
+    }
+    return 1 == stores && null != initializer && !returnsOwned(initializer);
+  }
+
+  private static int nextStart(List<AbstractInsnNode> instructions, int index) {
+    int next = index + 1;
+    while (next < instructions.size() && instructions.get(next).getOpcode() < 0 && !(instructions.get(next) instanceof LabelNode)) next++;
+    return next;
+  }
+
+  @Nullable
+  private static AbstractInsnNode single(SourceValue value) {
+    return 1 == value.insns.size() ? value.insns.iterator().next() : null;
+  }
+
+  private boolean consumesArg(MethodInsnNode instruction, int index, Type type) {
+    if (!instruction.owner.startsWith(consumingPackage) || REF_METHODS.contains(instruction.name)) return false;
+    if (RefAutoCoder.BORROWING_METHODS.contains(instruction.name) || !isRefCounted(type)) return false;
+    final MethodNode callee = findMethod(instruction.owner, instruction.name, instruction.desc);
+    return null == callee || !Boolean.TRUE.equals(isBorrowed(callee, index));
+  }
+
+  private boolean returnsOwned(MethodInsnNode instruction) {
+    final MethodNode callee = findMethod(instruction.owner, instruction.name, instruction.desc);
+    if (null != callee && null != callee.invisibleAnnotations) {
+      for (AnnotationNode annotation : callee.invisibleAnnotations) {
+        if (!annotation.desc.equals(RETURNS_OWNED)) continue;
+        final int value = null == annotation.values ? -1 : annotation.values.indexOf("value");
+        return value < 0 || Boolean.TRUE.equals(annotation.values.get(value + 1));
+      }
+    }
+    return instruction.owner.startsWith(consumingPackage);
+  }
+
+  @Nullable
+  private static Boolean isBorrowed(MethodNode method, int index) {
+    if (null != method.invisibleParameterAnnotations && index < method.invisibleParameterAnnotations.length) {
+      final Boolean parameter = isBorrowed(method.invisibleParameterAnnotations[index]);
+      if (null != parameter) return parameter;
+    }
+    return isBorrowed(method.invisibleAnnotations);
+  }
+
+  @Nullable
+  private static Boolean isBorrowed(List<AnnotationNode> annotations) {
+    if (null == annotations) return null;
+    if (hasAnnotation(annotations, BORROW)) return true;
+    if (hasAnnotation(annotations, CONSUME)) return false;
+    return null;
+  }
+
+  private static boolean hasAnnotation(List<AnnotationNode> annotations, String desc) {
+    return null != annotations && annotations.stream().anyMatch(annotation -> annotation.desc.equals(desc));
+  }
+
+  private int addMethods(ClassNode classNode) {
+    int edits = 0;
+    final String arrayDesc = "[L" + classNode.name + ";";
+    if (null == findDeclared(classNode, "_free", "()V")) {
+      classNode.methods.add(method_free(classNode));
+      edits++;
+    }
+    if (null == findDeclared(classNode, "addRef", "()L" + classNode.name + ";") && !"V".equals(Type.getReturnType(descriptor("addRef")).getDescriptor())) {
+      classNode.methods.add(method_addRef(classNode));
+      edits++;
+    }
+    if (null == findDeclared(classNode, "addRefs", "(" + arrayDesc + ")" + arrayDesc)) {
+      classNode.methods.add(method_forEach("addRefs", arrayDesc, true));
+      edits++;
+    }
+    if (null == findDeclared(classNode, "freeRefs", "(" + arrayDesc + ")V")) {
+      classNode.methods.add(method_forEach("freeRefs", arrayDesc, false));
+      edits++;
+    }
+    if (edits > 0) metrics.get(RefBytecodeCoder.class).edit("method");
+    return edits;
+  }
+
+  private MethodNode method_free(ClassNode classNode) {
+    final MethodNode method = new MethodNode(ACC_PUBLIC, "_free", "()V", null, null);
+    final InsnList instructions = method.instructions;
+    for (FieldNode field : classNode.fields) {
+      if (0 != (field.access & (ACC_STATIC | ACC_SYNTHETIC)) || !isRefCounted(Type.getType(field.desc))) continue;
+      instructions.add(new VarInsnNode(ALOAD, 0));
+      instructions.add(new FieldInsnNode(GETFIELD, classNode.name, field.name, field.desc));
+      instructions.add(releaseTop());
+    }
+    final MethodNode superFree = findMethod(classNode.superName, "_free", "()V");
+    if (null != superFree && 0 == (superFree.access & ACC_ABSTRACT)) {
+      instructions.add(new VarInsnNode(ALOAD, 0));
+      instructions.add(new MethodInsnNode(INVOKESPECIAL, classNode.superName, "_free", "()V", false));
+    }
+    instructions.add(new InsnNode(RETURN));
+    return method;
+  }
+
+  private MethodNode method_addRef(ClassNode classNode) {
+    final MethodNode method = new MethodNode(ACC_PUBLIC, "addRef", "()L" + classNode.name + ";", null, null);
+    method.instructions.add(new VarInsnNode(ALOAD, 0));
+    method.instructions.add(new MethodInsnNode(INVOKESPECIAL, classNode.superName, "addRef", descriptor("addRef"), false));
+    method.instructions.add(new TypeInsnNode(CHECKCAST, classNode.name));
+    method.instructions.add(new InsnNode(ARETURN));
+    return method;
+  }
+
+  private MethodNode method_forEach(String name, String arrayDesc, boolean addRef) {
+    final MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, name, "(" + arrayDesc + ")" + (addRef ? arrayDesc : "V"), null, null);
+    final InsnList instructions = method.instructions;
+    final LabelNode loop = new LabelNode();
+    final LabelNode next = new LabelNode();
+    final LabelNode isNull = new LabelNode();
+    final LabelNode end = new LabelNode();
+    instructions.add(new VarInsnNode(ALOAD, 0));
+    instructions.add(new JumpInsnNode(IFNULL, end));
+    instructions.add(new InsnNode(ICONST_0));
+    instructions.add(new VarInsnNode(ISTORE, 1));
+    instructions.add(loop);
+    instructions.add(new VarInsnNode(ILOAD, 1));
+    instructions.add(new VarInsnNode(ALOAD, 0));
+    instructions.add(new InsnNode(ARRAYLENGTH));
+    instructions.add(new JumpInsnNode(IF_ICMPGE, end));
+    instructions.add(new VarInsnNode(ALOAD, 0));
+    instructions.add(new VarInsnNode(ILOAD, 1));
+    instructions.add(new InsnNode(AALOAD));
+    instructions.add(new InsnNode(DUP));
+    instructions.add(new JumpInsnNode(IFNULL, isNull));
+    final String methodName = addRef ? "addRef" : "freeRef";
+    instructions.add(invokeBase(methodName));
+    popResult(instructions, methodName);
+    instructions.add(new JumpInsnNode(GOTO, next));
+    instructions.add(isNull);
+    instructions.add(new InsnNode(POP));
+    instructions.add(next);
+    instructions.add(new IincInsnNode(1, 1));
+    instructions.add(new JumpInsnNode(GOTO, loop));
+    instructions.add(end);
+    if (addRef) {
+      instructions.add(new VarInsnNode(ALOAD, 0));
+      instructions.add(new InsnNode(ARETURN));
+    } else {
+      instructions.add(new InsnNode(RETURN));
+    }
+    return method;
+  }
+
+  private InsnList release(int slot) {
+    final InsnList instructions = new InsnList();
+    instructions.add(new VarInsnNode(ALOAD, slot));
+    instructions.add(releaseTop());
+    metrics.get(RefBytecodeCoder.class).edit("freeRef");
+    return instructions;
+  }
+
+  /**
+   * Releases the reference on top of the stack, if it is not null, and pops it.
+   */
+  private InsnList releaseTop() {
+    final InsnList instructions = new InsnList();
+    final LabelNode isNull = new LabelNode();
+    final LabelNode done = new LabelNode();
+    instructions.add(new InsnNode(DUP));
+    instructions.add(new JumpInsnNode(IFNULL, isNull));
+    instructions.add(invokeBase("freeRef"));
+    popResult(instructions, "freeRef");
+    instructions.add(new JumpInsnNode(GOTO, done));
+    instructions.add(isNull);
+    instructions.add(new InsnNode(POP));
+    instructions.add(done);
+    return instructions;
+  }
+
+  private MethodInsnNode invokeBase(String name) {
+    return new MethodInsnNode(INVOKEVIRTUAL, BASE, name, descriptor(name), false);
+  }
+
+  private void popResult(InsnList instructions, String name) {
+    final Type returnType = Type.getReturnType(descriptor(name));
+    if (returnType.getSize() == 1) instructions.add(new InsnNode(POP));
+    if (returnType.getSize() == 2) instructions.add(new InsnNode(POP2));
+  }
+
+  @NotNull
+  private String descriptor(String name) {
+    final MethodNode method = findMethod(BASE, name, null);
+    if (null == method) throw new IllegalStateException(String.format("Cannot resolve %s.%s", BASE, name));
+    return method.desc;
+  }
+
+  private static boolean fallsThrough(AbstractInsnNode instruction) {
+    final int opcode = instruction.getOpcode();
+    return opcode != GOTO && opcode != ATHROW && !(opcode >= IRETURN && opcode <= RETURN)
+        && !(instruction instanceof TableSwitchInsnNode) && !(instruction instanceof LookupSwitchInsnNode);
+  }
+
+  @Nullable
+  private static AbstractInsnNode previous(AbstractInsnNode instruction) {
+    AbstractInsnNode previous = instruction.getPrevious();
+    while (null != previous && previous.getOpcode() < 0) previous = previous.getPrevious();
+    return previous;
+  }
+
+  private boolean isLocalOrInner(ClassNode classNode) {
+    for (InnerClassNode innerClass : classNode.innerClasses) {
+      if (innerClass.name.equals(classNode.name)) return null == innerClass.outerName || 0 == (innerClass.access & ACC_STATIC);
+    }
+    return false;
+  }
+
+  public boolean isRefCounted(@Nonnull Type type) {
+    return type.getSort() == Type.OBJECT && isRefCounted(type.getInternalName());
+  }
+
+  public boolean isRefCounted(@Nonnull String internalName) {
+    String name = internalName;
+    while (null != name && !typeIndex.contains(name.replace('/', '.'))) {
+      final String superName = header(name).map(x -> x.superName).orElse(null);
+      typeIndex.add(name.replace('/', '.'), null == superName ? null : superName.replace('/', '.'));
+      name = superName;
+    }
+    return typeIndex.derives(internalName.replace('/', '.'), ReferenceCountingBase.class.getName());
+  }
+
+  /**
+   * The class header, or empty when the class cannot be found or its class file version is newer than ASM reads.
+   * An unreadable class is treated like a missing one: it is not known to be refcounted.
+   */
+  @NotNull
+  private Optional<ClassNode> header(String internalName) {
+    return headers.computeIfAbsent(internalName, name -> {
+      final byte[] bytes = classBytes.apply(name);
+      if (null == bytes) return Optional.empty();
+      final ClassNode classNode = new ClassNode();
+      try {
+        new ClassReader(bytes).accept(classNode, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      } catch (IllegalArgumentException e) {
+        logger.warn(String.format("Cannot read %s: %s", name, e.getMessage()));
+        return Optional.empty();
+      }
+      return Optional.of(classNode);
+    });
+  }
+
+  @Nullable
+  private MethodNode findMethod(String owner, String name, String desc) {
+    for (String type = owner; null != type; ) {
+      final Optional<ClassNode> header = header(type);
+      if (!header.isPresent()) return null;
+      final MethodNode method = findDeclared(header.get(), name, desc);
+      if (null != method) return method;
+      type = header.get().superName;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static MethodNode findDeclared(ClassNode classNode, String name, String desc) {
+    for (MethodNode method : classNode.methods) {
+      if (method.name.equals(name) && (null == desc ? method.desc.startsWith("()") : method.desc.equals(desc))) return method;
+    }
+    return null;
+  }
+
+  public AutoCoderMetrics getMetrics() {
+    return metrics;
+  }
+
+  public String getConsumingPackage() {
+    return consumingPackage.replace('/', '.');
+  }
+
+  public RefBytecodeCoder setConsumingPackage(String consumingPackage) {
+    this.consumingPackage = consumingPackage.replace('.', '/');
+    return this;
+  }
+
+  private class HierarchyClassWriter extends ClassWriter {
+    HierarchyClassWriter() {
+      super(ClassWriter.COMPUTE_FRAMES);
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+      final List<String> ancestors = new ArrayList<>();
+      for (String type = type1; null != type; type = superName(type)) {
+        if (isInterface(type)) return "java/lang/Object";
+        ancestors.add(type);
+      }
+      for (String type = type2; null != type; type = superName(type)) {
+        if (isInterface(type)) return "java/lang/Object";
+        if (ancestors.contains(type)) return type;
+      }
+      return "java/lang/Object";
+    }
+
+    private String superName(String type) {
+      return header(type).map(x -> x.superName).orElse(null);
+    }
+
+    private boolean isInterface(String type) {
+      return header(type).map(x -> 0 != (x.access & ACC_INTERFACE)).orElse(false);
+    }
+  }
+}
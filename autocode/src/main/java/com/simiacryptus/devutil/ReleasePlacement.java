@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.eclipse.jdt.core.dom.*;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Places the release of a variable on every control-flow path leaving its scope, at the earliest point the
+ * variable is dead on that path.
+ * <p>
+ * The variable is live up to the last statement of the block that mentions it. Loops, switches and try
+ * statements that mention it keep it live until they complete. If-branches are analysed separately, and a
+ * single release is emitted after the if when both branches stay live to their end. A try with a finally block
+ * that mentions the variable releases it at the end of the finally block, unless the try returns the variable;
+ * then the release follows the try, and only the paths completing it normally release. Any return, break or continue that
+ * leaves the scope while the variable is still live gets its own release. Returning the variable itself
+ * transfers ownership, so it needs no release. Exits that pass through an earlier finally block using the
+ * variable are left unreleased rather than risk a use after release. Exceptional paths are not covered.
+ */
+public class ReleasePlacement {
+  private final IBinding variable;
+  private final Supplier<Statement> release;
+  private final Consumer<AutoCoder.Mention> complexReturn;
+  private int inserted = 0;
+  private long deadline = Long.MAX_VALUE;
+
+  public ReleasePlacement(@Nonnull IBinding variable, @Nonnull Supplier<Statement> release, @Nonnull Consumer<AutoCoder.Mention> complexReturn) {
+    this.variable = variable;
+    this.release = release;
+    this.complexReturn = complexReturn;
+  }
+
+  /**
+   * The {@link System#nanoTime()} past which placement throws {@link AutoCoder.BudgetExceededException}. Releases
+   * placed by then stay; the paths not yet covered leak.
+   */
+  public ReleasePlacement setDeadline(long deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  public int place(@Nonnull Block block, int from) {
+    final List statements = block.statements();
+    int last = -1;
+    for (int i = from; i < statements.size(); i++) {
+      if (AutoCoder.contains((ASTNode) statements.get(i), variable, deadline)) last = i;
+    }
+    if (last < 0) {
+      insert(block, from);
+      return inserted;
+    }
+    for (int i = from; i < last; i++) {
+      releaseExits((Statement) statements.get(i));
+    }
+    final Statement statement = (Statement) statements.get(last);
+    if (statement instanceof Block) {
+      place((Block) statement, 0);
+    } else if (statement instanceof IfStatement && !isMergeable((IfStatement) statement)) {
+      final IfStatement ifStatement = (IfStatement) statement;
+      place(branch(ifStatement, IfStatement.THEN_STATEMENT_PROPERTY), 0);
+      place(branch(ifStatement, IfStatement.ELSE_STATEMENT_PROPERTY), 0);
+    } else if (statement instanceof TryStatement && null != ((TryStatement) statement).getFinally()
+        && AutoCoder.contains(((TryStatement) statement).getFinally(), variable, deadline)) {
+      final TryStatement tryStatement = (TryStatement) statement;
+      if (!isTransferredIn(tryStatement)) {
+        final Block finallyBlock = tryStatement.getFinally();
+        insert(finallyBlock, finallyBlock.statements().size());
+      } else if (canComplete(tryStatement)) {
+        insert(block, last + 1);
+      }
+    } else if (isJump(statement)) {
+      releaseExits(statement);
+    } else if (!(statement instanceof ThrowStatement)) {
+      releaseExits(statement);
+      insert(block, last + 1);
+    }
+    return inserted;
+  }
+
+  public int getInserted() {
+    return inserted;
+  }
+
+  private boolean isMergeable(IfStatement ifStatement) {
+    final Statement elseStatement = ifStatement.getElseStatement();
+    return null != elseStatement && isLiveToEnd(ifStatement.getThenStatement()) && isLiveToEnd(elseStatement);
+  }
+
+  private boolean isLiveToEnd(Statement statement) {
+    final Statement tail;
+    if (statement instanceof Block) {
+      final List statements = ((Block) statement).statements();
+      if (statements.isEmpty()) return false;
+      tail = (Statement) statements.get(statements.size() - 1);
+    } else {
+      tail = statement;
+    }
+    return !isJump(tail) && !(tail instanceof ThrowStatement) && AutoCoder.contains(tail, variable, deadline);
+  }
+
+  private Block branch(IfStatement ifStatement, ChildPropertyDescriptor property) {
+    final Statement statement = (Statement) ifStatement.getStructuralProperty(property);
+    if (statement instanceof Block) return (Block) statement;
+    final Block block = ifStatement.getAST().newBlock();
+    ifStatement.setStructuralProperty(property, block);
+    if (null != statement) block.statements().add(statement);
+    return block;
+  }
+
+  private void releaseExits(Statement statement) {
+    final List<Statement> exits = new ArrayList<>();
+    statement.accept(new ASTVisitor() {
+      @Override
+      public boolean visit(LambdaExpression node) {
+        return false;
+      }
+
+      @Override
+      public boolean visit(AnonymousClassDeclaration node) {
+        return false;
+      }
+
+      @Override
+      public boolean visit(TypeDeclarationStatement node) {
+        return false;
+      }
+
+      @Override
+      public boolean visit(TryStatement node) {
+        return null == node.getFinally() || !AutoCoder.contains(node.getFinally(), variable, deadline);
+      }
+
+      @Override
+      public void endVisit(ReturnStatement node) {
+        exits.add(node);
+      }
+
+      @Override
+      public void endVisit(BreakStatement node) {
+        if (!isWithin(target(node, node.getLabel(), true), statement)) exits.add(node);
+      }
+
+      @Override
+      public void endVisit(ContinueStatement node) {
+        if (!isWithin(target(node, node.getLabel(), false), statement)) exits.add(node);
+      }
+    });
+    for (Statement exit : exits) {
+      if (exit instanceof ReturnStatement && null != ((ReturnStatement) exit).getExpression()) {
+        final Expression expression = ((ReturnStatement) exit).getExpression();
+        if (isTransfer((ReturnStatement) exit)) continue;
+        if (AutoCoder.contains(expression, variable, deadline)) {
+          final Block block = enclosingBlock(exit);
+          complexReturn.accept(new AutoCoder.Mention(block, block.statements().indexOf(exit), exit));
+          inserted++;
+          continue;
+        }
+      }
+      final Block block = enclosingBlock(exit);
+      insert(block, block.statements().indexOf(exit));
+    }
+  }
+
+  private boolean isTransfer(ReturnStatement statement) {
+    final Expression expression = statement.getExpression();
+    return expression instanceof SimpleName && variable.equals(((SimpleName) expression).resolveBinding());
+  }
+
+  private boolean isTransferredIn(Statement statement) {
+    final AtomicBoolean transferred = new AtomicBoolean(false);
+    statement.accept(new ASTVisitor() {
+      @Override
+      public boolean visit(LambdaExpression node) {
+        return false;
+      }
+
+      @Override
+      public boolean visit(AnonymousClassDeclaration node) {
+        return false;
+      }
+
+      @Override
+      public boolean visit(TypeDeclarationStatement node) {
+        return false;
+      }
+
+      @Override
+      public void endVisit(ReturnStatement node) {
+        if (isTransfer(node)) transferred.set(true);
+      }
+    });
+    return transferred.get();
+  }
+
+  private static boolean canComplete(TryStatement statement) {
+    if (!endsInJump(statement.getBody())) return true;
+    for (Object catchClause : statement.catchClauses()) {
+      if (!endsInJump(((CatchClause) catchClause).getBody())) return true;
+    }
+    return false;
+  }
+
+  private static boolean endsInJump(Block block) {
+    final List statements = block.statements();
+    if (statements.isEmpty()) return false;
+    final Statement tail = (Statement) statements.get(statements.size() - 1);
+    return isJump(tail) || tail instanceof ThrowStatement;
+  }
+
+  @Nullable
+  private static ASTNode target(ASTNode jump, SimpleName label, boolean isBreak) {
+    ASTNode node = jump.getParent();
+    while (null != node && !(node instanceof BodyDeclaration) && !(node instanceof LambdaExpression)) {
+      if (null != label) {
+        if (node instanceof LabeledStatement && ((LabeledStatement) node).getLabel().getIdentifier().equals(label.getIdentifier())) {
+          return ((LabeledStatement) node).getBody();
+        }
+      } else if (node instanceof WhileStatement || node instanceof DoStatement || node instanceof ForStatement
+          || node instanceof EnhancedForStatement || (isBreak && node instanceof SwitchStatement)) {
+        return node;
+      }
+      node = node.getParent();
+    }
+    return null;
+  }
+
+  private static boolean isWithin(ASTNode node, ASTNode ancestor) {
+    while (null != node) {
+      if (node == ancestor) return true;
+      node = node.getParent();
+    }
+    return false;
+  }
+
+  private static boolean isJump(Statement statement) {
+    return statement instanceof ReturnStatement || statement instanceof BreakStatement || statement instanceof ContinueStatement;
+  }
+
+  private Block enclosingBlock(Statement statement) {
+    final ASTNode parent = statement.getParent();
+    if (parent instanceof Block) return (Block) parent;
+    final Block block = statement.getAST().newBlock();
+    final StructuralPropertyDescriptor location = statement.getLocationInParent();
+    if (location.isChildListProperty()) {
+      final List list = (List) parent.getStructuralProperty(location);
+      list.set(list.indexOf(statement), block);
+    } else {
+      parent.setStructuralProperty(location, block);
+    }
+    block.statements().add(statement);
+    return block;
+  }
+
+  private void insert(Block block, int index) {
+    block.statements().add(index, release.get());
+    inserted++;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only record of which pass step has been applied to which file, used to resume an interrupted run.
+ * <p>
+ * Each line holds the step number, pass name, file, whether the pass changed it, and the hash of the file after
+ * the pass. On load, a file's entries are kept only if the file on disk still has the hash of its latest entry;
+ * otherwise the file was touched outside the run and is processed again from the first step. A truncated last
+ * line from a crash is ignored. The journal is deleted when the run completes.
+ */
+public class RunJournal implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(RunJournal.class);
+  private final File file;
+  private final Map<String, Boolean> done = new ConcurrentHashMap<>();
+  private final Writer writer;
+
+  public RunJournal(@Nonnull File file) {
+    this.file = file;
+    if (file.exists()) load();
+    try {
+      if (null != file.getParentFile()) file.getParentFile().mkdirs();
+      this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void load() {
+    final Map<String, String[]> latest = new HashMap<>();
+    final Map<String, Boolean> entries = new HashMap<>();
+    try {
+      for (String line : FileUtils.readLines(file, "UTF-8")) {
+        final String[] split = line.split("\t", -1);
+        if (split.length != 5) continue;
+        entries.put(key(Integer.parseInt(split[0]), split[2]), Boolean.parseBoolean(split[3]));
+        final String[] previous = latest.get(split[2]);
+        if (null == previous || Integer.parseInt(previous[0]) <= Integer.parseInt(split[0])) latest.put(split[2], split);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    latest.forEach((path, entry) -> {
+      final File source = new File(path);
+      try {
+        if (source.exists() && MethodSummaryIndex.hash(FileUtils.readFileToString(source, "UTF-8")).equals(entry[4])) return;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      logger.warn(String.format("%s changed since it was journaled; it will be processed from the start", path));
+      entries.keySet().removeIf(key -> key.endsWith("\t" + path));
+    });
+    done.putAll(entries);
+    logger.info(String.format("Resuming from journal %s with %d completed steps over %d files", file, done.size(), latest.size()));
+  }
+
+  private static String key(int step, String path) {
+    return step + "\t" + path;
+  }
+
+  /**
+   * Whether the step already changed the file, or null if the step has not been applied to it.
+   */
+  @Nullable
+  public Boolean get(int step, @Nonnull File source) {
+    return done.get(key(step, source.getAbsolutePath()));
+  }
+
+  public synchronized void record(int step, @Nonnull String pass, @Nonnull File source, boolean changed, @Nonnull String content) {
+    final String path = source.getAbsolutePath();
+    done.put(key(step, path), changed);
+    try {
+      writer.write(String.format("%d\t%s\t%s\t%s\t%s%n", step, pass, path, changed, MethodSummaryIndex.hash(content)));
+      writer.flush();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Closes and deletes the journal after a completed run.
+   */
+  public void complete() {
+    close();
+    if (!file.delete()) logger.warn("Cannot delete journal " + file);
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
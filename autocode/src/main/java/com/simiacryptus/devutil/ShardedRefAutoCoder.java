@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.project.DependencyResolutionException;
+import org.apache.maven.project.ProjectBuildingException;
+import org.codehaus.plexus.PlexusContainerException;
+import org.codehaus.plexus.component.repository.exception.ComponentLookupException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Runs {@link RefAutoCoder} over a source tree in several worker JVMs, each with a bounded heap.
+ * <p>
+ * The coordinator resolves the classpath once and partitions the source files by package (directory), assigning
+ * the largest packages first to the least loaded shard. Each worker gets the shared classpath and type index
+ * from the work directory, rewrites its shard in memory while parsing the rest of the tree through the source
+ * path, and writes its rewritten sources, its metrics and the types it learned to the work directory. Only once
+ * every shard has finished does the coordinator move the rewritten sources into the tree, so no worker binds
+ * against a file another worker already rewrote; if any shard fails, the tree is left untouched.
+ * <p>
+ * The coordinator merges the metrics into one report and the types into one index, which later runs start from.
+ * The index is saved with the size and modification time of every source; a later run forgets the types declared
+ * in sources that changed since, and starts from an empty index if any source was removed.
+ */
+public class ShardedRefAutoCoder {
+  private static final Logger logger = LoggerFactory.getLogger(ShardedRefAutoCoder.class);
+  private final SimpleMavenProject project;
+  private final AutoCoderMetrics metrics = new AutoCoderMetrics();
+  private File workDirectory;
+  private int shards = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private String workerHeap = "2g";
+  private boolean addRefcounting = true;
+
+  public ShardedRefAutoCoder(String pathname) {
+    try {
+      this.project = SimpleMavenProject.load(new File(pathname).getCanonicalPath(), false);
+    } catch (IOException | PlexusContainerException | DependencyResolutionException | ProjectBuildingException | ComponentLookupException e) {
+      throw new RuntimeException(e);
+    }
+    this.workDirectory = new File(project.projectRoot, "target/autocode-shards");
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length > 0 && args[0].equals("--worker")) {
+      work(args[1], new File(args[2]), Integer.parseInt(args[3]), Boolean.parseBoolean(args[4]));
+      return;
+    }
+    final ShardedRefAutoCoder coordinator = new ShardedRefAutoCoder(args[0]);
+    if (args.length > 1) coordinator.setShards(Integer.parseInt(args[1]));
+    if (args.length > 2) coordinator.setWorkerHeap(args[2]);
+    coordinator.run();
+  }
+
+  public void run() throws IOException, InterruptedException {
+    workDirectory.mkdirs();
+    FileUtils.writeLines(new File(workDirectory, "classpath.txt"), "UTF-8", Arrays.asList(project.getClasspathEntries()));
+    final File typesFile = new File(workDirectory, "types.tsv");
+    final File stampsFile = new File(workDirectory, "sources.tsv");
+    final TypeHierarchyIndex typeIndex = loadTypes(typesFile, stampsFile);
+    typeIndex.save(typesFile);
+    final List<List<File>> partition = partition(project.getSourceFiles());
+    final List<Process> processes = new ArrayList<>();
+    for (int shard = 0; shard < partition.size(); shard++) {
+      FileUtils.writeLines(shardFile(shard, "files", "txt"), "UTF-8",
+          partition.get(shard).stream().map(File::getAbsolutePath).collect(Collectors.toList()));
+      FileUtils.deleteQuietly(shardFile(shard, "metrics", "json"));
+      FileUtils.deleteQuietly(shardFile(shard, "types", "tsv"));
+      FileUtils.deleteQuietly(outputDirectory(shard));
+      logger.info(String.format("Starting shard %d with %d files", shard, partition.get(shard).size()));
+      processes.add(new ProcessBuilder(command(shard)).inheritIO().start());
+    }
+    final List<Integer> failed = new ArrayList<>();
+    for (int shard = 0; shard < processes.size(); shard++) {
+      final int exitCode = processes.get(shard).waitFor();
+      if (exitCode != 0) {
+        logger.warn(String.format("Shard %d exited with %d", shard, exitCode));
+        failed.add(shard);
+      }
+      final File metricsFile = shardFile(shard, "metrics", "json");
+      if (metricsFile.exists()) metrics.merge(FileUtils.readFileToString(metricsFile, "UTF-8"));
+      final File shardTypes = shardFile(shard, "types", "tsv");
+      if (shardTypes.exists()) typeIndex.addAll(TypeHierarchyIndex.load(shardTypes));
+    }
+    FileUtils.write(new File(workDirectory, "metrics.json"), metrics.toJson(), "UTF-8");
+    logger.info(String.format("Run summary over %d shards:%n%s", processes.size(), metrics.toTable()));
+    if (!failed.isEmpty()) throw new RuntimeException(String.format("Shards %s failed; no sources were changed", failed));
+    logger.info(String.format("Applied %d rewritten sources", applyOutputs(processes.size())));
+    typeIndex.save(typesFile);
+    writeStamps(stampsFile);
+  }
+
+  /**
+   * Moves each shard's rewritten sources into the tree.
+   */
+  private int applyOutputs(int shardCount) throws IOException {
+    final Path root = new File(project.projectRoot).toPath();
+    int applied = 0;
+    for (int shard = 0; shard < shardCount; shard++) {
+      final File outputDirectory = outputDirectory(shard);
+      if (!outputDirectory.exists()) continue;
+      for (File file : FileUtils.listFiles(outputDirectory, null, true)) {
+        final Path target = root.resolve(outputDirectory.toPath().relativize(file.toPath()));
+        Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        applied++;
+      }
+      FileUtils.deleteQuietly(outputDirectory);
+    }
+    return applied;
+  }
+
+  /**
+   * The saved type index, less the types declared in sources changed since it was saved.
+   */
+  @NotNull
+  private TypeHierarchyIndex loadTypes(File typesFile, File stampsFile) throws IOException {
+    if (!typesFile.exists() || !stampsFile.exists()) return new TypeHierarchyIndex();
+    final TypeHierarchyIndex typeIndex = TypeHierarchyIndex.load(typesFile);
+    final Map<String, String> previous = new HashMap<>();
+    for (String line : FileUtils.readLines(stampsFile, "UTF-8")) {
+      final int tab = line.indexOf('\t');
+      if (tab > 0) previous.put(line.substring(0, tab), line.substring(tab + 1));
+    }
+    final Map<String, String> current = stamps();
+    if (!current.keySet().containsAll(previous.keySet())) {
+      logger.info("Sources were removed since the last run; starting from an empty type index");
+      return new TypeHierarchyIndex();
+    }
+    final List<String> declaredTypes = current.entrySet().stream()
+        .filter(entry -> !entry.getValue().equals(previous.get(entry.getKey())))
+        .flatMap(entry -> TypeHierarchyIndex.declaredTypes(new File(entry.getKey())).stream())
+        .collect(Collectors.toList());
+    final Set<String> removed = typeIndex.invalidate(declaredTypes);
+    logger.info(String.format("Type index: %d types, %d invalidated by changed sources", typeIndex.size(), removed.size()));
+    return typeIndex;
+  }
+
+  private void writeStamps(File stampsFile) throws IOException {
+    FileUtils.writeLines(stampsFile, "UTF-8", stamps().entrySet().stream()
+        .map(entry -> entry.getKey() + "\t" + entry.getValue()).collect(Collectors.toList()));
+  }
+
+  /**
+   * Size and modification time of each source, by absolute path.
+   */
+  @NotNull
+  private Map<String, String> stamps() {
+    final Map<String, String> stamps = new TreeMap<>();
+    for (File file : project.getSourceFiles()) {
+      stamps.put(file.getAbsolutePath(), file.length() + "\t" + file.lastModified());
+    }
+    return stamps;
+  }
+
+  @NotNull
+  public List<List<File>> partition(@Nonnull List<File> files) {
+    final Map<File, List<File>> packages = files.stream()
+        .collect(Collectors.groupingBy(File::getParentFile, LinkedHashMap::new, Collectors.toList()));
+    final List<List<File>> partition = new ArrayList<>();
+    final long[] sizes = new long[shards];
+    for (int i = 0; i < shards; i++) partition.add(new ArrayList<>());
+    packages.values().stream()
+        .sorted(Comparator.comparingLong(ShardedRefAutoCoder::size).reversed())
+        .forEach(group -> {
+          int smallest = 0;
+          for (int i = 1; i < shards; i++) if (sizes[i] < sizes[smallest]) smallest = i;
+          partition.get(smallest).addAll(group);
+          sizes[smallest] += size(group);
+        });
+    return partition.stream().filter(shard -> !shard.isEmpty()).collect(Collectors.toList());
+  }
+
+  private static long size(List<File> files) {
+    return files.stream().mapToLong(File::length).sum();
+  }
+
+  @NotNull
+  private List<String> command(int shard) {
+    return Arrays.asList(
+        new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+        "-Xmx" + workerHeap,
+        "-cp", System.getProperty("java.class.path"),
+        ShardedRefAutoCoder.class.getName(),
+        "--worker", project.projectRoot, workDirectory.getAbsolutePath(), Integer.toString(shard), Boolean.toString(addRefcounting));
+  }
+
+  @NotNull
+  private File shardFile(int shard, String name, String extension) {
+    return new File(workDirectory, String.format("%s-%d.%s", name, shard, extension));
+  }
+
+  @NotNull
+  private File outputDirectory(int shard) {
+    return new File(workDirectory, String.format("output-%d", shard));
+  }
+
+  private static void work(String projectRoot, File workDirectory, int shard, boolean addRefcounting) throws IOException {
+    final RefAutoCoder autoCoder = new RefAutoCoder(projectRoot, false);
+    autoCoder.project.setClasspathEntries(FileUtils.readLines(new File(workDirectory, "classpath.txt"), "UTF-8").toArray(new String[]{}));
+    autoCoder.getTypeIndex().addAll(TypeHierarchyIndex.load(new File(workDirectory, "types.tsv")));
+    final File shardFiles = new File(workDirectory, String.format("files-%d.txt", shard));
+    autoCoder.setScope(FileUtils.readLines(shardFiles, "UTF-8").stream().map(File::new).collect(Collectors.toList()));
+    autoCoder.setMetricsFile(new File(workDirectory, String.format("metrics-%d.json", shard)));
+    autoCoder.setOutput(SourceOutput.Mode.MEMORY, null);
+    autoCoder.setVerbose(false).setAddRefcounting(addRefcounting).apply();
+    autoCoder.getOutput().writeRewritten(new File(workDirectory, String.format("output-%d", shard)));
+    autoCoder.getTypeIndex().save(new File(workDirectory, String.format("types-%d.tsv", shard)));
+  }
+
+  public File getWorkDirectory() {
+    return workDirectory;
+  }
+
+  public ShardedRefAutoCoder setWorkDirectory(File workDirectory) {
+    this.workDirectory = workDirectory;
+    return this;
+  }
+
+  public int getShards() {
+    return shards;
+  }
+
+  public ShardedRefAutoCoder setShards(int shards) {
+    this.shards = shards;
+    return this;
+  }
+
+  public String getWorkerHeap() {
+    return workerHeap;
+  }
+
+  public ShardedRefAutoCoder setWorkerHeap(String workerHeap) {
+    this.workerHeap = workerHeap;
+    return this;
+  }
+
+  public boolean isAddRefcounting() {
+    return addRefcounting;
+  }
+
+  public ShardedRefAutoCoder setAddRefcounting(boolean addRefcounting) {
+    this.addRefcounting = addRefcounting;
+    return this;
+  }
+
+  public AutoCoderMetrics getMetrics() {
+    return metrics;
+  }
+}
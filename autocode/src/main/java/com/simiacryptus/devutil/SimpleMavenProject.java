@@ -63,6 +63,8 @@ public class SimpleMavenProject {
   public final DefaultRepositorySystemSession session;
   public final MavenProject project;
   public final String projectRoot;
+  public final List<SimpleMavenProject> modules;
+  private String[] classpathEntries;
 
   public SimpleMavenProject(final String projectRoot) throws IOException, PlexusContainerException, ComponentLookupException, ProjectBuildingException {
     this.projectRoot = projectRoot;
@@ -73,24 +75,127 @@ public class SimpleMavenProject {
     this.container = getPlexusContainer(repositoryLocation);
     this.session = getSession(repositoryLocation, false, configProps, container);
     this.project = getMavenProject(container, session);
+    this.modules = sortModules(loadModules());
+  }
+
+  private SimpleMavenProject(final String projectRoot, final DefaultPlexusContainer container, final DefaultRepositorySystemSession session) throws IOException, ComponentLookupException, ProjectBuildingException {
+    this.projectRoot = projectRoot;
+    this.container = container;
+    this.session = session;
+    this.project = getMavenProject(container, session);
+    this.modules = loadModules();
+  }
+
+  /**
+   * For projects without a Maven model, such as {@link VirtualProject}.
+   */
+  protected SimpleMavenProject(final String projectRoot, final List<SimpleMavenProject> modules) {
+    this.projectRoot = projectRoot;
+    this.container = null;
+    this.session = null;
+    this.project = null;
+    this.modules = modules;
   }
 
   @NotNull
   public static SimpleMavenProject load(String root) throws IOException, PlexusContainerException, ComponentLookupException, ProjectBuildingException, DependencyResolutionException {
+    return load(root, true);
+  }
+
+  /**
+   * Loads the project model. Dependencies are resolved (and logged) up front only when requested; otherwise they
+   * are resolved on first use by {@link #getClasspathEntries()}, which binding-free parsing never needs.
+   */
+  @NotNull
+  public static SimpleMavenProject load(String root, boolean resolveDependencies) throws IOException, PlexusContainerException, ComponentLookupException, ProjectBuildingException, DependencyResolutionException {
     SimpleMavenProject mavenProject = new SimpleMavenProject(root);
-    mavenProject.resolve().getDependencies().forEach((org.eclipse.aether.graph.Dependency dependency) -> {
-      logger.info(String.format("Dependency: %s (%s)", dependency.getArtifact().getFile().getAbsolutePath(), dependency));
-    });
+    if (!resolveDependencies) return mavenProject;
+    if (mavenProject.isReactor()) {
+      mavenProject.modules.forEach(module -> logger.info(String.format("Module: %s (%s)", module.project.getArtifactId(), module.projectRoot)));
+      Arrays.stream(mavenProject.getClasspathEntries()).forEach(entry -> logger.info(String.format("Dependency: %s", entry)));
+    } else {
+      mavenProject.resolve().getDependencies().forEach((org.eclipse.aether.graph.Dependency dependency) -> {
+        logger.info(String.format("Dependency: %s (%s)", dependency.getArtifact().getFile().getAbsolutePath(), dependency));
+      });
+    }
     return mavenProject;
   }
 
+  public boolean isVirtual() {
+    return false;
+  }
+
+  public boolean isReactor() {
+    return !modules.isEmpty();
+  }
+
+  @NotNull
+  private List<SimpleMavenProject> loadModules() throws IOException, ComponentLookupException, ProjectBuildingException {
+    final List<SimpleMavenProject> modules = new ArrayList<>();
+    for (String module : project.getModules()) {
+      final SimpleMavenProject child = new SimpleMavenProject(new File(projectRoot, module).getCanonicalPath(), container, session);
+      if (child.isReactor()) {
+        modules.addAll(child.modules);
+      } else {
+        modules.add(child);
+      }
+    }
+    return modules;
+  }
+
+  @NotNull
+  private static List<SimpleMavenProject> sortModules(List<SimpleMavenProject> modules) {
+    final Map<String, SimpleMavenProject> byKey = new LinkedHashMap<>();
+    modules.forEach(module -> byKey.put(module.getKey(), module));
+    final List<SimpleMavenProject> sorted = new ArrayList<>();
+    final Set<String> visiting = new HashSet<>();
+    final Set<String> done = new HashSet<>();
+    for (SimpleMavenProject module : modules) visit(module, byKey, visiting, done, sorted);
+    return sorted;
+  }
+
+  private static void visit(SimpleMavenProject module, Map<String, SimpleMavenProject> byKey, Set<String> visiting, Set<String> done, List<SimpleMavenProject> sorted) {
+    final String key = module.getKey();
+    if (done.contains(key)) return;
+    if (!visiting.add(key)) {
+      logger.warn("Module dependency cycle at " + key);
+      return;
+    }
+    for (org.apache.maven.model.Dependency dependency : module.project.getDependencies()) {
+      final SimpleMavenProject sibling = byKey.get(dependency.getGroupId() + ":" + dependency.getArtifactId());
+      if (null != sibling) visit(sibling, byKey, visiting, done, sorted);
+    }
+    visiting.remove(key);
+    done.add(key);
+    sorted.add(module);
+  }
+
+  @NotNull
+  public String getKey() {
+    return project.getGroupId() + ":" + project.getArtifactId();
+  }
+
 
-  public final HashMap<File, CompilationUnit> parse() {
+  public HashMap<File, CompilationUnit> parse() {
+    return parse(getSourceFiles());
+  }
+
+  @NotNull
+  public List<File> getSourceFiles() {
+    if (isReactor()) {
+      final List<File> files = new ArrayList<>();
+      modules.forEach(module -> files.addAll(module.getSourceFiles()));
+      return files;
+    }
+    return new ArrayList<>(FileUtils.listFiles(new File(projectRoot), new String[]{"java"}, true));
+  }
+
+  public HashMap<File, CompilationUnit> parse(Collection<File> files) {
     HashMap<File, CompilationUnit> results = new HashMap<>();
     HashMap<String, File> fileMap = new HashMap<>();
     final ASTParser parser = getParser();
     parser.createASTs(
-        FileUtils.listFiles(new File(projectRoot), new String[]{"java"}, true).stream().map(file -> {
+        files.stream().map(file -> {
           final String absolutePath = file.getAbsolutePath();
           fileMap.put(absolutePath, file);
           return absolutePath;
@@ -108,27 +213,95 @@ public class SimpleMavenProject {
     return results;
   }
 
+  @NotNull
+  public CompilationUnit parse(File file, String source) {
+    final ASTParser parser = getParser();
+    parser.setKind(ASTParser.K_COMPILATION_UNIT);
+    parser.setUnitName(file.getAbsolutePath());
+    parser.setSource(source.toCharArray());
+    return (CompilationUnit) parser.createAST(new NullProgressMonitor());
+  }
+
+  /**
+   * Parses a single file without bindings or a classpath. Only the syntax tree is available.
+   */
+  @NotNull
+  public CompilationUnit parseUnbound(File file, String source) {
+    final ASTParser parser = ASTParser.newParser(AST.JLS11);
+    parser.setKind(ASTParser.K_COMPILATION_UNIT);
+    parser.setResolveBindings(false);
+    parser.setCompilerOptions(getCompilerOptions());
+    parser.setUnitName(file.getAbsolutePath());
+    parser.setSource(source.toCharArray());
+    return (CompilationUnit) parser.createAST(new NullProgressMonitor());
+  }
+
   @NotNull
   public ASTParser getParser() {
     ASTParser astParser = ASTParser.newParser(AST.JLS11);
     astParser.setKind(ASTParser.K_EXPRESSION);
     astParser.setResolveBindings(true);
+    astParser.setCompilerOptions(getCompilerOptions());
+    astParser.setEnvironment(getClasspathEntries(), getSourcepathEntries(), null, true);
+    return astParser;
+  }
+
+  @NotNull
+  private static HashMap<String, String> getCompilerOptions() {
     HashMap<String, String> compilerOptions = new HashMap<>();
     compilerOptions.put(CompilerOptions.OPTION_Source, CompilerOptions.versionFromJdkLevel(ClassFileConstants.JDK1_8));
     compilerOptions.put(CompilerOptions.OPTION_DocCommentSupport, CompilerOptions.ENABLED);
-    astParser.setCompilerOptions(compilerOptions);
-    String[] classpathEntries = resolve().getDependencies().stream().map(x -> x.getArtifact().getFile().getAbsolutePath()).toArray(i -> new String[i]);
-    String[] sourcepathEntries = Stream.concat(
+    return compilerOptions;
+  }
+
+  @NotNull
+  public synchronized String[] getClasspathEntries() {
+    if (null == classpathEntries) {
+      if (isReactor()) {
+        final Set<String> siblings = new HashSet<>();
+        modules.forEach(module -> siblings.add(module.getKey()));
+        classpathEntries = modules.stream().flatMap(module -> module.resolve().getDependencies().stream())
+            .filter(x -> !siblings.contains(x.getArtifact().getGroupId() + ":" + x.getArtifact().getArtifactId()))
+            .filter(x -> null != x.getArtifact().getFile())
+            .map(x -> x.getArtifact().getFile().getAbsolutePath())
+            .distinct().toArray(i -> new String[i]);
+      } else {
+        classpathEntries = resolve().getDependencies().stream()
+            .filter(x -> null != x.getArtifact().getFile())
+            .map(x -> x.getArtifact().getFile().getAbsolutePath())
+            .toArray(i -> new String[i]);
+      }
+    }
+    return classpathEntries;
+  }
+
+  /**
+   * Uses a classpath resolved elsewhere, such as by a coordinating process, instead of resolving it here.
+   */
+  public synchronized void setClasspathEntries(@Nonnull String[] classpathEntries) {
+    this.classpathEntries = classpathEntries;
+  }
+
+  @NotNull
+  public String[] getSourcepathEntries() {
+    if (isReactor()) {
+      return modules.stream().flatMap(module -> Arrays.stream(module.getSourcepathEntries())).toArray(i -> new String[i]);
+    }
+    return Stream.concat(
         project.getTestCompileSourceRoots().stream(),
         project.getCompileSourceRoots().stream()
     ).toArray(i -> new String[i]);
-    astParser.setEnvironment(classpathEntries, sourcepathEntries, null, true);
-    return astParser;
   }
 
   public DependencyResolutionResult resolve() {
     try {
       return container.lookup(ProjectDependenciesResolver.class).resolve(new DefaultDependencyResolutionRequest().setRepositorySession(session).setMavenProject(project));
+    } catch (DependencyResolutionException e) {
+      if (null != e.getResult() && !e.getResult().getDependencies().isEmpty()) {
+        logger.warn(String.format("Partial dependency resolution for %s: %s", projectRoot, e.getMessage()));
+        return e.getResult();
+      }
+      throw new RuntimeException(e);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
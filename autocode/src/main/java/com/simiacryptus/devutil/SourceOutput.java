@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Destination for rewritten sources.
+ * Outside of {@link Mode#IN_PLACE}, rewrites are held in memory (and read back by later passes)
+ * until {@link #flush(Collection)} emits them as a patch, a mirrored source root, or a zip.
+ * {@link Mode#MEMORY} never touches the disk: sources can be given up front, and results are read back with
+ * {@link #getSources()}.
+ */
+public class SourceOutput {
+  private static final Logger logger = LoggerFactory.getLogger(SourceOutput.class);
+  private final Path projectRoot;
+  private final Map<File, String> originals = new ConcurrentHashMap<>();
+  private final Map<File, String> rewritten = new ConcurrentHashMap<>();
+  private final Map<File, String> sources;
+  private Mode mode = Mode.IN_PLACE;
+  private File target = null;
+  private String patch = "";
+
+  public SourceOutput(@Nonnull String projectRoot) {
+    this(projectRoot, Collections.emptyMap());
+  }
+
+  public SourceOutput(@Nonnull String projectRoot, @Nonnull Map<File, String> sources) {
+    this.projectRoot = new File(projectRoot).toPath();
+    this.sources = sources;
+    if (!sources.isEmpty()) this.mode = Mode.MEMORY;
+  }
+
+  public boolean isPending(@Nonnull File file) {
+    return rewritten.containsKey(file);
+  }
+
+  @NotNull
+  public String read(@Nonnull File file) {
+    final String src = rewritten.get(file);
+    if (null != src) return src;
+    final String source = sources.get(file);
+    if (null != source) return source;
+    try {
+      return FileUtils.readFileToString(file, "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void write(@Nonnull File file, @Nonnull String content) {
+    if (mode == Mode.IN_PLACE) {
+      try {
+        replace(file.toPath(), content);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      originals.computeIfAbsent(file, this::read);
+      rewritten.put(file, content);
+    }
+  }
+
+  @NotNull
+  public Map<File, String> getRewritten() {
+    return Collections.unmodifiableMap(rewritten);
+  }
+
+  public void flush(@Nonnull Collection<File> sources) {
+    try {
+      switch (mode) {
+        case IN_PLACE:
+        case MEMORY:
+          break;
+        case DIFF:
+          final StringBuilder sb = new StringBuilder();
+          new TreeMap<>(rewritten).forEach((file, content) -> sb.append(UnifiedDiff.diff(relative(file), originals.get(file), content)));
+          patch = sb.toString();
+          if (null != target) write(target.toPath(), patch);
+          logger.info(String.format("Patch covers %d files", rewritten.size()));
+          break;
+        case DIRECTORY:
+          copyTo(target.toPath(), sources);
+          break;
+        case ZIP:
+          final Map<String, String> env = new HashMap<>();
+          env.put("create", "true");
+          if (target.exists()) target.delete();
+          try (FileSystem zip = FileSystems.newFileSystem(URI.create("jar:" + target.toURI()), env)) {
+            copyTo(zip.getPath("/"), sources);
+          }
+          break;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes only the rewritten sources under the root, each at its path relative to the project root.
+   */
+  public void writeRewritten(@Nonnull File root) {
+    try {
+      for (Map.Entry<File, String> entry : rewritten.entrySet()) {
+        write(root.toPath().resolve(relative(entry.getKey())), entry.getValue());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void copyTo(Path root, Collection<File> sources) throws IOException {
+    for (File file : sources) {
+      final Path path = root.resolve(relative(file));
+      if (null != path.getParent()) Files.createDirectories(path.getParent());
+      final String content = rewritten.get(file);
+      if (null != content) {
+        write(path, content);
+      } else if (root.getFileSystem() == FileSystems.getDefault()) {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          long position = 0;
+          final long size = in.size();
+          while (position < size) position += in.transferTo(position, size - position, out);
+        }
+      } else {
+        Files.copy(file.toPath(), path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    logger.info(String.format("Wrote %d sources (%d rewritten) to %s", sources.size(), rewritten.size(), target));
+  }
+
+  /**
+   * Writes to a sibling temporary file and moves it into place, so concurrent readers (such as other worker
+   * processes parsing the file through their source path) never see a partial source.
+   */
+  private static void replace(Path path, String content) throws IOException {
+    final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    write(temp, content);
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    if (null != path.getParent()) Files.createDirectories(path.getParent());
+    try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer buffer = StandardCharsets.UTF_8.encode(content);
+      while (buffer.hasRemaining()) channel.write(buffer);
+    }
+  }
+
+  @NotNull
+  public String relative(@Nonnull File file) {
+    return projectRoot.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * Current content of each source given up front, by path relative to the project root.
+   */
+  @NotNull
+  public Map<String, String> getSources() {
+    final Map<String, String> results = new LinkedHashMap<>();
+    sources.keySet().forEach(file -> results.put(relative(file), read(file)));
+    return results;
+  }
+
+  @NotNull
+  public String getPatch() {
+    return patch;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public File getTarget() {
+    return target;
+  }
+
+  public SourceOutput setMode(Mode mode, File target) {
+    if ((mode == Mode.DIRECTORY || mode == Mode.ZIP) && null == target) {
+      throw new IllegalArgumentException(mode + " requires a target");
+    }
+    this.mode = mode;
+    this.target = target;
+    return this;
+  }
+
+  public enum Mode {
+    IN_PLACE,
+    DIFF,
+    DIRECTORY,
+    ZIP,
+    MEMORY
+  }
+}
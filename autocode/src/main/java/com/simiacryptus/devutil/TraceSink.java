@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Structured trace of visited AST nodes.
+ * Producers publish into a bounded lock-free ring buffer (dropping events when it is full);
+ * a background thread drains it to a tab-separated file, gzipped if the file name ends in ".gz".
+ * After {@link #close()}, a slot that was claimed but is still unfilled once the close timeout has passed is
+ * skipped and counted as dropped, so closing never waits on a stalled producer.
+ */
+public class TraceSink implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(TraceSink.class);
+  private final AtomicReferenceArray<Event> buffer;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final Writer writer;
+  private final Thread drainer;
+  private final File file;
+  private volatile boolean running = true;
+  private volatile boolean failed = false;
+  private Set<String> nodeTypes = Collections.emptySet();
+  private Pattern filePattern = null;
+  private double sampleRate = 1.0;
+  private long closeTimeoutMillis = 1000;
+
+  public TraceSink(@Nonnull File file) {
+    this(file, 1 << 16);
+  }
+
+  public TraceSink(@Nonnull File file, int capacity) {
+    this(file, open(file), capacity);
+  }
+
+  TraceSink(@Nonnull File file, @Nonnull Writer writer, int capacity) {
+    final int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+    this.buffer = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.file = file;
+    this.writer = writer;
+    this.drainer = new Thread(this::drainLoop, "trace-" + file.getName());
+    this.drainer.setDaemon(true);
+    this.drainer.start();
+  }
+
+  private static Writer open(File file) {
+    try {
+      if (null != file.getParentFile()) file.getParentFile().mkdirs();
+      OutputStream out = new FileOutputStream(file);
+      if (file.getName().endsWith(".gz")) out = new GZIPOutputStream(out, 1 << 16);
+      return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public boolean accepts(@Nonnull File file) {
+    return null == filePattern || filePattern.matcher(file.getPath()).find();
+  }
+
+  public boolean accepts(@Nonnull Class<?> nodeType) {
+    if (!nodeTypes.isEmpty() && !nodeTypes.contains(nodeType.getSimpleName())) return false;
+    return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  public boolean emit(String pass, String file, String nodeType, int line) {
+    if (failed || !running) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    final long h = claim();
+    if (h < 0) return false;
+    buffer.set((int) (h & mask), new Event(System.nanoTime(), pass, file, nodeType, line));
+    return true;
+  }
+
+  /**
+   * Claims the next slot for a producer to fill, or returns -1 and counts a dropped event when the buffer is full.
+   */
+  long claim() {
+    long h;
+    do {
+      h = head.get();
+      if (h - tail.get() >= buffer.length()) {
+        dropped.incrementAndGet();
+        return -1;
+      }
+    } while (!head.compareAndSet(h, h + 1));
+    return h;
+  }
+
+  private void drainLoop() {
+    long stalledSince = 0;
+    while (running || tail.get() < head.get()) {
+      if (0 < drain()) {
+        stalledSince = 0;
+      } else if (running) {
+        LockSupport.parkNanos(1000000);
+      } else if (0 == stalledSince) {
+        stalledSince = System.nanoTime();
+      } else if (System.nanoTime() - stalledSince > TimeUnit.MILLISECONDS.toNanos(closeTimeoutMillis)) {
+        buffer.set((int) (tail.getAndIncrement() & mask), null);
+        dropped.incrementAndGet();
+        stalledSince = 0;
+      } else {
+        LockSupport.parkNanos(1000000);
+      }
+    }
+  }
+
+  private int drain() {
+    int count = 0;
+    try {
+      while (tail.get() < head.get()) {
+        final int index = (int) (tail.get() & mask);
+        final Event event = buffer.getAndSet(index, null);
+        if (null == event) break;
+        tail.incrementAndGet();
+        if (failed) {
+          dropped.incrementAndGet();
+        } else {
+          writer.write(event.toString());
+          written.incrementAndGet();
+        }
+        count++;
+      }
+    } catch (IOException e) {
+      logger.warn("Error writing trace " + file, e);
+      failed = true;
+      dropped.incrementAndGet();
+    }
+    return count;
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    try {
+      drainer.join();
+      writer.close();
+    } catch (IOException e) {
+      if (!failed) throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    logger.info(String.format("Trace %s: %d events written, %d dropped", file, written.get(), dropped.get()));
+  }
+
+  public long getCloseTimeoutMillis() {
+    return closeTimeoutMillis;
+  }
+
+  public TraceSink setCloseTimeoutMillis(long closeTimeoutMillis) {
+    this.closeTimeoutMillis = closeTimeoutMillis;
+    return this;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public long getWritten() {
+    return written.get();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public Set<String> getNodeTypes() {
+    return nodeTypes;
+  }
+
+  public TraceSink setNodeTypes(String... nodeTypes) {
+    this.nodeTypes = new HashSet<>(java.util.Arrays.asList(nodeTypes));
+    return this;
+  }
+
+  public Pattern getFilePattern() {
+    return filePattern;
+  }
+
+  public TraceSink setFilePattern(Pattern filePattern) {
+    this.filePattern = filePattern;
+    return this;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  public TraceSink setSampleRate(double sampleRate) {
+    this.sampleRate = sampleRate;
+    return this;
+  }
+
+  private static final class Event {
+    final long time;
+    final String pass;
+    final String file;
+    final String nodeType;
+    final int line;
+
+    Event(long time, String pass, String file, String nodeType, int line) {
+      this.time = time;
+      this.pass = pass;
+      this.file = file;
+      this.nodeType = nodeType;
+      this.line = line;
+    }
+
+    @Override
+    public String toString() {
+      return time + "\t" + pass + "\t" + file + "\t" + line + "\t" + nodeType + "\n";
+    }
+  }
+}
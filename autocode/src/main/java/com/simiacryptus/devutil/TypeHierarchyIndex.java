@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Superclass relation of every type seen so far, keyed by binary name.
+ * Only strings are retained, so facts learned from one parse batch survive after its bindings are released.
+ */
+public class TypeHierarchyIndex {
+  private static final String ROOT = "";
+  private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+  private static final Pattern TYPE = Pattern.compile("\\b(?:class|interface|enum)\\s+(\\w+)");
+  private final Map<String, String> superclasses = new ConcurrentHashMap<>();
+
+  public boolean derives(@Nonnull ITypeBinding typeBinding, @Nonnull String baseClass) {
+    final String binaryName = typeBinding.getBinaryName();
+    if (null == binaryName) {
+      if (typeBinding.getSuperclass() != null) return derives(typeBinding.getSuperclass(), baseClass);
+      return false;
+    }
+    if (!superclasses.containsKey(binaryName)) add(typeBinding);
+    return derives(binaryName, baseClass);
+  }
+
+  public boolean derives(@Nonnull String binaryName, @Nonnull String baseClass) {
+    String name = binaryName;
+    while (null != name && !ROOT.equals(name)) {
+      if (name.equals(baseClass)) return true;
+      name = superclasses.get(name);
+    }
+    return false;
+  }
+
+  public void add(@Nonnull ITypeBinding typeBinding) {
+    ITypeBinding type = typeBinding;
+    while (null != type && null != type.getBinaryName() && !superclasses.containsKey(type.getBinaryName())) {
+      final ITypeBinding superclass = type.getSuperclass();
+      superclasses.put(type.getBinaryName(), null == superclass || null == superclass.getBinaryName() ? ROOT : superclass.getBinaryName());
+      type = superclass;
+    }
+  }
+
+  public void add(@Nonnull String binaryName, String superclass) {
+    superclasses.put(binaryName, null == superclass ? ROOT : superclass);
+  }
+
+  public void addAll(@Nonnull TypeHierarchyIndex other) {
+    superclasses.putAll(other.superclasses);
+  }
+
+  /**
+   * Forgets every type declared in the given sources, so their superclasses are looked up again from fresh
+   * bindings. Returns the names removed.
+   */
+  @NotNull
+  public Set<String> invalidate(@Nonnull Collection<String> declaredTypes) {
+    final Set<String> removed = new HashSet<>();
+    superclasses.keySet().removeIf(name -> {
+      if (!isDeclared(name, declaredTypes)) return false;
+      removed.add(name);
+      return true;
+    });
+    return removed;
+  }
+
+  public void clear() {
+    superclasses.clear();
+  }
+
+  /**
+   * Whether the binary name is one of the declared types or nested in one.
+   */
+  public static boolean isDeclared(@Nonnull String binaryName, @Nonnull Collection<String> declaredTypes) {
+    for (String type : declaredTypes) {
+      if (binaryName.equals(type) || binaryName.startsWith(type + "$")) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Package-qualified names of the types a source declares, found textually. Nested types appear under their
+   * simple name too, which only widens an invalidation.
+   */
+  @NotNull
+  public static List<String> declaredTypes(@Nonnull File file) {
+    if (!file.exists()) return Collections.emptyList();
+    final String source;
+    try {
+      source = FileUtils.readFileToString(file, "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    final Matcher packageMatcher = PACKAGE.matcher(source);
+    final String prefix = packageMatcher.find() ? packageMatcher.group(1) + "." : "";
+    final List<String> types = new ArrayList<>();
+    final Matcher typeMatcher = TYPE.matcher(source);
+    while (typeMatcher.find()) types.add(prefix + typeMatcher.group(1));
+    return types;
+  }
+
+  public boolean contains(@Nonnull String binaryName) {
+    return superclasses.containsKey(binaryName);
+  }
+
+  @NotNull
+  public Set<String> subtypes(@Nonnull String baseClass) {
+    return superclasses.keySet().stream().filter(name -> derives(name, baseClass)).collect(Collectors.toSet());
+  }
+
+  public int size() {
+    return superclasses.size();
+  }
+
+  public void save(@Nonnull File file) {
+    try {
+      FileUtils.writeLines(file, "UTF-8", superclasses.entrySet().stream()
+          .map(e -> e.getKey() + "\t" + e.getValue())
+          .sorted().collect(Collectors.toList()));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  public static TypeHierarchyIndex load(@Nonnull File file) {
+    final TypeHierarchyIndex index = new TypeHierarchyIndex();
+    try {
+      for (String line : FileUtils.readLines(file, "UTF-8")) {
+        final String[] split = line.split("\t", -1);
+        if (split.length == 2) index.superclasses.put(split[0], split[1]);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return index;
+  }
+}
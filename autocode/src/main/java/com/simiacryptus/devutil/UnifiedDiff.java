@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line-based unified diff (Myers' O(ND) algorithm) with three lines of context.
+ */
+public class UnifiedDiff {
+  private static final int CONTEXT = 3;
+  private static final int MAX_EDIT_DISTANCE = 2000;
+  private static final String NO_NEWLINE = "\n\\ No newline at end of file";
+
+  @NotNull
+  public static String diff(@Nonnull String path, @Nonnull String before, @Nonnull String after) {
+    if (before.equals(after)) return "";
+    final List<Edit> edits = edits(lines(before), lines(after));
+    final StringBuilder sb = new StringBuilder();
+    sb.append("--- a/").append(path).append("\n");
+    sb.append("+++ b/").append(path).append("\n");
+    int i = 0;
+    while (i < edits.size()) {
+      if (edits.get(i).type == ' ') {
+        i++;
+        continue;
+      }
+      final int start = Math.max(0, i - CONTEXT);
+      int end = i;
+      int lastChange = i;
+      while (end < edits.size() && end - lastChange <= 2 * CONTEXT) {
+        if (edits.get(end).type != ' ') lastChange = end;
+        end++;
+      }
+      end = Math.min(edits.size(), lastChange + CONTEXT + 1);
+      appendHunk(sb, edits.subList(start, end));
+      i = end;
+    }
+    return sb.toString();
+  }
+
+  private static void appendHunk(StringBuilder sb, List<Edit> hunk) {
+    final long aCount = hunk.stream().filter(x -> x.type != '+').count();
+    final long bCount = hunk.stream().filter(x -> x.type != '-').count();
+    final Edit first = hunk.get(0);
+    sb.append(String.format("@@ -%d,%d +%d,%d @@\n",
+        aCount == 0 ? first.a : first.a + 1, aCount,
+        bCount == 0 ? first.b : first.b + 1, bCount));
+    for (Edit edit : hunk) {
+      sb.append(edit.type).append(edit.text).append("\n");
+    }
+  }
+
+  /**
+   * Lines without their terminators. A final line without a newline carries the "No newline" marker, so it
+   * differs from the same line with one and the marker is printed right after it.
+   */
+  @NotNull
+  private static List<String> lines(String text) {
+    final List<String> lines = new ArrayList<>(Arrays.asList(text.split("\r?\n", -1)));
+    final int last = lines.size() - 1;
+    if (lines.get(last).isEmpty()) {
+      lines.remove(last);
+    } else {
+      lines.set(last, lines.get(last) + NO_NEWLINE);
+    }
+    return lines;
+  }
+
+  @NotNull
+  private static List<Edit> edits(List<String> a, List<String> b) {
+    int prefix = 0;
+    while (prefix < a.size() && prefix < b.size() && a.get(prefix).equals(b.get(prefix))) prefix++;
+    int suffix = 0;
+    while (suffix < a.size() - prefix && suffix < b.size() - prefix
+        && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) suffix++;
+    final List<Edit> edits = new ArrayList<>();
+    for (int i = 0; i < prefix; i++) edits.add(new Edit(' ', i, i, a.get(i)));
+    edits.addAll(myers(a.subList(prefix, a.size() - suffix), b.subList(prefix, b.size() - suffix), prefix));
+    final int aOffset = a.size() - suffix;
+    final int bOffset = b.size() - suffix;
+    for (int i = 0; i < suffix; i++) edits.add(new Edit(' ', aOffset + i, bOffset + i, a.get(aOffset + i)));
+    return edits;
+  }
+
+  @NotNull
+  private static List<Edit> myers(List<String> a, List<String> b, int offset) {
+    final int n = a.size();
+    final int m = b.size();
+    final int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+    final List<int[]> trace = new ArrayList<>();
+    int[] v = new int[3];
+    boolean found = n == 0 && m == 0;
+    for (int d = 0; d <= max && !found; d++) {
+      final int[] next = new int[2 * d + 3];
+      for (int k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && get(v, d - 1, k - 1) < get(v, d - 1, k + 1))) {
+          x = get(v, d - 1, k + 1);
+        } else {
+          x = get(v, d - 1, k - 1) + 1;
+        }
+        int y = x - k;
+        while (x < n && y < m && a.get(x).equals(b.get(y))) {
+          x++;
+          y++;
+        }
+        next[k + d + 1] = x;
+        if (x >= n && y >= m) {
+          found = true;
+          break;
+        }
+      }
+      trace.add(next);
+      v = next;
+    }
+    final List<Edit> edits = new ArrayList<>();
+    if (!found) {
+      for (int i = 0; i < n; i++) edits.add(new Edit('-', offset + i, offset, a.get(i)));
+      for (int i = 0; i < m; i++) edits.add(new Edit('+', offset + n, offset + i, b.get(i)));
+      return edits;
+    }
+    int x = n;
+    int y = m;
+    for (int d = trace.size() - 1; d >= 0; d--) {
+      final int k = x - y;
+      final int prevK;
+      if (d == 0) {
+        prevK = 0;
+      } else if (k == -d || (k != d && get(trace.get(d - 1), d - 1, k - 1) < get(trace.get(d - 1), d - 1, k + 1))) {
+        prevK = k + 1;
+      } else {
+        prevK = k - 1;
+      }
+      final int prevX = d == 0 ? 0 : get(trace.get(d - 1), d - 1, prevK);
+      final int prevY = prevX - prevK;
+      while (x > prevX && y > prevY) {
+        x--;
+        y--;
+        edits.add(0, new Edit(' ', offset + x, offset + y, a.get(x)));
+      }
+      if (d > 0) {
+        if (x == prevX) {
+          edits.add(0, new Edit('+', offset + x, offset + prevY, b.get(prevY)));
+        } else {
+          edits.add(0, new Edit('-', offset + prevX, offset + y, a.get(prevX)));
+        }
+      }
+      x = prevX;
+      y = prevY;
+    }
+    return edits;
+  }
+
+  private static int get(int[] v, int d, int k) {
+    final int index = k + d + 1;
+    return index < 0 || index >= v.length ? 0 : v[index];
+  }
+
+  private static final class Edit {
+    final char type;
+    final int a;
+    final int b;
+    final String text;
+
+    Edit(char type, int a, int b, String text) {
+      this.type = type;
+      this.a = a;
+      this.b = b;
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generated source roots holding each variant of a project, for side-by-side builds.
+ * <p>
+ * Each variant is written to {@code <root>/<variant>/<artifactId>/}, mirroring the module's own layout, and
+ * {@link #writeProfile()} emits {@code <root>/profile.xml}: a Maven profile, meant for the project's parent pom,
+ * that builds the module from the variant named by {@code -Drefcount.variant=<variant>} into
+ * {@code target/<variant>}, with the variant as the jar classifier, so both builds sit next to each other. The
+ * profile assumes the standard {@code src/main/java} and {@code src/test/java} layout.
+ */
+public class VariantBuild {
+  public static final String STRIPPED = "stripped";
+  public static final String REFCOUNTED = "refcounted";
+  private static final Logger logger = LoggerFactory.getLogger(VariantBuild.class);
+  private final SimpleMavenProject project;
+  private final File root;
+  private final List<String> variants = new ArrayList<>();
+
+  public VariantBuild(@Nonnull SimpleMavenProject project, @Nonnull File root) {
+    this.project = project;
+    this.root = root;
+  }
+
+  /**
+   * Writes the current content of every source, as held by the output, to the variant's source root.
+   */
+  public void export(@Nonnull String variant, @Nonnull SourceOutput output) {
+    final File variantRoot = new File(root, variant);
+    try {
+      FileUtils.deleteDirectory(variantRoot);
+      int count = 0;
+      for (SimpleMavenProject module : project.isReactor() ? project.modules : Collections.singletonList(project)) {
+        final Path moduleRoot = new File(module.projectRoot).getAbsoluteFile().toPath();
+        final File moduleTarget = new File(variantRoot, getArtifactId(module));
+        for (File file : module.getSourceFiles()) {
+          final String relative = moduleRoot.relativize(file.getAbsoluteFile().toPath()).toString();
+          FileUtils.write(new File(moduleTarget, relative), output.read(file), "UTF-8");
+          count++;
+        }
+      }
+      if (!variants.contains(variant)) variants.add(variant);
+      logger.info(String.format("Wrote %d sources of the %s variant to %s", count, variant, variantRoot));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  public File writeProfile() {
+    final File file = new File(root, "profile.xml");
+    try {
+      FileUtils.write(file, getProfile(), "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    logger.info(String.format("Wrote build profile to %s; build each variant with %s", file,
+        String.join(" and ", variants.stream().map(x -> "-Drefcount.variant=" + x).toArray(i -> new String[i]))));
+    return file;
+  }
+
+  @NotNull
+  public String getProfile() {
+    final String sources = root.getAbsolutePath().replace(File.separatorChar, '/') + "/${refcount.variant}/${project.artifactId}";
+    return "<profile>\n"
+        + "    <id>refcount-variant</id>\n"
+        + "    <activation>\n"
+        + "        <property>\n"
+        + "            <name>refcount.variant</name>\n"
+        + "        </property>\n"
+        + "    </activation>\n"
+        + "    <build>\n"
+        + "        <sourceDirectory>" + sources + "/src/main/java</sourceDirectory>\n"
+        + "        <testSourceDirectory>" + sources + "/src/test/java</testSourceDirectory>\n"
+        + "        <directory>${project.basedir}/target/${refcount.variant}</directory>\n"
+        + "        <plugins>\n"
+        + "            <plugin>\n"
+        + "                <groupId>org.apache.maven.plugins</groupId>\n"
+        + "                <artifactId>maven-jar-plugin</artifactId>\n"
+        + "                <configuration>\n"
+        + "                    <classifier>${refcount.variant}</classifier>\n"
+        + "                </configuration>\n"
+        + "            </plugin>\n"
+        + "        </plugins>\n"
+        + "    </build>\n"
+        + "</profile>\n";
+  }
+
+  @NotNull
+  public static String getArtifactId(@Nonnull SimpleMavenProject module) {
+    return null == module.project ? new File(module.projectRoot).getName() : module.project.getArtifactId();
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  @NotNull
+  public List<String> getVariants() {
+    return Collections.unmodifiableList(variants);
+  }
+}
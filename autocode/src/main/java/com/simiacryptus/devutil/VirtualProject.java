@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Project held entirely in memory: a map of source paths to contents plus an explicit classpath.
+ * No Maven model is built, no dependencies are resolved and the project's sources are never read from or written
+ * to disk; rewrites are kept by a {@link SourceOutput.Mode#MEMORY} output. Every unit is parsed together in one
+ * environment, with bindings against the classpath and the running JDK, so units resolve each other's types. The
+ * parser only reads units from files, so they are staged in a private scratch directory for each parse.
+ */
+public class VirtualProject extends SimpleMavenProject {
+  private final Map<File, String> sources = new LinkedHashMap<>();
+  private final String[] classpath;
+  private File scratch = null;
+
+  public VirtualProject(@Nonnull Map<String, String> sources, @Nonnull String... classpath) {
+    this("/virtual", sources, classpath);
+  }
+
+  public VirtualProject(@Nonnull String projectRoot, @Nonnull Map<String, String> sources, @Nonnull String... classpath) {
+    super(projectRoot, Collections.emptyList());
+    sources.forEach((path, content) -> this.sources.put(new File(projectRoot, path), content));
+    this.classpath = classpath;
+  }
+
+  @Override
+  public boolean isVirtual() {
+    return true;
+  }
+
+  @NotNull
+  public Map<File, String> getSources() {
+    return Collections.unmodifiableMap(sources);
+  }
+
+  @NotNull
+  @Override
+  public List<File> getSourceFiles() {
+    return new ArrayList<>(sources.keySet());
+  }
+
+  @NotNull
+  @Override
+  public HashMap<File, CompilationUnit> parse(Collection<File> files) {
+    return parse(files, sources::get);
+  }
+
+  /**
+   * Parses the given units together with every other unit of the project, each with the contents the function
+   * reads for it, and returns the given units.
+   */
+  @NotNull
+  public synchronized HashMap<File, CompilationUnit> parse(@Nonnull Collection<File> files, @Nonnull Function<File, String> read) {
+    final Set<File> requested = new HashSet<>(files);
+    final Map<String, File> staged = new LinkedHashMap<>();
+    sources.keySet().forEach(file -> staged.put(stage(file, read.apply(file)).getAbsolutePath(), file));
+    final HashMap<File, CompilationUnit> results = new HashMap<>();
+    getParser().createASTs(
+        staged.keySet().toArray(new String[]{}),
+        Collections.nCopies(staged.size(), "UTF-8").toArray(new String[]{}),
+        new String[]{},
+        new FileASTRequestor() {
+          @Override
+          public void acceptAST(final String source, final CompilationUnit ast) {
+            final File file = staged.get(source);
+            if (requested.contains(file)) results.put(file, ast);
+          }
+        },
+        new NullProgressMonitor()
+    );
+    return results;
+  }
+
+  /**
+   * Writes a unit's contents to its place under the scratch directory. Everything created there is deleted when
+   * the JVM exits.
+   */
+  @NotNull
+  private File stage(@Nonnull File file, @Nonnull String source) {
+    try {
+      if (null == scratch) {
+        scratch = Files.createTempDirectory("virtual").toFile();
+        scratch.deleteOnExit();
+      }
+      final File staged = new File(scratch, new File(projectRoot).toPath().relativize(file.toPath()).toString());
+      if (!staged.exists()) {
+        final Deque<File> created = new ArrayDeque<>();
+        for (File dir = staged.getParentFile(); !dir.exists(); dir = dir.getParentFile()) created.push(dir);
+        for (File dir : created) {
+          dir.mkdir();
+          dir.deleteOnExit();
+        }
+        staged.deleteOnExit();
+      }
+      FileUtils.write(staged, source, "UTF-8");
+      return staged;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  @Override
+  public synchronized String[] getClasspathEntries() {
+    return classpath;
+  }
+
+  @NotNull
+  @Override
+  public String[] getSourcepathEntries() {
+    return new String[]{};
+  }
+}
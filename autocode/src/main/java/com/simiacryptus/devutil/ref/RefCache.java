@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded cache of refcounted values that owns one reference per entry.
+ * <p>
+ * {@link #put} takes over the caller's reference; {@link #get} and {@link #computeIfAbsent} hand out a reference
+ * of their own (addRef) that the caller must release. The cache releases its reference when an entry is replaced,
+ * evicted, expires or is invalidated, and releases every entry in its own {@code _free}. Being a
+ * ReferenceCountingBase in a consuming package, a RefCache field or local is treated by {@link
+ * com.simiacryptus.devutil.RefAutoCoder} as any other owned reference, and the value passed to {@code put} as consumed.
+ * <p>
+ * Keys are spread over independently locked segments; each segment enforces its share of the entry and weight
+ * limits, evicting least recently used entries ({@link Policy#LRU}) or the least frequently used, oldest first
+ * ({@link Policy#LFU}). Evicted values are released after the segment lock is dropped, so a {@code _free} cascade
+ * never runs under the lock.
+ */
+public class RefCache<K, V extends ReferenceCountingBase> extends ReferenceCountingBase {
+  private final List<Segment<K, V>> segments;
+  private final Policy policy;
+  private final long maxSize;
+  private final long maxWeight;
+  private final ToLongFunction<? super V> weigher;
+  private final long expireNanos;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  public RefCache(long maxSize) {
+    this(maxSize, Long.MAX_VALUE, x -> 1, 0, Policy.LRU, 16);
+  }
+
+  /**
+   * @param maxSize     maximum number of entries
+   * @param maxWeight   maximum total weight, as given by the weigher
+   * @param weigher     weight of a value, computed once when it is stored
+   * @param expireAfterWriteMillis entries older than this are dropped on access; 0 disables expiry
+   * @param policy      eviction order within a segment
+   * @param concurrency number of segments
+   */
+  public RefCache(long maxSize, long maxWeight, @Nonnull ToLongFunction<? super V> weigher, long expireAfterWriteMillis,
+                  @Nonnull Policy policy, int concurrency) {
+    if (maxSize <= 0 || maxWeight <= 0) throw new IllegalArgumentException("Cache bounds must be positive");
+    final int count = Math.max(1, Math.min(concurrency, (int) Math.min(Integer.MAX_VALUE, maxSize)));
+    this.segments = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) segments.add(new Segment<>());
+    this.policy = policy;
+    this.maxSize = maxSize;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireAfterWriteMillis);
+  }
+
+  @Nullable
+  @RefReturnsOwned
+  public V get(@Nonnull K key) {
+    final Segment<K, V> segment = segment(key);
+    Entry<V> expired = null;
+    try {
+      synchronized (segment) {
+        final Entry<V> entry = segment.map.get(key);
+        if (null != entry && isExpired(entry)) {
+          expired = segment.remove(key);
+          expirations.increment();
+        } else if (null != entry) {
+          entry.frequency++;
+          hits.increment();
+          entry.value.addRef();
+          return entry.value;
+        }
+      }
+      misses.increment();
+      return null;
+    } finally {
+      if (null != expired) expired.value.freeRef();
+    }
+  }
+
+  /**
+   * Stores the value, taking over the caller's reference, and releases any value it replaces.
+   */
+  public void put(@Nonnull K key, @RefConsume @Nonnull V value) {
+    final Segment<K, V> segment = segment(key);
+    final List<V> released = new ArrayList<>();
+    synchronized (segment) {
+      final Entry<V> previous = segment.add(key, new Entry<>(value, weigher.applyAsLong(value), System.nanoTime()));
+      if (null != previous) released.add(previous.value);
+      evict(segment, released);
+    }
+    released.forEach(ReferenceCountingBase::freeRef);
+  }
+
+  /**
+   * Returns the cached value, or stores and returns the one computed by the loader. The loader returns an owned
+   * reference, which the cache keeps; the caller gets a reference of its own. The loader runs under the segment
+   * lock, so concurrent requests for a key compute it once.
+   */
+  @NotNull
+  @RefReturnsOwned
+  public V computeIfAbsent(@Nonnull K key, @Nonnull Function<? super K, ? extends V> loader) {
+    final V cached = get(key);
+    if (null != cached) return cached;
+    final Segment<K, V> segment = segment(key);
+    final List<V> released = new ArrayList<>();
+    try {
+      synchronized (segment) {
+        final Entry<V> entry = segment.map.get(key);
+        if (null != entry && !isExpired(entry)) {
+          entry.value.addRef();
+          return entry.value;
+        }
+        final V value = Objects.requireNonNull(loader.apply(key));
+        final Entry<V> previous = segment.add(key, new Entry<>(value, weigher.applyAsLong(value), System.nanoTime()));
+        if (null != previous) {
+          released.add(previous.value);
+          expirations.increment();
+        }
+        value.addRef();
+        evict(segment, released);
+        return value;
+      }
+    } finally {
+      released.forEach(ReferenceCountingBase::freeRef);
+    }
+  }
+
+  public boolean invalidate(@Nonnull K key) {
+    final Segment<K, V> segment = segment(key);
+    final Entry<V> removed;
+    synchronized (segment) {
+      removed = segment.remove(key);
+    }
+    if (null == removed) return false;
+    removed.value.freeRef();
+    return true;
+  }
+
+  public void invalidateAll() {
+    for (Segment<K, V> segment : segments) {
+      final List<Entry<V>> removed;
+      synchronized (segment) {
+        removed = new ArrayList<>(segment.map.values());
+        segment.map.clear();
+        segment.weight = 0;
+      }
+      removed.forEach(entry -> entry.value.freeRef());
+    }
+  }
+
+  @Override
+  public void _free() {
+    invalidateAll();
+  }
+
+  private void evict(Segment<K, V> segment, List<V> released) {
+    final long sizeLimit = Math.max(1, maxSize / segments.size());
+    final long weightLimit = Math.max(1, maxWeight / segments.size());
+    while (!segment.map.isEmpty() && (segment.map.size() > sizeLimit || segment.weight > weightLimit)) {
+      final K victim = policy == Policy.LRU ? segment.map.keySet().iterator().next() : leastFrequent(segment);
+      released.add(segment.remove(victim).value);
+      evictions.increment();
+    }
+  }
+
+  private K leastFrequent(Segment<K, V> segment) {
+    K victim = null;
+    long frequency = Long.MAX_VALUE;
+    for (Map.Entry<K, Entry<V>> entry : segment.map.entrySet()) {
+      if (entry.getValue().frequency < frequency) {
+        victim = entry.getKey();
+        frequency = entry.getValue().frequency;
+      }
+    }
+    return victim;
+  }
+
+  private boolean isExpired(Entry<V> entry) {
+    return expireNanos > 0 && System.nanoTime() - entry.written > expireNanos;
+  }
+
+  private Segment<K, V> segment(Object key) {
+    final int hash = key.hashCode();
+    return segments.get(((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % segments.size());
+  }
+
+  public long size() {
+    long size = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  public long weight() {
+    long weight = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        weight += segment.weight;
+      }
+    }
+    return weight;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public double getHitRate() {
+    final long hits = getHits();
+    final long requests = hits + getMisses();
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getExpirations() {
+    return expirations.sum();
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return String.format("RefCache(size=%d, weight=%d, hitRate=%.3f, evictions=%d, expirations=%d)",
+        size(), weight(), getHitRate(), getEvictions(), getExpirations());
+  }
+
+  public enum Policy {
+    LRU,
+    LFU
+  }
+
+  private static final class Entry<V> {
+    final V value;
+    final long weight;
+    final long written;
+    long frequency = 0;
+
+    Entry(V value, long weight, long written) {
+      this.value = value;
+      this.weight = weight;
+      this.written = written;
+    }
+  }
+
+  private static final class Segment<K, V> {
+    final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    long weight = 0;
+
+    Entry<V> add(K key, Entry<V> entry) {
+      final Entry<V> previous = map.put(key, entry);
+      weight += entry.weight - (null == previous ? 0 : previous.weight);
+      return previous;
+    }
+
+    Entry<V> remove(K key) {
+      final Entry<V> removed = map.remove(key);
+      if (null != removed) weight -= removed.weight;
+      return removed;
+    }
+  }
+}
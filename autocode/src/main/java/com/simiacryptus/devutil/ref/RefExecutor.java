@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Executor wrapper that moves ownership of a refcounted argument into the task.
+ * <p>
+ * {@link #submit(ReferenceCountingBase, Function)} takes over the caller's reference instead of counting a new one;
+ * the task borrows it and the executor releases it exactly once: after the task completes or fails, when the
+ * future is cancelled before the task starts, or when the executor rejects the task. As a consuming-package
+ * method, a submit that is the argument's last use, evaluated once in a statement of its own, is rewritten to
+ * pass the caller's reference without an addRef and without the freeRef after it, so such a handoff costs no
+ * counting at all. Control-flow placement does not make this move yet, and keeps the addRef and freeRef.
+ * The argument is released before the future completes, so a caller that has seen the result or the failure
+ * can rely on the executor no longer holding it.
+ * Results are owned by the returned {@link RefFuture}.
+ */
+public class RefExecutor implements AutoCloseable {
+  private final ExecutorService inner;
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder cancelled = new LongAdder();
+
+  public RefExecutor(@Nonnull ExecutorService inner) {
+    this.inner = inner;
+  }
+
+  /**
+   * One virtual thread per task when the JVM supports them, and a cached pool of daemon threads otherwise.
+   */
+  @NotNull
+  public static RefExecutor newVirtualThreadExecutor() {
+    try {
+      return new RefExecutor((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+    } catch (ReflectiveOperationException e) {
+      return new RefExecutor(Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "ref-executor");
+        thread.setDaemon(true);
+        return thread;
+      }));
+    }
+  }
+
+  @NotNull
+  public <T extends ReferenceCountingBase, R> RefFuture<R> submit(@RefConsume @Nonnull T value, @Nonnull Function<? super T, ? extends R> task) {
+    final AtomicReference<T> owned = new AtomicReference<>(value);
+    final RefFuture<R> future = new RefFuture<>();
+    future.setOnCancel(() -> {
+      final T ref = owned.getAndSet(null);
+      if (null != ref) {
+        cancelled.increment();
+        ref.freeRef();
+      }
+    });
+    submit(future, () -> {
+      final T ref = owned.getAndSet(null);
+      if (null == ref) return;
+      final R result;
+      try {
+        result = task.apply(ref);
+      } finally {
+        ref.freeRef();
+      }
+      completed.increment();
+      future.complete(result);
+    }, () -> {
+      final T ref = owned.getAndSet(null);
+      if (null != ref) ref.freeRef();
+    });
+    return future;
+  }
+
+  @NotNull
+  public <T extends ReferenceCountingBase> RefFuture<Void> execute(@RefConsume @Nonnull T value, @Nonnull Consumer<? super T> task) {
+    return submit(value, x -> {
+      task.accept(x);
+      return null;
+    });
+  }
+
+  @NotNull
+  public <R> RefFuture<R> submit(@Nonnull Supplier<? extends R> task) {
+    final RefFuture<R> future = new RefFuture<>();
+    submit(future, () -> {
+      if (future.isDone()) return;
+      final R result = task.get();
+      completed.increment();
+      future.complete(result);
+    }, () -> {
+    });
+    return future;
+  }
+
+  private void submit(RefFuture<?> future, Runnable task, Runnable rejected) {
+    submitted.increment();
+    try {
+      inner.execute(() -> {
+        try {
+          task.run();
+        } catch (Throwable e) {
+          failed.increment();
+          future.fail(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.run();
+      failed.increment();
+      future.fail(e);
+    }
+  }
+
+  public boolean awaitTermination(long timeoutMillis) {
+    try {
+      return inner.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  public long getSubmitted() {
+    return submitted.sum();
+  }
+
+  public long getCompleted() {
+    return completed.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public long getCancelled() {
+    return cancelled.sum();
+  }
+
+  /**
+   * Stops accepting tasks and waits for the submitted ones, so every captured reference has been released.
+   */
+  @Override
+  public void close() {
+    inner.shutdown();
+    while (!awaitTermination(1000)) {
+      if (Thread.currentThread().isInterrupted()) return;
+    }
+  }
+}
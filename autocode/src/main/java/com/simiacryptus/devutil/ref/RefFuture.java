@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Result of a {@link RefExecutor} task that owns its refcounted result.
+ * <p>
+ * {@link #get} hands out a reference of its own (addRef); the future keeps its reference until it is freed.
+ * Freeing a future that has not completed cancels it, and a result that arrives after cancellation is released
+ * rather than stored. Chained stages borrow the result: {@link #thenApply} holds a reference to this future
+ * until its function returns.
+ */
+public class RefFuture<R> extends ReferenceCountingBase {
+  private final CompletableFuture<R> inner = new CompletableFuture<>();
+  private volatile Runnable onCancel = null;
+
+  RefFuture() {
+  }
+
+  @NotNull
+  public static <R> RefFuture<R> completed(@RefConsume R value) {
+    final RefFuture<R> future = new RefFuture<>();
+    future.complete(value);
+    return future;
+  }
+
+  /**
+   * Stores the result, taking over the caller's reference, or releases it if the future is already done.
+   */
+  void complete(@RefConsume R value) {
+    if (!inner.complete(value)) release(value);
+  }
+
+  void fail(@Nonnull Throwable e) {
+    inner.completeExceptionally(e);
+  }
+
+  void setOnCancel(Runnable onCancel) {
+    this.onCancel = onCancel;
+    if (inner.isCancelled()) onCancel.run();
+  }
+
+  /**
+   * Waits for the result and returns a reference owned by the caller.
+   */
+  @RefReturnsOwned
+  public R get() {
+    try {
+      return addRef(inner.join());
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+    }
+  }
+
+  public boolean cancel() {
+    if (!inner.cancel(false)) return false;
+    final Runnable onCancel = this.onCancel;
+    if (null != onCancel) onCancel.run();
+    return true;
+  }
+
+  public boolean isDone() {
+    return inner.isDone();
+  }
+
+  public boolean isCancelled() {
+    return inner.isCancelled();
+  }
+
+  /**
+   * Applies the function to the result once it is available. The function borrows the result; its own result is
+   * owned by the returned future.
+   */
+  @NotNull
+  public <U> RefFuture<U> thenApply(@Nonnull Function<? super R, ? extends U> fn) {
+    final RefFuture<U> next = new RefFuture<>();
+    addRef();
+    inner.whenComplete((value, error) -> {
+      try {
+        if (null != error) {
+          next.fail(error instanceof CompletionException ? error.getCause() : error);
+        } else {
+          next.complete(fn.apply(value));
+        }
+      } catch (Throwable e) {
+        next.fail(e);
+      } finally {
+        freeRef();
+      }
+    });
+    return next;
+  }
+
+  @Override
+  public void _free() {
+    if (cancel()) return;
+    try {
+      release(inner.getNow(null));
+    } catch (CancellationException | CompletionException e) {
+      // Nothing is held for a failed or cancelled task
+    }
+  }
+
+  private static <T> T addRef(T value) {
+    if (value instanceof ReferenceCountingBase) ((ReferenceCountingBase) value).addRef();
+    return value;
+  }
+
+  private static void release(Object value) {
+    if (value instanceof ReferenceCountingBase) ((ReferenceCountingBase) value).freeRef();
+  }
+}
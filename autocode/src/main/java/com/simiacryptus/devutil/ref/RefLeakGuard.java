@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Opt-in safety net ({@code -Drefcount.leakguard=true}) for refcounted objects that become unreachable without
+ * being freed.
+ * <p>
+ * Each tracked object holds a {@link Token}, a phantom reference that its {@code _free} marks as freed. When the
+ * collector finds a token that was never freed, the leak is counted by type and allocation site, and the
+ * token's cleanup action runs. An unreachable object can no longer run its own {@code _free}, so the cleanup must
+ * not reference it: it is meant for the native resources of leaf objects. Leaked owners need no action of their
+ * own, since the refcounted objects they held become unreachable with them and are handled through their own
+ * tokens. Allocation sites are recorded only with {@code -Drefcount.leakguard.sites=true}, as they need a stack
+ * trace per allocation.
+ */
+public final class RefLeakGuard {
+  private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+  private static final Set<Token> live = ConcurrentHashMap.newKeySet();
+  private static final Map<String, LongAdder> leaks = new ConcurrentHashMap<>();
+  private static final Token DISABLED = new Token(null, "", "");
+  private static volatile boolean enabled = Boolean.getBoolean("refcount.leakguard");
+  private static final boolean sites = Boolean.getBoolean("refcount.leakguard.sites");
+  private static volatile Thread reaper = null;
+
+  private RefLeakGuard() {
+  }
+
+  @NotNull
+  public static Token track(@Nonnull Object owner) {
+    if (!enabled) return DISABLED;
+    if (null == reaper) start();
+    final Token token = new Token(owner, owner.getClass().getName(), sites ? site() : "");
+    live.add(token);
+    return token;
+  }
+
+  private static String site() {
+    for (StackTraceElement frame : new Throwable().getStackTrace()) {
+      if (frame.getClassName().equals(RefLeakGuard.class.getName()) || frame.getMethodName().equals("<init>")) continue;
+      return frame.toString();
+    }
+    return "";
+  }
+
+  private static synchronized void start() {
+    if (null != reaper) return;
+    final Thread thread = new Thread(RefLeakGuard::reap, "ref-leak-guard");
+    thread.setDaemon(true);
+    thread.start();
+    reaper = thread;
+  }
+
+  private static void reap() {
+    while (true) {
+      try {
+        ((Token) queue.remove()).reclaim();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    RefLeakGuard.enabled = enabled;
+  }
+
+  /**
+   * Tracked objects not yet freed or collected.
+   */
+  public static int getLive() {
+    return live.size();
+  }
+
+  /**
+   * Leaks by type, and by allocation site when sites are recorded.
+   */
+  @NotNull
+  public static Map<String, Long> getLeaks() {
+    return leaks.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum(), (a, b) -> a, TreeMap::new));
+  }
+
+  public static long getLeakCount() {
+    return leaks.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  public static final class Token extends PhantomReference<Object> {
+    private final String type;
+    private final String site;
+    private volatile boolean freed = false;
+    private volatile Runnable cleanup = null;
+
+    private Token(Object owner, String type, String site) {
+      super(owner, queue);
+      this.type = type;
+      this.site = site;
+    }
+
+    /**
+     * Called from {@code _free}; the object was released normally.
+     */
+    public void freed() {
+      if (freed) return;
+      freed = true;
+      live.remove(this);
+      clear();
+    }
+
+    /**
+     * Sets the action run if the owner leaks. It must not reference the owner, or the owner never becomes
+     * unreachable.
+     */
+    public Token onLeak(Runnable cleanup) {
+      this.cleanup = cleanup;
+      return this;
+    }
+
+    private void reclaim() {
+      if (!live.remove(this) || freed) return;
+      leaks.computeIfAbsent(site.isEmpty() ? type : type + " @ " + site, k -> new LongAdder()).increment();
+      final Runnable action = cleanup;
+      if (null != action) {
+        try {
+          action.run();
+        } catch (Throwable e) {
+          leaks.computeIfAbsent(type + " (cleanup failed)", k -> new LongAdder()).increment();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Release target for the field releases in generated {@code _free} methods.
+ * <p>
+ * In immediate mode (the default) {@link #release} is a plain {@code freeRef}. In deferred mode
+ * ({@code -Drefcount.release.deferred=true} or {@link #setDeferred}) it enqueues the reference on a lock-free
+ * queue drained by a single background releaser, so the caller never runs a {@code _free} cascade. The cascade
+ * runs iteratively: each {@code _free} on the releaser enqueues its own fields rather than recursing. The releaser
+ * works in slices of at most {@link #getSliceMillis()} and pauses between them while work remains; once the queue
+ * is empty it parks until the next release wakes it, so an idle releaser costs nothing. It is a virtual thread when
+ * {@code -Drefcount.release.virtual=true} and the JVM supports them, and a daemon platform thread otherwise.
+ */
+public final class RefReleaser {
+  private static final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+  private static final AtomicLong depth = new AtomicLong();
+  private static final AtomicLong maxDepth = new AtomicLong();
+  private static final LongAdder released = new LongAdder();
+  private static final LongAdder failures = new LongAdder();
+  private static final LongAdder latencyNanos = new LongAdder();
+  private static final AtomicLong maxLatencyNanos = new AtomicLong();
+  private static volatile boolean deferred = Boolean.getBoolean("refcount.release.deferred");
+  private static volatile long sliceMillis = 5;
+  private static volatile long pauseMillis = 1;
+  private static volatile Thread releaser = null;
+
+  private RefReleaser() {
+  }
+
+  public static void release(@Nullable ReferenceCountingBase ref) {
+    if (null == ref) return;
+    if (!deferred) {
+      ref.freeRef();
+      return;
+    }
+    final long previous = depth.getAndIncrement();
+    maxDepth.accumulateAndGet(previous + 1, Math::max);
+    queue.add(new Entry(ref, System.nanoTime()));
+    final Thread thread = null == releaser ? start() : releaser;
+    if (previous == 0) LockSupport.unpark(thread);
+  }
+
+  private static synchronized Thread start() {
+    if (null == releaser) {
+      final Thread thread = newThread(RefReleaser::drain);
+      releaser = thread;
+      thread.start();
+    }
+    return releaser;
+  }
+
+  private static Thread newThread(Runnable runnable) {
+    if (Boolean.getBoolean("refcount.release.virtual")) {
+      try {
+        final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builderClass.getMethod("name", String.class).invoke(builder, "ref-releaser");
+        return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, runnable);
+      } catch (ReflectiveOperationException e) {
+        // Virtual threads are unavailable on this JVM
+      }
+    }
+    final Thread thread = new Thread(runnable, "ref-releaser");
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private static void drain() {
+    while (true) {
+      final long sliceEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sliceMillis);
+      Entry entry;
+      while (System.nanoTime() < sliceEnd && null != (entry = queue.poll())) {
+        try {
+          entry.ref.freeRef();
+        } catch (Throwable e) {
+          failures.increment();
+        } finally {
+          depth.decrementAndGet();
+        }
+        final long latency = System.nanoTime() - entry.enqueued;
+        released.increment();
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+      }
+      if (depth.get() > 0) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+      } else {
+        // release() unparks on the transition from an empty queue; a release racing this check leaves the permit set
+        while (depth.get() == 0) LockSupport.park(RefReleaser.class);
+      }
+    }
+  }
+
+  /**
+   * Waits until every queued release has been issued, or the timeout passes.
+   */
+  public static boolean awaitIdle(long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (depth.get() > 0) {
+      if (System.nanoTime() > deadline) return false;
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    return true;
+  }
+
+  public static boolean isDeferred() {
+    return deferred;
+  }
+
+  public static void setDeferred(boolean deferred) {
+    RefReleaser.deferred = deferred;
+  }
+
+  public static long getSliceMillis() {
+    return sliceMillis;
+  }
+
+  public static void setSliceMillis(long sliceMillis) {
+    RefReleaser.sliceMillis = sliceMillis;
+  }
+
+  public static long getPauseMillis() {
+    return pauseMillis;
+  }
+
+  public static void setPauseMillis(long pauseMillis) {
+    RefReleaser.pauseMillis = pauseMillis;
+  }
+
+  public static long getQueueDepth() {
+    return depth.get();
+  }
+
+  public static long getMaxQueueDepth() {
+    return maxDepth.get();
+  }
+
+  public static long getReleased() {
+    return released.sum();
+  }
+
+  public static long getFailures() {
+    return failures.sum();
+  }
+
+  public static double getMeanLatencyMillis() {
+    final long count = released.sum();
+    return count == 0 ? 0 : latencyNanos.sum() / 1e6 / count;
+  }
+
+  public static double getMaxLatencyMillis() {
+    return maxLatencyNanos.get() / 1e6;
+  }
+
+  private static final class Entry {
+    final ReferenceCountingBase ref;
+    final long enqueued;
+
+    Entry(ReferenceCountingBase ref, long enqueued) {
+      this.ref = ref;
+      this.enqueued = enqueued;
+    }
+  }
+}
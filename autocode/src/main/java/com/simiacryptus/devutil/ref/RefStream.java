@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.*;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Stream whose refcounted elements are owned by the stream.
+ * <p>
+ * Elements are borrowed (addRef) as they enter the pipeline. Functions passed to {@link #map}, {@link #filter}
+ * and {@link #forEach} only borrow their argument; the stream releases it once the stage is done with it.
+ * A refcounted result of {@link #map} must be an owned reference, as with any method return value.
+ * Releases are queued and issued together when the terminal operation completes. Elements reaching
+ * {@link #collect} or {@link #toArray} are handed over to the result and are not released.
+ */
+public class RefStream<T> implements AutoCloseable {
+  public static final List<String> INTERMEDIATE_OPS = Arrays.asList("map", "filter", "parallel", "sequential");
+  public static final List<String> TERMINAL_OPS = Arrays.asList("forEach", "collect", "toArray", "count");
+  private final Stream<T> inner;
+  private final Queue<ReferenceCountingBase> released;
+
+  private RefStream(@Nonnull Stream<T> inner, @Nonnull Queue<ReferenceCountingBase> released) {
+    this.inner = inner;
+    this.released = released;
+  }
+
+  @NotNull
+  @SafeVarargs
+  @SuppressWarnings("varargs")
+  public static <T extends ReferenceCountingBase> RefStream<T> of(@RefBorrow @Nonnull T... items) {
+    return of(Arrays.stream(items));
+  }
+
+  @NotNull
+  public static <T extends ReferenceCountingBase> RefStream<T> of(@Nonnull Collection<T> items) {
+    return of(items.stream());
+  }
+
+  @NotNull
+  public static <T> RefStream<T> of(@Nonnull Stream<T> items) {
+    return new RefStream<>(items.map(RefStream::addRef), new ConcurrentLinkedQueue<>());
+  }
+
+  private static <T> T addRef(T item) {
+    if (item instanceof ReferenceCountingBase) ((ReferenceCountingBase) item).addRef();
+    return item;
+  }
+
+  private void release(Object item) {
+    if (item instanceof ReferenceCountingBase) released.add((ReferenceCountingBase) item);
+  }
+
+  @NotNull
+  public <R> RefStream<R> map(@Nonnull Function<? super T, ? extends R> fn) {
+    return new RefStream<R>(inner.map(x -> {
+      try {
+        return fn.apply(x);
+      } finally {
+        release(x);
+      }
+    }), released);
+  }
+
+  @NotNull
+  public RefStream<T> filter(@Nonnull Predicate<? super T> predicate) {
+    return new RefStream<>(inner.filter(x -> {
+      if (predicate.test(x)) return true;
+      release(x);
+      return false;
+    }), released);
+  }
+
+  @NotNull
+  public RefStream<T> parallel() {
+    return new RefStream<>(inner.parallel(), released);
+  }
+
+  @NotNull
+  public RefStream<T> sequential() {
+    return new RefStream<>(inner.sequential(), released);
+  }
+
+  public void forEach(@Nonnull Consumer<? super T> action) {
+    try {
+      inner.forEach(x -> {
+        try {
+          action.accept(x);
+        } finally {
+          release(x);
+        }
+      });
+    } finally {
+      close();
+    }
+  }
+
+  public <R, A> R collect(@Nonnull Collector<? super T, A, R> collector) {
+    try {
+      return inner.collect(collector);
+    } finally {
+      close();
+    }
+  }
+
+  public <R> R collect(@Nonnull Supplier<R> supplier, @Nonnull BiConsumer<R, ? super T> accumulator, @Nonnull BiConsumer<R, R> combiner) {
+    try {
+      return inner.collect(supplier, accumulator, combiner);
+    } finally {
+      close();
+    }
+  }
+
+  @NotNull
+  public Object[] toArray() {
+    try {
+      return inner.toArray();
+    } finally {
+      close();
+    }
+  }
+
+  @NotNull
+  public <A> A[] toArray(@Nonnull IntFunction<A[]> generator) {
+    try {
+      return inner.toArray(generator);
+    } finally {
+      close();
+    }
+  }
+
+  public long count() {
+    try {
+      return inner.peek(this::release).count();
+    } finally {
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    inner.close();
+    ReferenceCountingBase item;
+    while (null != (item = released.poll())) item.freeRef();
+  }
+}
@@ -0,0 +1,35 @@
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestCandidateScanner {
+  @Test
+  public void scan() throws IOException {
+    final File root = new File("target/test-candidates");
+    final File base = write(root, "Base.java", "class Base extends com.simiacryptus.lang.ref.ReferenceCountingBase {}");
+    final File derived = write(root, "Derived.java", "class Derived<T> extends Base {}");
+    final File user = write(root, "User.java", "class User { Derived field; }");
+    final File release = write(root, "Release.java", "class Release { void f(Object x) { x.freeRef(); } }");
+    final File plain = write(root, "Plain.java", "class Plain extends Object { String DerivedName; }");
+    final File accented = write(root, "Accented.java", "/* \u00e9t\u00e9 */ class Accented extends Derived {}");
+    final File accentedUser = write(root, "AccentedUser.java", "class AccentedUser { Accented field; }");
+    final List<File> candidates = new CandidateScanner(Collections.singletonList("com.simiacryptus.lang.ref.ReferenceCountingBase"))
+        .scan(Arrays.asList(base, derived, user, release, plain, accented, accentedUser));
+    Assert.assertTrue(candidates.containsAll(Arrays.asList(base, derived, user, release, accented, accentedUser)));
+    Assert.assertFalse(candidates.contains(plain));
+  }
+
+  private static File write(File root, String name, String content) throws IOException {
+    final File file = new File(root, name);
+    FileUtils.write(file, content, "UTF-8");
+    return file;
+  }
+}
@@ -0,0 +1,27 @@
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestHotMethodProfile {
+  @Test
+  public void collapsed() throws IOException {
+    final File file = new File("target/test-profile.collapsed");
+    FileUtils.write(file, String.join("\n",
+        "java/lang/Thread.run;com/example/Layer.eval_[j];com/example/Tensor.addRef_[j];com/simiacryptus/lang/ref/ReferenceCountingBase.addRef_[j] 30",
+        "java/lang/Thread.run;com/example/Layer.eval_[j];com/example/Tensor.add_[j] 60",
+        "java/lang/Thread.run;com/example/Idle.sleep_[j] 10"), "UTF-8");
+    final HotMethodProfile profile = HotMethodProfile.load(file);
+    Assert.assertEquals(100, profile.getSamples());
+    Assert.assertEquals(90, profile.getSamples("com.example.Layer.eval"));
+    Assert.assertEquals(30, profile.getRefcountSamples("com.example.Layer.eval"));
+    Assert.assertEquals(0, profile.getRefcountSamples("com.example.Tensor.addRef"));
+    Assert.assertTrue(profile.isHot("com.example.Layer.eval", 0.5));
+    Assert.assertFalse(profile.isHot("com.example.Idle.sleep", 0.5));
+    Assert.assertEquals("com.example.Layer.eval", profile.rankRefcountCost().get(0));
+  }
+}
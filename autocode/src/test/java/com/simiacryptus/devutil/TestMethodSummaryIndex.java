@@ -0,0 +1,53 @@
+package com.simiacryptus.devutil;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestMethodSummaryIndex {
+  @Test
+  public void propagation() {
+    final MethodSummaryIndex index = new MethodSummaryIndex();
+    index.put("reads", new MethodSummaryIndex.Summary("1").add(MethodSummaryIndex.Effect.BORROW, Collections.emptyList()));
+    index.put("stores", new MethodSummaryIndex.Summary("2").add(MethodSummaryIndex.Effect.RETAIN, Collections.emptyList()));
+    index.put("delegatesToReads", new MethodSummaryIndex.Summary("3").add(MethodSummaryIndex.Effect.BORROW, Arrays.asList(MethodSummaryIndex.call("reads", 0))));
+    index.put("delegatesToStores", new MethodSummaryIndex.Summary("4").add(MethodSummaryIndex.Effect.BORROW, Arrays.asList(MethodSummaryIndex.call("delegatesToReads", 0), MethodSummaryIndex.call("stores", 0))));
+    index.put("recursive", new MethodSummaryIndex.Summary("5").add(MethodSummaryIndex.Effect.BORROW, Arrays.asList(MethodSummaryIndex.call("recursive", 0))));
+    index.solve();
+    Assert.assertTrue(index.isBorrowed("reads", 0));
+    Assert.assertFalse(index.isBorrowed("stores", 0));
+    Assert.assertTrue(index.isBorrowed("delegatesToReads", 0));
+    Assert.assertFalse(index.isBorrowed("delegatesToStores", 0));
+    Assert.assertTrue(index.isBorrowed("recursive", 0));
+    Assert.assertFalse(index.isBorrowed("unknown", 0));
+  }
+
+  @Test
+  public void persistence() {
+    final MethodSummaryIndex index = new MethodSummaryIndex();
+    index.put("reads", new MethodSummaryIndex.Summary("1").add(MethodSummaryIndex.Effect.BORROW, Collections.emptyList()));
+    index.solve();
+    final File file = new File("target/test-summaries.json");
+    file.getParentFile().mkdirs();
+    index.save(file);
+    final MethodSummaryIndex loaded = MethodSummaryIndex.load(file);
+    Assert.assertTrue(loaded.isCurrent("reads", "1"));
+    Assert.assertFalse(loaded.isCurrent("reads", "2"));
+    Assert.assertTrue(loaded.isBorrowed("reads", 0));
+  }
+
+  @Test
+  public void invalidation() {
+    final MethodSummaryIndex index = new MethodSummaryIndex();
+    index.put("Lexample/Node;.read(Lexample/Node;)V", new MethodSummaryIndex.Summary("1"));
+    index.put("Lexample/Node$Child;.read(Lexample/Node;)V", new MethodSummaryIndex.Summary("2"));
+    index.put("Lexample/Nodes;.read(Lexample/Node;)V", new MethodSummaryIndex.Summary("3"));
+    index.invalidate(Arrays.asList("example.Node"));
+    Assert.assertNull(index.get("Lexample/Node;.read(Lexample/Node;)V"));
+    Assert.assertNull(index.get("Lexample/Node$Child;.read(Lexample/Node;)V"));
+    Assert.assertTrue(index.isCurrent("Lexample/Nodes;.read(Lexample/Node;)V", "3"));
+  }
+}
@@ -0,0 +1,117 @@
+package com.simiacryptus.devutil;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class TestRefAnalyzer {
+  private static final String PATH = "src/main/java/example/Node.java";
+
+  @Test
+  public void missingFreeRef() {
+    Assert.assertEquals("[(Node.java:5) missing-freeRef: node (Node) is never released]", analyze(
+        "  public void use(Node node) {\n"
+            + "    node.hashCode();\n"
+            + "  }\n").toString());
+  }
+
+  @Test
+  public void doubleFreeRef() {
+    Assert.assertEquals("[(Node.java:7) double-freeRef: node was already released at line 6]", analyze(
+        "  public void use(Node node) {\n"
+            + "    node.freeRef();\n"
+            + "    node.freeRef();\n"
+            + "  }\n").toString());
+  }
+
+  @Test
+  public void useAfterRelease() {
+    Assert.assertEquals("[(Node.java:7) use-after-release: node is used after release at line 6]", analyze(
+        "  public void use(Node node) {\n"
+            + "    node.freeRef();\n"
+            + "    node.hashCode();\n"
+            + "  }\n").toString());
+  }
+
+  @Test
+  public void leakedFieldOverwrite() {
+    Assert.assertEquals("[(Node.java:6) leaked-field-overwrite: child is overwritten without releasing its previous value]", analyze(
+        "  public void set(Node node) {\n"
+            + "    this.child = node;\n"
+            + "  }\n").toString());
+    Assert.assertEquals("[]", analyze(
+        "  public void set(Node node) {\n"
+            + "    child = node;\n"
+            + "    node.addRef();\n"
+            + "  }\n").toString());
+  }
+
+  @Test
+  public void autocoderOutput() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put(PATH, "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "  public Node next;\n"
+        + "  public void set(Node node) {\n"
+        + "    this.child = node;\n"
+        + "  }\n"
+        + "  public void link(Node node) {\n"
+        + "    next = node;\n"
+        + "  }\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    final Map<String, String> output = autoCoder.getOutput().getSources();
+    Assert.assertTrue(output.get(PATH).contains("      this.child.freeRef();\n"));
+    Assert.assertEquals(Collections.emptyList(), new RefAnalyzer(new VirtualProject(output, classpath())).analyze());
+  }
+
+  @Test
+  public void clean() {
+    Assert.assertEquals("[]", analyze(
+        "  public void set(Node node) {\n"
+            + "    child.freeRef();\n"
+            + "    child = node;\n"
+            + "  }\n").toString());
+  }
+
+  @Test
+  public void sarif() {
+    final RefAnalyzer analyzer = analyzer("  public void use(Node node) {\n"
+        + "    node.hashCode();\n"
+        + "  }\n");
+    analyzer.analyze();
+    final String sarif = analyzer.toSarif();
+    Assert.assertTrue(sarif.contains("\"ruleId\": \"missing-freeRef\""));
+    Assert.assertTrue(sarif.contains("\"uri\": \"" + PATH + "\""));
+    Assert.assertTrue(sarif.contains("\"startLine\": 5"));
+  }
+
+  private static List<String> analyze(String method) {
+    return analyzer(method).analyze().stream().map(RefAnalyzer.Finding::toString).collect(Collectors.toList());
+  }
+
+  /**
+   * Analyzer over a refcounted class holding one field and the one method.
+   */
+  private static RefAnalyzer analyzer(String method) {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put(PATH, "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + method
+        + "}\n");
+    return new RefAnalyzer(new VirtualProject(sources, classpath()));
+  }
+
+  private static String classpath() {
+    return ReferenceCountingBase.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+  }
+}
@@ -1,14 +1,538 @@
 package com.simiacryptus.devutil;
 
+import com.simiacryptus.devutil.ref.RefCache;
+import com.simiacryptus.devutil.ref.RefStream;
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 public class TestRefAutoCoder {
   @Test
   public void test() {
-    new RefAutoCoder("../demo").setAddRefcounting(true).apply();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(demo(), classpath(), notNullClasspath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertTrue(autoCoder.getSkipped().isEmpty());
+    final Map<String, String> result = autoCoder.getOutput().getSources();
+    for (String type : Arrays.asList("DataType1", "DataType2", "DataType3")) {
+      final String path = "src/main/java/com/simiacryptus/refcount/test/" + type + ".java";
+      Assert.assertEquals(demo().get(path), result.get(path));
+    }
+    final String consumer = result.get("src/main/java/com/simiacryptus/refcount/test/ConsumerClass1.java");
+    Assert.assertTrue(consumer.contains("    test2();\n"
+        + "    test3(datum1);\n"
+        + "  }\n"));
+    Assert.assertTrue(consumer.contains(" = new DataType3(com.simiacryptus.refcount.test.DataType1.addRefs(values));\n"));
   }
   @Test
   public void remove() {
-    new RefAutoCoder("../demo").setAddRefcounting(false).apply();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(demo(), classpath(), notNullClasspath()));
+    autoCoder.setVerbose(false).setAddRefcounting(false).apply();
+    Assert.assertTrue(autoCoder.getSkipped().isEmpty());
+    final Map<String, String> result = autoCoder.getOutput().getSources();
+    Assert.assertEquals(4, result.size());
+    result.values().forEach(source -> {
+      Assert.assertFalse(source.contains("addRef"));
+      Assert.assertFalse(source.contains("freeRef"));
+      Assert.assertFalse(source.contains("_free"));
+    });
+    Assert.assertTrue(result.get("src/main/java/com/simiacryptus/refcount/test/ConsumerClass1.java").contains("    this.datum3 = new DataType3(values);\n"));
+  }
+  @Test
+  public void strip() {
+    final Map<String, String> refcounted = rewrite(graph(), true, 0);
+    final RefAutoCoder stripper = new RefAutoCoder(new VirtualProject(refcounted, classpath()));
+    stripper.setVerbose(false);
+    Assert.assertEquals(2, stripper.strip());
+    final Map<String, String> stripped = stripper.getOutput().getSources();
+    Assert.assertEquals("package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "\n"
+        + "  public void set(Node node) {\n"
+        + "    child = node;\n"
+        + "  }\n"
+        + "}\n", stripped.get("src/main/java/example/Node.java"));
+    Assert.assertEquals(graph().get("src/main/java/example/Leaf.java"), stripped.get("src/main/java/example/Leaf.java"));
+    final RefAutoCoder remover = new RefAutoCoder(new VirtualProject(refcounted, classpath()));
+    remover.setVerbose(false).setAddRefcounting(false).apply();
+    Assert.assertEquals(remover.getOutput().getSources(), stripped);
+  }
+  @Test
+  public void prefilter() {
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(graph(), classpath()));
+    autoCoder.setVerbose(false).setPrefilter(true).setAddRefcounting(true).apply();
+    Assert.assertEquals(2, autoCoder.getMetrics().get(RefAutoCoder.RemoveRefs.class).files.sum());
+    Assert.assertEquals(rewrite(graph(), autoCoder.isFusePasses(), 0), autoCoder.getOutput().getSources());
+  }
+  @Test
+  public void virtual() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertTrue(autoCoder.getOutput().getSources().get("src/main/java/example/Node.java").contains("_free"));
+  }
+  @Test
+  public void crossUnit() {
+    final Map<String, String> sources = graph();
+    sources.put("src/main/java/example/Holder.java", "package example;\n\n"
+        + "public class Holder extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node node;\n"
+        + "  public void hold(Node node) {\n"
+        + "    this.node = node;\n"
+        + "  }\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    final String result = autoCoder.getOutput().getSources().get("src/main/java/example/Holder.java");
+    Assert.assertTrue(autoCoder.getSkipped().isEmpty());
+    Assert.assertTrue(result.contains("  public void hold(Node node) {\n"
+        + "    if (null != this.node)\n"
+        + "      this.node.freeRef();\n"
+        + "    this.node = node.addRef();\n"
+        + "    node.freeRef();\n"
+        + "  }\n"));
+    Assert.assertTrue(result.contains("  public @Override void _free() {\n"
+        + "    node.freeRef();\n"
+        + "  }\n"));
+  }
+  @Test
+  public void cacheField() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Graph.java", "package example;\n\n"
+        + "public class Graph extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public com.simiacryptus.devutil.ref.RefCache<String, Graph> cache = new com.simiacryptus.devutil.ref.RefCache<>(16);\n"
+        + "}\n");
+    final String cacheClasspath = RefCache.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath(), cacheClasspath));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertTrue(autoCoder.getOutput().getSources().get("src/main/java/example/Graph.java").contains("cache.freeRef()"));
+  }
+  @Test
+  public void wrapStreams() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public long count(Node[] nodes) {\n"
+        + "    return java.util.Arrays.stream(nodes).filter(x -> x.hashCode() > 0).count();\n"
+        + "  }\n"
+        + "  public Object[] hashes(Node[] nodes) {\n"
+        + "    return java.util.Arrays.stream(nodes).map(x -> x.hashCode()).toArray();\n"
+        + "  }\n"
+        + "  public java.util.ArrayList<Integer> ids(Node[] nodes) {\n"
+        + "    return java.util.Arrays.stream(nodes).map(x -> x.hashCode()).collect(java.util.ArrayList::new, java.util.ArrayList::add, java.util.ArrayList::addAll);\n"
+        + "  }\n"
+        + "  public java.util.List<Node> sorted(Node[] nodes) {\n"
+        + "    return java.util.Arrays.stream(nodes).sorted().collect(java.util.stream.Collectors.toList());\n"
+        + "  }\n"
+        + "}\n");
+    final String streamClasspath = RefStream.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    final String annotationClasspath = Nonnull.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath(), streamClasspath, annotationClasspath));
+    autoCoder.setVerbose(false).setWrapStreams(true).setAddRefcounting(true).apply();
+    final String result = autoCoder.getOutput().getSources().get("src/main/java/example/Node.java");
+    Assert.assertTrue(result.contains("return com.simiacryptus.devutil.ref.RefStream.of(nodes).filter(x -> x.hashCode() > 0).count();"));
+    Assert.assertTrue(result.contains("return com.simiacryptus.devutil.ref.RefStream.of(nodes).map(x -> x.hashCode()).toArray();"));
+    Assert.assertTrue(result.contains("return com.simiacryptus.devutil.ref.RefStream.of(nodes).map(x -> x.hashCode()).collect(java.util.ArrayList::new,"));
+    Assert.assertTrue(result.contains("return java.util.Arrays.stream(nodes).sorted().collect(java.util.stream.Collectors.toList());"));
+  }
+  @Test
+  public void variants() throws Exception {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "  public void set(Node node) {\n"
+        + "    child = node;\n"
+        + "  }\n"
+        + "}\n");
+    final File root = Files.createTempDirectory("variants").toFile();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath())).setVariantsRoot(root);
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertEquals(Arrays.asList(VariantBuild.STRIPPED, VariantBuild.REFCOUNTED), autoCoder.getVariants().getVariants());
+    Assert.assertTrue(new File(root, "profile.xml").exists());
+    final String stripped = FileUtils.readFileToString(new File(root, "stripped/virtual/src/main/java/example/Node.java"), "UTF-8");
+    final String refcounted = FileUtils.readFileToString(new File(root, "refcounted/virtual/src/main/java/example/Node.java"), "UTF-8");
+    Assert.assertFalse(stripped.contains("freeRef"));
+    Assert.assertFalse(stripped.contains("addRef"));
+    Assert.assertTrue(refcounted.contains("    node.freeRef();\n"));
+    Assert.assertTrue(refcounted.contains("    return (Node) super.addRef();\n"));
+
+    final File removeRoot = Files.createTempDirectory("variants").toFile();
+    final RefAutoCoder remover = new RefAutoCoder(new VirtualProject(sources, classpath())).setVariantsRoot(removeRoot);
+    remover.setVerbose(false).setAddRefcounting(false).apply();
+    Assert.assertEquals(Collections.singletonList(VariantBuild.STRIPPED), remover.getVariants().getVariants());
+    Assert.assertFalse(new File(removeRoot, "refcounted").exists());
+  }
+  @Test
+  public void budgets() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setFileNodeBudget(5);
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertEquals(1, autoCoder.getSkipped().size());
+    Assert.assertFalse(autoCoder.getOutput().getSources().get("src/main/java/example/Node.java").contains("_free"));
+  }
+  @Test
+  public void timeBudget() {
+    final StringBuilder method = new StringBuilder("  public void use() {\n    Node node = new Node();\n");
+    for (int i = 0; i < 20000; i++) method.append("    node.hashCode();\n");
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + method
+        + "  }\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setFileTimeBudgetMillis(1);
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    Assert.assertTrue(autoCoder.getSkipped().isEmpty());
+    Assert.assertFalse(autoCoder.getOutput().getSources().get("src/main/java/example/Node.java").contains("node.freeRef()"));
+    final Map<String, LongAdder> warnings = autoCoder.getMetrics().get(RefAutoCoder.InsertFreeRefs.class).warnings;
+    Assert.assertTrue(warnings.containsKey("over-time") || warnings.containsKey("file-over-time"));
+  }
+  @Test
+  public void unfused() {
+    final Map<String, String> result = rewrite(graph(), false, 0);
+    Assert.assertEquals(rewrite(graph(), true, 0), result);
+    Assert.assertTrue(result.get("src/main/java/example/Node.java").contains("  public void set(Node node) {\n"
+        + "    child = node;\n"
+        + "    node.freeRef();\n"
+        + "  }\n"));
+    Assert.assertTrue(result.get("src/main/java/example/Leaf.java").contains("  public @Override void _free() {\n"
+        + "    next.freeRef();\n"
+        + "  }\n"));
+    Assert.assertEquals(graph().get("src/main/java/example/Plain.java"), result.get("src/main/java/example/Plain.java"));
+  }
+  @Test
+  public void fusedMetrics() {
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(graph(), classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    final String table = autoCoder.getMetrics().toTable();
+    Assert.assertFalse(table.contains("FusedVisitor"));
+    Assert.assertEquals(3, autoCoder.getMetrics().get(RefAutoCoder.InsertMethods.class).files.sum());
+    Assert.assertEquals(2, autoCoder.getMetrics().get(RefAutoCoder.InsertMethods.class).changed.sum());
+    Assert.assertEquals(0, autoCoder.getMetrics().get(RefAutoCoder.ModifyFieldSets.class).changed.sum());
+  }
+  @Test
+  public void sharded() throws Exception {
+    final File root = Files.createTempDirectory("sharded").toFile();
+    FileUtils.write(new File(root, "pom.xml"), "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+        + "  <modelVersion>4.0.0</modelVersion>\n"
+        + "  <groupId>example</groupId>\n"
+        + "  <artifactId>sharded</artifactId>\n"
+        + "  <version>1.0</version>\n"
+        + "  <dependencies>\n"
+        + "    <dependency>\n"
+        + "      <groupId>com.simiacryptus</groupId>\n"
+        + "      <artifactId>refcount</artifactId>\n"
+        + "      <version>1.0</version>\n"
+        + "      <scope>system</scope>\n"
+        + "      <systemPath>" + classpath() + "</systemPath>\n"
+        + "    </dependency>\n"
+        + "  </dependencies>\n"
+        + "</project>\n", "UTF-8");
+    new File(root, "src/test/java").mkdirs();
+    final File node = new File(root, "src/main/java/example/a/Node.java");
+    final File leaf = new File(root, "src/main/java/example/b/Leaf.java");
+    FileUtils.write(node, "package example.a;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "}\n", "UTF-8");
+    FileUtils.write(leaf, "package example.b;\n\n"
+        + "public class Leaf extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Leaf next;\n"
+        + "}\n", "UTF-8");
+    final ShardedRefAutoCoder coordinator = new ShardedRefAutoCoder(root.getPath()).setShards(2).setWorkerHeap("256m");
+    coordinator.run();
+    Assert.assertTrue(FileUtils.readFileToString(node, "UTF-8").contains("    child.freeRef();\n"));
+    Assert.assertTrue(FileUtils.readFileToString(leaf, "UTF-8").contains("    next.freeRef();\n"));
+    Assert.assertEquals(2, coordinator.getMetrics().get(RefAutoCoder.InsertMethods.class).changed.sum());
+    final File typesFile = new File(coordinator.getWorkDirectory(), "types.tsv");
+    Assert.assertTrue(TypeHierarchyIndex.load(typesFile).derives("example.b.Leaf", ReferenceCountingBase.class.getCanonicalName()));
+
+    FileUtils.write(leaf, "package example.b;\n\n"
+        + "public class Leaf {\n"
+        + "}\n", "UTF-8");
+    coordinator.run();
+    Assert.assertFalse(TypeHierarchyIndex.load(typesFile).derives("example.b.Leaf", ReferenceCountingBase.class.getCanonicalName()));
+    Assert.assertEquals("package example.b;\n\npublic class Leaf {\n}\n", FileUtils.readFileToString(leaf, "UTF-8"));
+  }
+  @Test
+  public void daemon() throws Exception {
+    final File root = Files.createTempDirectory("daemon").toFile();
+    FileUtils.write(new File(root, "pom.xml"), "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+        + "  <modelVersion>4.0.0</modelVersion>\n"
+        + "  <groupId>example</groupId>\n"
+        + "  <artifactId>daemon</artifactId>\n"
+        + "  <version>1.0</version>\n"
+        + "  <dependencies>\n"
+        + "    <dependency>\n"
+        + "      <groupId>com.simiacryptus</groupId>\n"
+        + "      <artifactId>refcount</artifactId>\n"
+        + "      <version>1.0</version>\n"
+        + "      <scope>system</scope>\n"
+        + "      <systemPath>" + classpath() + "</systemPath>\n"
+        + "    </dependency>\n"
+        + "  </dependencies>\n"
+        + "</project>\n", "UTF-8");
+    new File(root, "src/test/java").mkdirs();
+    final File node = new File(root, "src/main/java/example/Node.java");
+    final File leaf = new File(root, "src/main/java/example/Leaf.java");
+    final File outside = new File(Files.createTempDirectory("outside").toFile(), "Outside.java");
+    FileUtils.write(node, "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "}\n", "UTF-8");
+    FileUtils.write(leaf, "package example;\n\n"
+        + "public class Leaf extends Node {\n"
+        + "}\n", "UTF-8");
+    FileUtils.write(outside, "package example;\n\n"
+        + "public class Outside extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Outside next;\n"
+        + "}\n", "UTF-8");
+    final String outsideSource = FileUtils.readFileToString(outside, "UTF-8");
+    final RefAutoCoder autoCoder = new RefAutoCoder(root.getPath());
+    autoCoder.setVerbose(false);
+    try (RefAutoCoderDaemon daemon = new RefAutoCoderDaemon(autoCoder, 0)) {
+      Assert.assertNotNull(autoCoder.getSummaries());
+      daemon.warm();
+      Assert.assertTrue(autoCoder.getTypeIndex().derives("example.Leaf", ReferenceCountingBase.class.getCanonicalName()));
+
+      Assert.assertEquals("ERROR not a project source: " + outside.getPath(), daemon.handle("apply " + outside.getPath()));
+      Assert.assertEquals("ERROR not a project source: " + new File(root, "pom.xml").getPath(), daemon.handle("apply " + new File(root, "pom.xml").getPath()));
+      Assert.assertEquals(outsideSource, FileUtils.readFileToString(outside, "UTF-8"));
+      Assert.assertEquals("OK 0 runs, 0 files tracked", daemon.handle("status"));
+
+      Assert.assertEquals("OK 1 changed", daemon.handle("apply " + node.getPath()));
+      Assert.assertTrue(FileUtils.readFileToString(node, "UTF-8").contains("    child.freeRef();\n"));
+      Assert.assertEquals("OK 1 runs, 1 files tracked", daemon.handle("status"));
+
+      autoCoder.getSummaries().put("Lexample/Gone;.gone()V", new MethodSummaryIndex.Summary(""));
+      Assert.assertEquals("OK 1 changed", daemon.handle("apply-all"));
+      Assert.assertTrue(FileUtils.readFileToString(leaf, "UTF-8").contains("  public static Leaf[] addRefs(Leaf[] array) {\n"));
+      Assert.assertNull(autoCoder.getSummaries().get("Lexample/Gone;.gone()V"));
+      Assert.assertEquals("OK 2 runs, 2 files tracked", daemon.handle("status"));
+      Assert.assertEquals("OK stopped", daemon.handle("stop"));
+    }
+  }
+  @Test
+  public void batched() {
+    Assert.assertEquals(rewrite(graph(), true, 0), rewrite(graph(), true, 2));
+  }
+  @Test
+  public void summaries() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/com/simiacryptus/example/Node.java", "package com.simiacryptus.example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public static int read(Node node) {\n"
+        + "    return node.hashCode();\n"
+        + "  }\n"
+        + "  public static int use(Node node) {\n"
+        + "    return read(node);\n"
+        + "  }\n"
+        + "}\n");
+    final File summaryFile = new File("target/test-summaries/method-summaries.json");
+    summaryFile.delete();
+    for (int run = 0; run < 2; run++) {
+      final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+      autoCoder.setSummaryFile(summaryFile).setVerbose(false).setAddRefcounting(true).apply();
+      final String result = autoCoder.getOutput().getSources().get("src/main/java/com/simiacryptus/example/Node.java");
+      Assert.assertTrue(result.contains("    return read(node);\n"));
+      Assert.assertFalse(result.contains("node.addRef()"));
+      Assert.assertFalse(result.contains("node.freeRef()"));
+      Assert.assertTrue(MethodSummaryIndex.load(summaryFile).isBorrowed("Lcom/simiacryptus/example/Node;.read(Lcom/simiacryptus/example/Node;)I", 0));
+    }
+  }
+  @Test
+  public void lastUseMove() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/com/simiacryptus/example/Node.java", "package com.simiacryptus.example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public static void take(@com.simiacryptus.devutil.ref.RefConsume Node node) {\n"
+        + "    node.hashCode();\n"
+        + "  }\n"
+        + "  public static void handOff(Node node) {\n"
+        + "    node.hashCode();\n"
+        + "    take(node);\n"
+        + "  }\n"
+        + "  public static void twice(Node node) {\n"
+        + "    take(node);\n"
+        + "    take(node);\n"
+        + "  }\n"
+        + "  public static void loop(Node node, int count) {\n"
+        + "    for (int i = 0; i < count; i++) take(node);\n"
+        + "  }\n"
+        + "}\n");
+    final String annotationClasspath = RefStream.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath(), annotationClasspath));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    final String result = autoCoder.getOutput().getSources().get("src/main/java/com/simiacryptus/example/Node.java");
+    Assert.assertTrue(result.contains("  public static void handOff(Node node) {\n"
+        + "    node.hashCode();\n"
+        + "    take(node);\n"
+        + "  }\n"));
+    Assert.assertTrue(result.contains("  public static void twice(Node node) {\n"
+        + "    take(node.addRef());\n"
+        + "    take(node);\n"
+        + "  }\n"));
+    Assert.assertTrue(result.contains("  public static void loop(Node node, int count) {\n"
+        + "    for (int i = 0; i < count; i++)\n"
+        + "      take(node.addRef());\n"
+        + "    node.freeRef();\n"
+        + "  }\n"));
+    Assert.assertEquals(2, autoCoder.getMetrics().get(RefAutoCoder.InsertFreeRefs.class).edits.get("move").sum());
+  }
+  @Test
+  public void arrayAndGenericParameters() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/com/simiacryptus/example/Node.java", "package com.simiacryptus.example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public void takeAll(Node[] nodes) {\n"
+        + "    nodes.hashCode();\n"
+        + "  }\n"
+        + "  public <T extends Node> void takeOne(T node) {\n"
+        + "    node.hashCode();\n"
+        + "  }\n"
+        + "  public void callAll(Node[] nodes) {\n"
+        + "    takeAll(nodes);\n"
+        + "    nodes.hashCode();\n"
+        + "  }\n"
+        + "  public void callOne(Node node) {\n"
+        + "    takeOne(node);\n"
+        + "    node.hashCode();\n"
+        + "  }\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(true).apply();
+    final String result = autoCoder.getOutput().getSources().get("src/main/java/com/simiacryptus/example/Node.java");
+    Assert.assertTrue(result.contains("    takeAll(com.simiacryptus.example.Node.addRefs(nodes));\n"));
+    Assert.assertTrue(result.contains("  public <T extends Node> void takeOne(T node) {\n"
+        + "    node.hashCode();\n"
+        + "    node.freeRef();\n"
+        + "  }\n"));
+    Assert.assertTrue(result.contains("    takeOne(node.addRef());\n"));
+  }
+  @Test
+  public void summaryCalleeChange() {
+    final MethodSummaryIndex summaries = new MethodSummaryIndex();
+    final String key = "Lcom/simiacryptus/example/Node;.use(Lcom/simiacryptus/example/Node;)V";
+    summarize(summaries, "@com.simiacryptus.devutil.ref.RefConsume");
+    Assert.assertFalse(summaries.isBorrowed(key, 0));
+    summarize(summaries, "@com.simiacryptus.devutil.ref.RefBorrow");
+    Assert.assertTrue(summaries.isBorrowed(key, 0));
+  }
+
+  private static void summarize(MethodSummaryIndex summaries, String annotation) {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/com/simiacryptus/example/Node.java", "package com.simiacryptus.example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public static void take(" + annotation + " Node node) {\n"
+        + "    node.hashCode();\n"
+        + "  }\n"
+        + "  public static void use(Node node) {\n"
+        + "    take(node);\n"
+        + "  }\n"
+        + "}\n");
+    final String annotationClasspath = RefStream.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    new RefAutoCoder(new VirtualProject(sources, classpath(), annotationClasspath)).setSummaries(summaries)
+        .setVerbose(false).setAddRefcounting(true).apply();
+  }
+
+  @Test
+  public void dryRun() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "  public @Override void _free() {\n"
+        + "    child.freeRef();\n"
+        + "  }\n"
+        + "}\n");
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setVerbose(false).setAddRefcounting(false).setOutput(SourceOutput.Mode.DIFF, null).apply();
+    Assert.assertEquals("--- a/src/main/java/example/Node.java\n"
+        + "+++ b/src/main/java/example/Node.java\n"
+        + "@@ -2,7 +2,4 @@\n"
+        + " \n"
+        + " public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "   public Node child;\n"
+        + "-  public @Override void _free() {\n"
+        + "-    child.freeRef();\n"
+        + "-  }\n"
+        + " }\n", autoCoder.getOutput().getPatch());
+  }
+
+  /**
+   * Two refcounted classes and one plain class, which the pre-scan rules out.
+   */
+  private static Map<String, String> graph() {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put("src/main/java/example/Node.java", "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Node child;\n"
+        + "  public void set(Node node) {\n"
+        + "    child = node;\n"
+        + "  }\n"
+        + "}\n");
+    sources.put("src/main/java/example/Leaf.java", "package example;\n\n"
+        + "public class Leaf extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + "  public Leaf next;\n"
+        + "}\n");
+    sources.put("src/main/java/example/Plain.java", "package example;\n\n"
+        + "public class Plain {\n"
+        + "  public int size;\n"
+        + "}\n");
+    return sources;
+  }
+
+  private static Map<String, String> rewrite(Map<String, String> sources, boolean fusePasses, int batchSize) {
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath()));
+    autoCoder.setFusePasses(fusePasses).setVerbose(false).setAddRefcounting(true).setBatchSize(batchSize);
+    autoCoder.apply();
+    return autoCoder.getOutput().getSources();
+  }
+
+  /**
+   * The demo module's sources, read into memory so the checked-in copies are never rewritten.
+   */
+  private static Map<String, String> demo() {
+    final File root = new File("../demo");
+    final Map<String, String> sources = new HashMap<>();
+    for (File file : FileUtils.listFiles(new File(root, "src/main/java"), new String[]{"java"}, true)) {
+      try {
+        sources.put(root.toPath().relativize(file.toPath()).toString(), FileUtils.readFileToString(file, "UTF-8"));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return sources;
+  }
+
+  private static String notNullClasspath() {
+    return NotNull.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+  }
+
+  private static String classpath() {
+    return ReferenceCountingBase.class.getProtectionDomain().getCodeSource().getLocation().getPath();
   }
 }
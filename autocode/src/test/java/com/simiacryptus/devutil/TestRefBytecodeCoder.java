@@ -0,0 +1,140 @@
+package com.simiacryptus.devutil;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestRefBytecodeCoder implements Opcodes {
+  private static final String NODE = "com/simiacryptus/example/Node";
+  private static final String NODE_DESC = "L" + NODE + ";";
+  private static final String BASE = Type.getInternalName(ReferenceCountingBase.class);
+
+  @Test
+  public void releasesParameter() {
+    final ClassNode classNode = node();
+    final MethodNode method = method(classNode, "use", "(" + NODE_DESC + ")V");
+    method.instructions.add(new VarInsnNode(ALOAD, 0));
+    method.instructions.add(new MethodInsnNode(INVOKEVIRTUAL, "java/lang/Object", "hashCode", "()I", false));
+    method.instructions.add(new InsnNode(POP));
+    method.instructions.add(new InsnNode(RETURN));
+    Assert.assertEquals("ALOAD 0, INVOKEVIRTUAL java/lang/Object.hashCode, ALOAD 0, INVOKEVIRTUAL " + BASE + ".freeRef, RETURN",
+        render(transform(classNode), "use"));
+  }
+
+  @Test
+  public void returnsParameter() {
+    final ClassNode classNode = node();
+    final MethodNode direct = method(classNode, "direct", "(" + NODE_DESC + ")" + NODE_DESC);
+    direct.instructions.add(new VarInsnNode(ALOAD, 0));
+    direct.instructions.add(new InsnNode(ARETURN));
+    final MethodNode cast = method(classNode, "cast", "(" + NODE_DESC + ")" + NODE_DESC);
+    cast.instructions.add(new VarInsnNode(ALOAD, 0));
+    cast.instructions.add(new TypeInsnNode(CHECKCAST, NODE));
+    cast.instructions.add(new InsnNode(ARETURN));
+    final MethodNode other = method(classNode, "other", "(" + NODE_DESC + NODE_DESC + ")" + NODE_DESC);
+    other.instructions.add(new VarInsnNode(ALOAD, 1));
+    other.instructions.add(new TypeInsnNode(CHECKCAST, NODE));
+    other.instructions.add(new InsnNode(ARETURN));
+    final ClassNode transformed = transform(classNode);
+    Assert.assertEquals("ALOAD 0, ARETURN", render(transformed, "direct"));
+    Assert.assertEquals("ALOAD 0, CHECKCAST " + NODE + ", ARETURN", render(transformed, "cast"));
+    Assert.assertEquals("ALOAD 1, CHECKCAST " + NODE + ", ALOAD 0, INVOKEVIRTUAL " + BASE + ".freeRef, ARETURN",
+        render(transformed, "other"));
+  }
+
+  @Test
+  public void skipsRefcountedClass() {
+    final ClassNode classNode = node();
+    final MethodNode method = method(classNode, "use", "(" + NODE_DESC + ")V");
+    method.instructions.add(new VarInsnNode(ALOAD, 0));
+    method.instructions.add(new MethodInsnNode(INVOKEVIRTUAL, NODE, "freeRef", "()V", false));
+    method.instructions.add(new InsnNode(RETURN));
+    final RefBytecodeCoder coder = coder(bytes(classNode));
+    Assert.assertNull(coder.transform(bytes(classNode)));
+    Assert.assertEquals(1, coder.getMetrics().get(RefBytecodeCoder.class).warnings.get("already-refcounted").sum());
+  }
+
+  @Test
+  public void skipsUnreadableClass() {
+    final byte[] bytes = bytes(node());
+    bytes[6] = (byte) 0x7f;
+    bytes[7] = (byte) 0xff;
+    final RefBytecodeCoder coder = coder(bytes);
+    Assert.assertFalse(coder.isRefCounted(NODE));
+    Assert.assertTrue(coder.isRefCounted(BASE));
+    Assert.assertFalse(coder.isRefCounted("java/util/ArrayList"));
+  }
+
+  private static ClassNode node() {
+    final ClassNode classNode = new ClassNode();
+    classNode.visit(V1_8, ACC_PUBLIC, NODE, null, BASE, null);
+    return classNode;
+  }
+
+  private static MethodNode method(ClassNode classNode, String name, String desc) {
+    final MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, name, desc, null, null);
+    classNode.methods.add(method);
+    return method;
+  }
+
+  private static byte[] bytes(ClassNode classNode) {
+    final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    classNode.accept(writer);
+    return writer.toByteArray();
+  }
+
+  private static ClassNode transform(ClassNode classNode) {
+    final byte[] transformed = coder(bytes(classNode)).transform(bytes(classNode));
+    Assert.assertNotNull(transformed);
+    final ClassNode result = new ClassNode();
+    new ClassReader(transformed).accept(result, 0);
+    return result;
+  }
+
+  private static RefBytecodeCoder coder(byte[] node) {
+    return new RefBytecodeCoder(name -> {
+      if (name.equals(NODE)) return node;
+      try (InputStream stream = TestRefBytecodeCoder.class.getClassLoader().getResourceAsStream(name + ".class")) {
+        return null == stream ? null : IOUtils.toByteArray(stream);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  /**
+   * The loads, casts, calls and returns of a method, omitting the null checks and pops around each release.
+   */
+  private static String render(ClassNode classNode, String name) {
+    final List<String> rendered = new ArrayList<>();
+    for (MethodNode method : classNode.methods) {
+      if (!method.name.equals(name)) continue;
+      for (AbstractInsnNode instruction : method.instructions.toArray()) {
+        if (instruction.getOpcode() == ALOAD) {
+          rendered.add("ALOAD " + ((VarInsnNode) instruction).var);
+        } else if (instruction.getOpcode() == CHECKCAST) {
+          rendered.add("CHECKCAST " + ((TypeInsnNode) instruction).desc);
+        } else if (instruction instanceof MethodInsnNode) {
+          final MethodInsnNode invocation = (MethodInsnNode) instruction;
+          rendered.add((invocation.getOpcode() == INVOKEVIRTUAL ? "INVOKEVIRTUAL " : "INVOKE ") + invocation.owner + "." + invocation.name);
+        } else if (instruction.getOpcode() == ARETURN) {
+          rendered.add("ARETURN");
+        } else if (instruction.getOpcode() == RETURN) {
+          rendered.add("RETURN");
+        }
+      }
+    }
+    return String.join(", ", rendered);
+  }
+}
@@ -0,0 +1,181 @@
+package com.simiacryptus.devutil;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestReleasePlacement {
+  private static final String PATH = "src/main/java/example/Node.java";
+
+  @Test
+  public void loop() {
+    Assert.assertEquals("  public void loop(int count) {\n"
+        + "    Node node = new Node();\n"
+        + "    for (int i = 0; i < count; i++) {\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "    node.freeRef();\n"
+        + "    System.out.println(count);\n"
+        + "  }\n", rewrite("  public void loop(int count) {\n"
+        + "    Node node = new Node();\n"
+        + "    for (int i = 0; i < count; i++) {\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "    System.out.println(count);\n"
+        + "  }\n"));
+  }
+
+  @Test
+  public void breakContinue() {
+    Assert.assertEquals("  public void jumps(int count) {\n"
+        + "    for (int i = 0; i < count; i++) {\n"
+        + "      Node node = new Node();\n"
+        + "      if (i == 2) {\n"
+        + "        node.freeRef();\n"
+        + "        continue;\n"
+        + "      }\n"
+        + "      if (i == 3) {\n"
+        + "        node.freeRef();\n"
+        + "        break;\n"
+        + "      }\n"
+        + "      node.hashCode();\n"
+        + "      node.freeRef();\n"
+        + "    }\n"
+        + "  }\n", rewrite("  public void jumps(int count) {\n"
+        + "    for (int i = 0; i < count; i++) {\n"
+        + "      Node node = new Node();\n"
+        + "      if (i == 2) continue;\n"
+        + "      if (i == 3) break;\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "  }\n"));
+  }
+
+  @Test
+  public void switchStatement() {
+    Assert.assertEquals("  public void select(int mode) {\n"
+        + "    Node node = new Node();\n"
+        + "    switch (mode) {\n"
+        + "    case 0:\n"
+        + "      node.hashCode();\n"
+        + "      break;\n"
+        + "    default: {\n"
+        + "      node.freeRef();\n"
+        + "      return;\n"
+        + "    }\n"
+        + "    }\n"
+        + "    node.freeRef();\n"
+        + "  }\n", rewrite("  public void select(int mode) {\n"
+        + "    Node node = new Node();\n"
+        + "    switch (mode) {\n"
+        + "      case 0:\n"
+        + "        node.hashCode();\n"
+        + "        break;\n"
+        + "      default:\n"
+        + "        return;\n"
+        + "    }\n"
+        + "  }\n"));
+  }
+
+  @Test
+  public void tryFinally() {
+    Assert.assertEquals("  public void tryFinally() {\n"
+        + "    Node node = new Node();\n"
+        + "    try {\n"
+        + "      System.out.println();\n"
+        + "    } finally {\n"
+        + "      node.hashCode();\n"
+        + "      node.freeRef();\n"
+        + "    }\n"
+        + "  }\n", rewrite("  public void tryFinally() {\n"
+        + "    Node node = new Node();\n"
+        + "    try {\n"
+        + "      System.out.println();\n"
+        + "    } finally {\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "  }\n"));
+  }
+
+  @Test
+  public void tryReturn() {
+    Assert.assertEquals("  public Node tryReturn(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    try {\n"
+        + "      if (flag)\n"
+        + "        return node;\n"
+        + "      System.out.println();\n"
+        + "    } finally {\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "    node.freeRef();\n"
+        + "    return null;\n"
+        + "  }\n", rewrite("  public Node tryReturn(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    try {\n"
+        + "      if (flag) return node;\n"
+        + "      System.out.println();\n"
+        + "    } finally {\n"
+        + "      node.hashCode();\n"
+        + "    }\n"
+        + "    return null;\n"
+        + "  }\n"));
+  }
+
+  @Test
+  public void ifMerge() {
+    Assert.assertEquals("  public void merge(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    if (flag) {\n"
+        + "      node.hashCode();\n"
+        + "    } else {\n"
+        + "      node.toString();\n"
+        + "    }\n"
+        + "    node.freeRef();\n"
+        + "  }\n", rewrite("  public void merge(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    if (flag) {\n"
+        + "      node.hashCode();\n"
+        + "    } else {\n"
+        + "      node.toString();\n"
+        + "    }\n"
+        + "  }\n"));
+    Assert.assertEquals("  public void branches(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    if (flag) {\n"
+        + "      node.hashCode();\n"
+        + "      node.freeRef();\n"
+        + "    } else {\n"
+        + "      node.freeRef();\n"
+        + "      System.out.println();\n"
+        + "    }\n"
+        + "  }\n", rewrite("  public void branches(boolean flag) {\n"
+        + "    Node node = new Node();\n"
+        + "    if (flag) {\n"
+        + "      node.hashCode();\n"
+        + "    } else {\n"
+        + "      System.out.println();\n"
+        + "    }\n"
+        + "  }\n"));
+  }
+
+  /**
+   * Rewrites a class holding the one method, and returns the method as it was rewritten.
+   */
+  private static String rewrite(String method) {
+    final Map<String, String> sources = new HashMap<>();
+    sources.put(PATH, "package example;\n\n"
+        + "public class Node extends com.simiacryptus.lang.ref.ReferenceCountingBase {\n"
+        + method
+        + "}\n");
+    final String classpath = ReferenceCountingBase.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+    final RefAutoCoder autoCoder = new RefAutoCoder(new VirtualProject(sources, classpath));
+    autoCoder.setVerbose(false).setControlFlowPlacement(true).setAddRefcounting(true).apply();
+    final String source = autoCoder.getOutput().getSources().get(PATH);
+    final int start = source.indexOf(method.substring(0, method.indexOf('(')));
+    return source.substring(start, source.indexOf("\n  }\n", start) + 5);
+  }
+}
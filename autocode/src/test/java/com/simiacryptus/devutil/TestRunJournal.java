@@ -0,0 +1,34 @@
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestRunJournal {
+  @Test
+  public void resume() throws IOException {
+    final File root = new File("target/test-journal");
+    final File journalFile = new File(root, "journal.tsv");
+    final File kept = new File(root, "Kept.java");
+    final File edited = new File(root, "Edited.java");
+    FileUtils.deleteQuietly(journalFile);
+    FileUtils.write(kept, "class Kept {}", "UTF-8");
+    FileUtils.write(edited, "class Edited {}", "UTF-8");
+    try (RunJournal journal = new RunJournal(journalFile)) {
+      journal.record(1, "RemoveRefs", kept, false, "class Kept {}");
+      journal.record(2, "InsertAddRefs", kept, true, "class Kept {}");
+      journal.record(1, "RemoveRefs", edited, false, "class Edited {}");
+    }
+    FileUtils.write(edited, "class Edited { int x; }", "UTF-8");
+    final RunJournal resumed = new RunJournal(journalFile);
+    Assert.assertEquals(Boolean.FALSE, resumed.get(1, kept));
+    Assert.assertEquals(Boolean.TRUE, resumed.get(2, kept));
+    Assert.assertNull(resumed.get(3, kept));
+    Assert.assertNull(resumed.get(1, edited));
+    resumed.complete();
+    Assert.assertFalse(journalFile.exists());
+  }
+}
@@ -0,0 +1,49 @@
+package com.simiacryptus.devutil;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+public class TestTraceSink {
+  @Test(timeout = 10000)
+  public void writeFailure() {
+    final TraceSink sink = new TraceSink(new File("failing.tsv"), new Writer() {
+      @Override
+      public void write(char[] buffer, int offset, int length) throws IOException {
+        throw new IOException("disk full");
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() throws IOException {
+        throw new IOException("disk full");
+      }
+    }, 16);
+    for (int i = 0; i < 100; i++) sink.emit("Pass", "File.java", "SimpleName", i);
+    sink.close();
+    Assert.assertTrue(sink.isFailed());
+    Assert.assertEquals(0, sink.getWritten());
+    Assert.assertEquals(100, sink.getDropped());
+  }
+
+  @Test(timeout = 10000)
+  public void unfilledSlot() {
+    final StringWriter writer = new StringWriter();
+    final TraceSink sink = new TraceSink(new File("unfilled.tsv"), writer, 16).setCloseTimeoutMillis(50);
+    sink.emit("Pass", "File.java", "SimpleName", 1);
+    Assert.assertEquals(1, sink.claim());
+    sink.emit("Pass", "File.java", "SimpleName", 3);
+    sink.close();
+    Assert.assertEquals(2, sink.getWritten());
+    Assert.assertEquals(1, sink.getDropped());
+    Assert.assertFalse(sink.emit("Pass", "File.java", "SimpleName", 4));
+    Assert.assertEquals(2, writer.toString().split("\n").length);
+  }
+}
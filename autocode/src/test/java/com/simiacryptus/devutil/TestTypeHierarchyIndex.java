@@ -0,0 +1,29 @@
+package com.simiacryptus.devutil;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestTypeHierarchyIndex {
+  @Test
+  public void invalidation() throws IOException {
+    final File file = new File("target/test-hierarchy/Node.java");
+    FileUtils.write(file, "package example;\n\npublic class Node extends Base {\n  static class Child extends Node {}\n}\n", "UTF-8");
+    final List<String> declared = TypeHierarchyIndex.declaredTypes(file);
+    Assert.assertEquals(Arrays.asList("example.Node", "example.Child"), declared);
+    final TypeHierarchyIndex index = new TypeHierarchyIndex();
+    index.add("example.Node", "example.Base");
+    index.add("example.Node$Child", "example.Node");
+    index.add("example.Base", "com.simiacryptus.lang.ref.ReferenceCountingBase");
+    Assert.assertTrue(index.derives("example.Node$Child", "com.simiacryptus.lang.ref.ReferenceCountingBase"));
+    Assert.assertEquals(2, index.invalidate(declared).size());
+    Assert.assertFalse(index.contains("example.Node"));
+    Assert.assertFalse(index.contains("example.Node$Child"));
+    Assert.assertTrue(index.contains("example.Base"));
+  }
+}
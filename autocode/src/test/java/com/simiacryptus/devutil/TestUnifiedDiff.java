@@ -0,0 +1,34 @@
+package com.simiacryptus.devutil;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestUnifiedDiff {
+  @Test
+  public void identical() {
+    Assert.assertEquals("", UnifiedDiff.diff("A.java", "a\nb\n", "a\nb\n"));
+  }
+
+  @Test
+  public void insertion() {
+    final String diff = UnifiedDiff.diff("A.java", "a\nb\nc\n", "a\nb\nx\nc\n");
+    Assert.assertEquals("--- a/A.java\n+++ b/A.java\n@@ -1,3 +1,4 @@\n a\n b\n+x\n c\n", diff);
+  }
+
+  @Test
+  public void replacement() {
+    final String diff = UnifiedDiff.diff("A.java", "1\n2\n3\n4\n5\n6\n7\n8\n9\n", "1\n2\n3\n4\nfive\n6\n7\n8\n9\n");
+    Assert.assertEquals("--- a/A.java\n+++ b/A.java\n@@ -2,7 +2,7 @@\n 2\n 3\n 4\n-5\n+five\n 6\n 7\n 8\n", diff);
+  }
+
+  @Test
+  public void missingNewline() {
+    final String diff = UnifiedDiff.diff("A.java", "a\nb", "a\nb\n");
+    Assert.assertEquals("--- a/A.java\n+++ b/A.java\n@@ -1,2 +1,2 @@\n a\n-b\n\\ No newline at end of file\n+b\n", diff);
+  }
+
+  @Test
+  public void newFile() {
+    Assert.assertEquals("--- a/A.java\n+++ b/A.java\n@@ -0,0 +1,1 @@\n+a\n", UnifiedDiff.diff("A.java", "", "a\n"));
+  }
+}
@@ -0,0 +1,55 @@
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRefCache {
+  @Test
+  public void evictionReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    final RefCache<Integer, Value> cache = new RefCache<>(4, Long.MAX_VALUE, x -> 1, 0, RefCache.Policy.LRU, 1);
+    for (int i = 0; i < 10; i++) cache.put(i, new Value(freed));
+    Assert.assertEquals(4, cache.size());
+    Assert.assertEquals(6, freed.get());
+    Assert.assertNull(cache.get(0));
+    final Value value = cache.get(9);
+    cache.invalidate(9);
+    Assert.assertEquals(6, freed.get());
+    value.freeRef();
+    Assert.assertEquals(7, freed.get());
+    cache.freeRef();
+    Assert.assertEquals(10, freed.get());
+  }
+
+  @Test
+  public void frequentEntriesSurvive() {
+    final AtomicInteger freed = new AtomicInteger();
+    final RefCache<Integer, Value> cache = new RefCache<>(2, Long.MAX_VALUE, x -> 1, 0, RefCache.Policy.LFU, 1);
+    cache.put(0, new Value(freed));
+    cache.put(1, new Value(freed));
+    for (int i = 0; i < 3; i++) cache.get(0).freeRef();
+    cache.put(2, new Value(freed));
+    Assert.assertNull(cache.get(1));
+    cache.computeIfAbsent(0, k -> new Value(freed)).freeRef();
+    Assert.assertEquals(1, cache.getEvictions());
+    Assert.assertEquals(0.8, cache.getHitRate(), 1e-9);
+    cache.freeRef();
+    Assert.assertEquals(3, freed.get());
+  }
+
+  private static class Value extends ReferenceCountingBase {
+    private final AtomicInteger freed;
+
+    Value(AtomicInteger freed) {
+      this.freed = freed;
+    }
+
+    @Override
+    public void _free() {
+      freed.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRefExecutor {
+  @Test
+  public void handoff() {
+    final AtomicInteger freed = new AtomicInteger();
+    try (RefExecutor executor = RefExecutor.newVirtualThreadExecutor()) {
+      final RefFuture<Value> future = executor.submit(new Value(freed), x -> new Value(freed));
+      final Value result = future.get();
+      Assert.assertEquals(1, freed.get());
+      future.freeRef();
+      Assert.assertEquals(1, freed.get());
+      result.freeRef();
+      Assert.assertEquals(2, freed.get());
+    }
+  }
+
+  @Test
+  public void failureReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    try (RefExecutor executor = RefExecutor.newVirtualThreadExecutor()) {
+      final RefFuture<Value> future = executor.submit(new Value(freed), x -> {
+        throw new IllegalStateException("failed");
+      });
+      try {
+        future.get();
+        Assert.fail();
+      } catch (IllegalStateException e) {
+        Assert.assertEquals(1, freed.get());
+      }
+      Assert.assertEquals(1, executor.getFailed());
+      future.freeRef();
+    }
+    Assert.assertEquals(1, freed.get());
+  }
+
+  @Test
+  public void cancelReleases() throws InterruptedException {
+    final AtomicInteger freed = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+    try (RefExecutor executor = new RefExecutor(Executors.newSingleThreadExecutor())) {
+      final RefFuture<Void> blocker = executor.submit(() -> {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return null;
+      });
+      final RefFuture<Void> queued = executor.execute(new Value(freed), x -> Assert.fail());
+      Assert.assertTrue(queued.cancel());
+      Assert.assertEquals(1, freed.get());
+      latch.countDown();
+      blocker.freeRef();
+      queued.freeRef();
+    }
+    Assert.assertEquals(1, freed.get());
+  }
+
+  @Test
+  public void rejectedReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    final RefExecutor executor = new RefExecutor(Executors.newSingleThreadExecutor());
+    executor.close();
+    final RefFuture<Void> future = executor.execute(new Value(freed), x -> {
+    });
+    Assert.assertEquals(1, freed.get());
+    Assert.assertEquals(1, executor.getFailed());
+    future.freeRef();
+  }
+
+  private static class Value extends ReferenceCountingBase {
+    private final AtomicInteger freed;
+
+    Value(AtomicInteger freed) {
+      this.freed = freed;
+    }
+
+    @Override
+    public void _free() {
+      freed.incrementAndGet();
+    }
+  }
+}
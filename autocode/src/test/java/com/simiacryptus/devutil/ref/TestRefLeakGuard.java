@@ -0,0 +1,30 @@
+package com.simiacryptus.devutil.ref;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRefLeakGuard {
+  @Test
+  public void reclaimsLeaks() throws InterruptedException {
+    RefLeakGuard.setEnabled(true);
+    try {
+      final AtomicInteger cleaned = new AtomicInteger();
+      final long before = RefLeakGuard.getLeakCount();
+      for (int i = 0; i < 100; i++) {
+        final RefLeakGuard.Token token = RefLeakGuard.track(new Object()).onLeak(cleaned::incrementAndGet);
+        if (i % 2 == 0) token.freed();
+      }
+      for (int i = 0; i < 100 && cleaned.get() < 50; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(50, cleaned.get());
+      Assert.assertEquals(50, RefLeakGuard.getLeakCount() - before);
+      Assert.assertTrue(RefLeakGuard.getLeaks().containsKey(Object.class.getName()));
+    } finally {
+      RefLeakGuard.setEnabled(false);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRefReleaser {
+  @Test
+  public void deepCascade() {
+    final AtomicInteger freed = new AtomicInteger();
+    Node root = null;
+    for (int i = 0; i < 100000; i++) root = new Node(root, freed);
+    RefReleaser.setDeferred(true);
+    try {
+      RefReleaser.release(root);
+      Assert.assertTrue(RefReleaser.awaitIdle(10000));
+      Assert.assertEquals(100000, freed.get());
+      Assert.assertEquals(0, RefReleaser.getFailures());
+    } finally {
+      RefReleaser.setDeferred(false);
+    }
+  }
+
+  @Test
+  public void parksWhenIdle() throws InterruptedException {
+    final AtomicInteger freed = new AtomicInteger();
+    RefReleaser.setDeferred(true);
+    try {
+      RefReleaser.release(new Node(null, freed));
+      Assert.assertTrue(RefReleaser.awaitIdle(10000));
+      final Thread releaser = releaser();
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (releaser.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) Thread.sleep(1);
+      Assert.assertEquals(Thread.State.WAITING, releaser.getState());
+      RefReleaser.release(new Node(null, freed));
+      Assert.assertTrue(RefReleaser.awaitIdle(10000));
+      Assert.assertEquals(2, freed.get());
+    } finally {
+      RefReleaser.setDeferred(false);
+    }
+  }
+
+  private static Thread releaser() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().equals("ref-releaser")).findFirst().orElseThrow(AssertionError::new);
+  }
+
+  private static class Node extends ReferenceCountingBase {
+    private final Node child;
+    private final AtomicInteger freed;
+
+    Node(Node child, AtomicInteger freed) {
+      this.child = child;
+      this.freed = freed;
+    }
+
+    @Override
+    public void _free() {
+      freed.incrementAndGet();
+      RefReleaser.release(child);
+    }
+  }
+}
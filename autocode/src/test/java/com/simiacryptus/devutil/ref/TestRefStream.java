@@ -0,0 +1,87 @@
+package com.simiacryptus.devutil.ref;
+
+import com.simiacryptus.lang.ref.ReferenceCountingBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class TestRefStream {
+  @Test
+  public void mapReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    final Value[] values = values(freed, 5);
+    final List<Integer> ids = RefStream.of(values).map(x -> x.id).collect(Collectors.toList());
+    Assert.assertEquals(5, ids.size());
+    Assert.assertEquals(0, freed.get());
+    release(values);
+    Assert.assertEquals(5, freed.get());
+  }
+
+  @Test
+  public void filterReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    final Value[] values = values(freed, 6);
+    final AtomicInteger visited = new AtomicInteger();
+    RefStream.of(values).filter(x -> x.id % 2 == 0).forEach(x -> visited.incrementAndGet());
+    Assert.assertEquals(3, visited.get());
+    Assert.assertEquals(0, freed.get());
+    release(values);
+    Assert.assertEquals(6, freed.get());
+  }
+
+  @Test
+  public void countReleases() {
+    final AtomicInteger freed = new AtomicInteger();
+    final Value[] values = values(freed, 6);
+    Assert.assertEquals(2, RefStream.of(values).filter(x -> x.id < 2).count());
+    Assert.assertEquals(6, RefStream.of(values).count());
+    Assert.assertEquals(0, freed.get());
+    release(values);
+    Assert.assertEquals(6, freed.get());
+  }
+
+  @Test
+  public void collectHandsOver() {
+    final AtomicInteger freed = new AtomicInteger();
+    final Value[] values = values(freed, 4);
+    final List<Value> collected = RefStream.of(values).collect(Collectors.toList());
+    final ArrayList<Value> supplied = RefStream.of(values).collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+    final Object[] array = RefStream.of(values).toArray();
+    release(values);
+    Assert.assertEquals(0, freed.get());
+    collected.forEach(ReferenceCountingBase::freeRef);
+    supplied.forEach(ReferenceCountingBase::freeRef);
+    Assert.assertEquals(0, freed.get());
+    for (Object item : array) ((Value) item).freeRef();
+    Assert.assertEquals(4, freed.get());
+  }
+
+  private static Value[] values(AtomicInteger freed, int count) {
+    final Value[] values = new Value[count];
+    for (int i = 0; i < count; i++) values[i] = new Value(freed, i);
+    return values;
+  }
+
+  private static void release(Value[] values) {
+    for (Value value : values) value.freeRef();
+  }
+
+  private static class Value extends ReferenceCountingBase {
+    private final AtomicInteger freed;
+    private final int id;
+
+    Value(AtomicInteger freed, int id) {
+      this.freed = freed;
+      this.id = id;
+    }
+
+    @Override
+    public void _free() {
+      freed.incrementAndGet();
+    }
+  }
+}